@@ -0,0 +1,56 @@
+package org.jyre;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.nio.ByteBuffer;
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Parse and build UDP discovery beacons.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class UdpBeaconBenchmark {
+    private UUID uuid;
+    private ByteBuffer received;
+    private UdpBeaconView view;
+
+    @Setup
+    public void setUp() {
+        uuid = UUID.randomUUID();
+        ByteBuffer buffer = new UdpBeacon(uuid, 0xc000).getBuffer();
+        received = ByteBuffer.allocate(UdpBeacon.BEACON_SIZE);
+        received.put(buffer);
+        view = new UdpBeaconView();
+    }
+
+    @Benchmark
+    public UdpBeacon parse() {
+        return new UdpBeacon(received);
+    }
+
+    @Benchmark
+    public boolean view() {
+        return view.wrap(received, UdpBeacon.BEACON_SIZE).isValid()
+            && view.getMostSignificantBits() != view.getLeastSignificantBits();
+    }
+
+    @Benchmark
+    public ByteBuffer build() {
+        return new UdpBeacon(uuid, 0xc000).getBuffer();
+    }
+}
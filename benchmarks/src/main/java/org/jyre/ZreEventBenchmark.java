@@ -0,0 +1,53 @@
+package org.jyre;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.zeromq.api.Message;
+import org.zeromq.api.Message.Frame;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decode agent events as the application receives them. Events consume
+ * their message, so each invocation also builds the frames the agent
+ * would have sent.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ZreEventBenchmark {
+    private static final String PEER = "6A8F4C02D6E74D3C9E0B5D1E8F7A6B5C";
+    private static final String NAME = "bench-node";
+    private static final String GROUP = "GLOBAL";
+    private static final Frame CONTENT = Frame.of(new byte[256]);
+
+    @Benchmark
+    public ZreEvent enter() {
+        return ZreEvent.newZreEvent(new Message("ENTER").addString(PEER).addString(NAME));
+    }
+
+    @Benchmark
+    public ZreEvent join() {
+        return ZreEvent.newZreEvent(new Message("JOIN").addString(PEER).addString(NAME).addString(GROUP));
+    }
+
+    @Benchmark
+    public ZreEvent whisper() {
+        return ZreEvent.newZreEvent(new Message("WHISPER").addString(PEER).addString(NAME).addFrame(CONTENT));
+    }
+
+    @Benchmark
+    public ZreEvent shout() {
+        return ZreEvent.newZreEvent(new Message("SHOUT").addString(PEER).addString(NAME).addString(GROUP).addFrame(CONTENT));
+    }
+}
@@ -0,0 +1,77 @@
+package org.jyre;
+
+import org.jyre.protocol.ShoutMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.zeromq.ContextFactory;
+import org.zeromq.api.Context;
+import org.zeromq.api.Message.Frame;
+import org.zeromq.api.Socket;
+import org.zeromq.api.SocketType;
+
+import java.util.UUID;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Fan a SHOUT out to every peer in a group. All peers connect over inproc
+ * to a single ROUTER, which is drained after each shout so no peer hits
+ * its high water mark. The drain is part of the measured cost.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ZreGroupBenchmark {
+    private static final String ENDPOINT = "inproc://group-benchmark";
+
+    @Param({"10", "100", "1000"})
+    private int peers;
+
+    private Context context;
+    private Socket router;
+    private ZreGroup group;
+    private ShoutMessage shout;
+
+    @Setup
+    public void setUp() {
+        context = ContextFactory.createContext(1);
+        router = context.buildSocket(SocketType.ROUTER).bind(ENDPOINT);
+        group = new ZreGroup("GLOBAL");
+        String replyTo = UUID.randomUUID().toString();
+        for (int i = 0; i < peers; i++) {
+            ZrePeer peer = new ZrePeer(context, UUID.randomUUID().toString());
+            peer.connect(replyTo, ENDPOINT);
+            peer.join(group);
+        }
+        shout = new ShoutMessage().withGroup(group.getName()).withContent(Frame.of(new byte[256]));
+    }
+
+    @TearDown
+    public void tearDown() {
+        for (ZrePeer peer : group.getPeers().values()) {
+            peer.disconnect();
+        }
+        router.close();
+        context.close();
+    }
+
+    @Benchmark
+    public void send() {
+        group.send(shout);
+        for (int i = 0; i < peers; i++) {
+            router.receiveMessage();
+        }
+    }
+}
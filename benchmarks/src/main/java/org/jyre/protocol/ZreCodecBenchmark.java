@@ -0,0 +1,157 @@
+package org.jyre.protocol;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.zeromq.api.Message;
+import org.zeromq.api.Message.Frame;
+
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Serialize and deserialize every ZRE message type.
+ * <p>
+ * Deserialization consumes its frames, so each invocation wraps the
+ * pre-encoded bytes in a new Message. That wrapping is part of every
+ * real receive as well.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ZreCodecBenchmark {
+    private static final String GROUP = "GLOBAL";
+
+    private ZreCodec codec;
+    private HelloMessage hello;
+    private WhisperMessage whisper;
+    private ShoutMessage shout;
+    private JoinMessage join;
+    private LeaveMessage leave;
+    private PingMessage ping;
+    private PingOkMessage pingOk;
+
+    private byte[] helloData;
+    private byte[] whisperData;
+    private byte[] shoutData;
+    private byte[] joinData;
+    private byte[] leaveData;
+    private byte[] pingData;
+    private byte[] pingOkData;
+    private byte[] content;
+
+    @Setup
+    public void setUp() {
+        codec = new ZreCodec();
+        content = new byte[256];
+        Arrays.fill(content, (byte) 'x');
+
+        Map<String, String> headers = new HashMap<>();
+        headers.put("X-SERVICE", "bench");
+        headers.put("X-REGION", "local");
+
+        hello = new HelloMessage()
+            .withSequence(1)
+            .withEndpoint("tcp://192.168.1.10:49152")
+            .withGroups(Arrays.asList(GROUP, "LOCAL"))
+            .withStatus(2)
+            .withName("bench-node")
+            .withHeaders(headers);
+        whisper = new WhisperMessage().withSequence(1).withContent(Frame.of(content));
+        shout = new ShoutMessage().withSequence(1).withGroup(GROUP).withContent(Frame.of(content));
+        join = new JoinMessage().withSequence(1).withGroup(GROUP).withStatus(1);
+        leave = new LeaveMessage().withSequence(1).withGroup(GROUP).withStatus(1);
+        ping = new PingMessage().withSequence(1);
+        pingOk = new PingOkMessage().withSequence(1);
+
+        helloData = codec.serialize(hello).getFirstFrame().getData();
+        whisperData = codec.serialize(whisper).getFirstFrame().getData();
+        shoutData = codec.serialize(shout).getFirstFrame().getData();
+        joinData = codec.serialize(join).getFirstFrame().getData();
+        leaveData = codec.serialize(leave).getFirstFrame().getData();
+        pingData = codec.serialize(ping).getFirstFrame().getData();
+        pingOkData = codec.serialize(pingOk).getFirstFrame().getData();
+    }
+
+    @Benchmark
+    public Message serializeHello() {
+        return codec.serialize(hello);
+    }
+
+    @Benchmark
+    public Message serializeWhisper() {
+        return codec.serialize(whisper);
+    }
+
+    @Benchmark
+    public Message serializeShout() {
+        return codec.serialize(shout);
+    }
+
+    @Benchmark
+    public Message serializeJoin() {
+        return codec.serialize(join);
+    }
+
+    @Benchmark
+    public Message serializeLeave() {
+        return codec.serialize(leave);
+    }
+
+    @Benchmark
+    public Message serializePing() {
+        return codec.serialize(ping);
+    }
+
+    @Benchmark
+    public Message serializePingOk() {
+        return codec.serialize(pingOk);
+    }
+
+    @Benchmark
+    public ZreCodec.MessageType deserializeHello() {
+        return codec.deserialize(new Message(Frame.of(helloData)));
+    }
+
+    @Benchmark
+    public ZreCodec.MessageType deserializeWhisper() {
+        return codec.deserialize(new Message(Frame.of(whisperData)).addFrame(Frame.of(content)));
+    }
+
+    @Benchmark
+    public ZreCodec.MessageType deserializeShout() {
+        return codec.deserialize(new Message(Frame.of(shoutData)).addFrame(Frame.of(content)));
+    }
+
+    @Benchmark
+    public ZreCodec.MessageType deserializeJoin() {
+        return codec.deserialize(new Message(Frame.of(joinData)));
+    }
+
+    @Benchmark
+    public ZreCodec.MessageType deserializeLeave() {
+        return codec.deserialize(new Message(Frame.of(leaveData)));
+    }
+
+    @Benchmark
+    public ZreCodec.MessageType deserializePing() {
+        return codec.deserialize(new Message(Frame.of(pingData)));
+    }
+
+    @Benchmark
+    public ZreCodec.MessageType deserializePingOk() {
+        return codec.deserialize(new Message(Frame.of(pingOkData)));
+    }
+}
@@ -0,0 +1,93 @@
+package org.jyre.protocol;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.zeromq.ContextFactory;
+import org.zeromq.api.Context;
+import org.zeromq.api.Message.Frame;
+import org.zeromq.api.SocketType;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Round trip a WHISPER or SHOUT between two ZreSockets, the same way two
+ * agents talk to each other. A DEALER sends to a ROUTER, which decodes the
+ * message and answers with the same type. Both ends run on the benchmark
+ * thread, so the measured time covers encode, transport and decode in
+ * both directions.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ZreSocketBenchmark {
+    private static final String GROUP = "GLOBAL";
+
+    @Param({"inproc", "tcp"})
+    private String transport;
+
+    private Context context;
+    private ZreSocket dealer;
+    private ZreSocket router;
+    private WhisperMessage whisper;
+    private ShoutMessage shout;
+    private int sequence;
+
+    @Setup
+    public void setUp() {
+        String endpoint = transport.equals("tcp")
+            ? "tcp://127.0.0.1:*"
+            : "inproc://socket-benchmark";
+
+        context = ContextFactory.createContext(1);
+        router = new ZreSocket(context.buildSocket(SocketType.ROUTER).bind(endpoint));
+        if (transport.equals("tcp")) {
+            endpoint = router.getSocket().getZMQSocket().getLastEndpoint();
+        }
+        dealer = new ZreSocket(context.buildSocket(SocketType.DEALER).connect(endpoint));
+
+        Frame content = Frame.of(new byte[256]);
+        whisper = new WhisperMessage().withContent(content);
+        shout = new ShoutMessage().withGroup(GROUP).withContent(content);
+    }
+
+    @TearDown
+    public void tearDown() {
+        dealer.close();
+        router.close();
+        context.close();
+    }
+
+    @Benchmark
+    public ZreCodec.MessageType whisper() {
+        dealer.send(whisper.withSequence(nextSequence()));
+        router.receive();
+        router.send(router.getWhisper().withSequence(nextSequence()));
+        return dealer.receive();
+    }
+
+    @Benchmark
+    public ZreCodec.MessageType shout() {
+        dealer.send(shout.withSequence(nextSequence()));
+        router.receive();
+        router.send(router.getShout().withSequence(nextSequence()));
+        return dealer.receive();
+    }
+
+    private int nextSequence() {
+        sequence = (sequence + 1) & 0xffff;
+        return sequence;
+    }
+}
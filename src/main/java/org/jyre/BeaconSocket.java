@@ -0,0 +1,314 @@
+package org.jyre;
+
+import java.io.IOException;
+import java.net.Inet4Address;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.NetworkInterface;
+import java.net.SocketAddress;
+import java.net.SocketException;
+import java.net.StandardProtocolFamily;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectableChannel;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * UDP socket for discovery beacons.
+ * <p>
+ * Beacons can go out in one of four ways:
+ * <ul>
+ * <li>{@link Mode#BROADCAST}, to 255.255.255.255, which every host on the
+ * segment has to receive and parse.</li>
+ * <li>{@link Mode#MULTICAST}, to a group only subscribed hosts receive,
+ * and which can cross routed subnets when the TTL allows.</li>
+ * <li>{@link Mode#UNICAST}, to a fixed list of seed hosts. Only one process
+ * per host can receive unicast beacons on a port.</li>
+ * <li>{@link Mode#LOOPBACK}, multicast that never leaves this host, for
+ * tests.</li>
+ * </ul>
+ */
+class BeaconSocket {
+    /**
+     * How beacons are addressed.
+     */
+    public enum Mode {
+        BROADCAST,
+        MULTICAST,
+        UNICAST,
+        LOOPBACK
+    }
+
+    // Group used by loopback mode, in the organisation-local scope
+    static final String LOOPBACK_GROUP = "239.255.90.82";
+
+    private final DatagramChannel channel;
+    private final String host;
+    private final List<InetSocketAddress> targets;
+    private String from;
+
+    private BeaconSocket(DatagramChannel channel, String host, List<InetSocketAddress> targets) {
+        this.channel = channel;
+        this.host = host;
+        this.targets = targets;
+    }
+
+    /**
+     * Open a socket that broadcasts beacons on the local segment.
+     *
+     * @param port The beacon port
+     * @return The socket
+     */
+    public static BeaconSocket broadcast(int port) throws IOException {
+        DatagramChannel channel = open();
+        try {
+            channel.setOption(StandardSocketOptions.SO_BROADCAST, true);
+            channel.bind(new InetSocketAddress(port));
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+
+        InetSocketAddress target = new InetSocketAddress(InetAddress.getByName("255.255.255.255"), port);
+        return new BeaconSocket(channel, getHostAddress(null), Collections.singletonList(target));
+    }
+
+    /**
+     * Open a socket that sends beacons to, and receives them from, a
+     * multicast group.
+     *
+     * @param port The beacon port
+     * @param group The multicast group address
+     * @param ttl How many routers beacons may cross, 1 to stay on the segment
+     * @param networkInterface Name or address of the interface to use, or null for the default
+     * @return The socket
+     */
+    public static BeaconSocket multicast(int port, String group, int ttl, String networkInterface) throws IOException {
+        InetAddress address = InetAddress.getByName(group);
+        if (!address.isMulticastAddress()) {
+            throw new IllegalArgumentException("Not a multicast group: " + group);
+        }
+
+        NetworkInterface netint = getNetworkInterface(networkInterface);
+        DatagramChannel channel = open();
+        try {
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, netint);
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, ttl);
+            // Other nodes on this host subscribe to the same group
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+            channel.bind(new InetSocketAddress(port));
+            channel.join(address, netint);
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+
+        InetSocketAddress target = new InetSocketAddress(address, port);
+        return new BeaconSocket(channel, getHostAddress(netint), Collections.singletonList(target));
+    }
+
+    /**
+     * Open a socket that sends beacons to a fixed list of hosts.
+     *
+     * @param port The beacon port, also used for seeds that don't give one
+     * @param seeds Seed hosts, as "host" or "host:port"
+     * @return The socket
+     */
+    public static BeaconSocket unicast(int port, List<String> seeds) throws IOException {
+        List<InetSocketAddress> targets = new ArrayList<>(seeds.size());
+        for (String seed : seeds) {
+            int colon = seed.lastIndexOf(':');
+            if (colon < 0) {
+                targets.add(new InetSocketAddress(InetAddress.getByName(seed), port));
+            } else {
+                targets.add(new InetSocketAddress(InetAddress.getByName(seed.substring(0, colon)), Integer.parseInt(seed.substring(colon + 1))));
+            }
+        }
+
+        DatagramChannel channel = open();
+        try {
+            channel.bind(new InetSocketAddress(port));
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+
+        return new BeaconSocket(channel, getHostAddress(null), Collections.unmodifiableList(targets));
+    }
+
+    /**
+     * Open a socket whose beacons only reach other nodes on this host.
+     *
+     * @param port The beacon port
+     * @return The socket
+     */
+    public static BeaconSocket loopback(int port) throws IOException {
+        InetAddress address = InetAddress.getByName(LOOPBACK_GROUP);
+        DatagramChannel channel = open();
+        try {
+            // A TTL of zero keeps beacons on this host, whatever interface
+            // the group is routed through
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_TTL, 0);
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_LOOP, true);
+            channel.bind(new InetSocketAddress(port));
+            NetworkInterface netint = channel.getOption(StandardSocketOptions.IP_MULTICAST_IF);
+            if (netint == null) {
+                netint = getNetworkInterface(null);
+            }
+            channel.setOption(StandardSocketOptions.IP_MULTICAST_IF, netint);
+            channel.join(address, netint);
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+
+        InetSocketAddress target = new InetSocketAddress(address, port);
+        return new BeaconSocket(channel, InetAddress.getLoopbackAddress().getHostAddress(), Collections.singletonList(target));
+    }
+
+    /**
+     * @return The channel, for registering with a reactor
+     */
+    public SelectableChannel getChannel() {
+        return channel;
+    }
+
+    /**
+     * @return Our own address, for use in our endpoint
+     */
+    public String getHost() {
+        return host;
+    }
+
+    /**
+     * @return The address of the sender of the last beacon received
+     */
+    public String getFrom() {
+        return from;
+    }
+
+    /**
+     * Send a beacon to every target of this socket.
+     *
+     * @param buffer The beacon
+     */
+    public void send(ByteBuffer buffer) throws IOException {
+        int position = buffer.position();
+        for (InetSocketAddress target : targets) {
+            buffer.position(position);
+            channel.send(buffer, target);
+        }
+    }
+
+    /**
+     * Send a beacon to a specific host, on the port this socket is bound to.
+     *
+     * @param buffer The beacon
+     * @param host The host
+     */
+    public void send(ByteBuffer buffer, String host) throws IOException {
+        int port = ((InetSocketAddress) channel.getLocalAddress()).getPort();
+        channel.send(buffer, new InetSocketAddress(InetAddress.getByName(host), port));
+    }
+
+    /**
+     * Receive a beacon.
+     *
+     * @param buffer The buffer to receive into
+     * @return The size of the beacon, or -1 if none was waiting
+     */
+    public int receive(ByteBuffer buffer) throws IOException {
+        int remaining = buffer.remaining();
+        SocketAddress sender = channel.receive(buffer);
+        if (sender == null) {
+            return -1;
+        }
+
+        from = ((InetSocketAddress) sender).getAddress().getHostAddress();
+        return remaining - buffer.remaining();
+    }
+
+    public void close() {
+        try {
+            channel.close();
+        } catch (IOException ignored) {
+        }
+    }
+
+    private static DatagramChannel open() throws IOException {
+        DatagramChannel channel = DatagramChannel.open(StandardProtocolFamily.INET);
+        try {
+            channel.configureBlocking(false);
+            // Allow multiple processes to bind to the beacon port
+            channel.setOption(StandardSocketOptions.SO_REUSEADDR, true);
+        } catch (IOException ex) {
+            channel.close();
+            throw ex;
+        }
+
+        return channel;
+    }
+
+    /**
+     * Find an interface by name or address, or the first IPv4 interface
+     * that is up, supports multicast and isn't loopback.
+     */
+    private static NetworkInterface getNetworkInterface(String name) throws IOException {
+        if (name != null) {
+            NetworkInterface netint = NetworkInterface.getByName(name);
+            if (netint == null) {
+                netint = NetworkInterface.getByInetAddress(InetAddress.getByName(name));
+            }
+            if (netint == null) {
+                throw new SocketException("No such network interface: " + name);
+            }
+
+            return netint;
+        }
+
+        for (NetworkInterface netint : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (netint.isUp() && !netint.isLoopback() && netint.supportsMulticast() && getInet4Address(netint) != null) {
+                return netint;
+            }
+        }
+
+        return NetworkInterface.getByInetAddress(InetAddress.getLoopbackAddress());
+    }
+
+    /**
+     * Get the IPv4 address of an interface, or of the first interface that
+     * isn't loopback if none is given.
+     */
+    private static String getHostAddress(NetworkInterface netint) throws IOException {
+        if (netint != null) {
+            InetAddress address = getInet4Address(netint);
+            if (address != null) {
+                return address.getHostAddress();
+            }
+        }
+
+        for (NetworkInterface other : Collections.list(NetworkInterface.getNetworkInterfaces())) {
+            if (other.isUp() && !other.isLoopback()) {
+                InetAddress address = getInet4Address(other);
+                if (address != null) {
+                    return address.getHostAddress();
+                }
+            }
+        }
+
+        return InetAddress.getLoopbackAddress().getHostAddress();
+    }
+
+    private static InetAddress getInet4Address(NetworkInterface netint) {
+        for (InetAddress address : Collections.list(netint.getInetAddresses())) {
+            if (address instanceof Inet4Address) {
+                return address;
+            }
+        }
+
+        return null;
+    }
+}
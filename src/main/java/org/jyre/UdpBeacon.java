@@ -25,7 +25,7 @@ class UdpBeacon {
         this.version = buffer.get();
         this.uuid = new UUID(buffer.getLong(), buffer.getLong());
         this.port = 0xffff & (int) buffer.getShort();
-        this.identity = uuid.toString().replace("-", "").toUpperCase();
+        this.identity = ZreIdentity.toString(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
         this.buffer = buffer;
     }
 
@@ -35,7 +35,7 @@ class UdpBeacon {
         this.protocol = BEACON_PROTOCOL.getBytes();
         this.version = BEACON_VERSION;
         this.uuid = uuid;
-        this.identity = uuid.toString().replace("-", "").toUpperCase();
+        this.identity = ZreIdentity.toString(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
         this.port = port;
     }
 
@@ -0,0 +1,62 @@
+package org.jyre;
+
+import java.nio.ByteBuffer;
+
+/**
+ * Flyweight view over a received beacon.
+ * <p>
+ * Reads the header fields straight out of the receive buffer instead of
+ * copying them into a {@link UdpBeacon}, so checking a beacon from a known
+ * peer allocates nothing. Only {@link #getIdentity()} builds a String, and
+ * should be saved for peers we have not seen before.
+ */
+class UdpBeaconView {
+    private static final int VERSION_OFFSET = 3;
+    private static final int UUID_OFFSET = 4;
+    private static final int PORT_OFFSET = 20;
+
+    private ByteBuffer buffer;
+    private int size;
+
+    /**
+     * Point this view at a received datagram.
+     *
+     * @param buffer The receive buffer, with the datagram at position zero
+     * @param size The number of bytes received
+     * @return This view
+     */
+    public UdpBeaconView wrap(ByteBuffer buffer, int size) {
+        this.buffer = buffer;
+        this.size = size;
+        return this;
+    }
+
+    /**
+     * Check size, protocol and version of the beacon in place.
+     *
+     * @return true if this is a beacon we understand, false otherwise
+     */
+    public boolean isValid() {
+        return size == UdpBeacon.BEACON_SIZE
+            && buffer.get(0) == 'Z'
+            && buffer.get(1) == 'R'
+            && buffer.get(2) == 'E'
+            && buffer.get(VERSION_OFFSET) == UdpBeacon.BEACON_VERSION;
+    }
+
+    public long getMostSignificantBits() {
+        return buffer.getLong(UUID_OFFSET);
+    }
+
+    public long getLeastSignificantBits() {
+        return buffer.getLong(UUID_OFFSET + 8);
+    }
+
+    public int getPort() {
+        return 0xffff & (int) buffer.getShort(PORT_OFFSET);
+    }
+
+    public String getIdentity() {
+        return ZreIdentity.toString(getMostSignificantBits(), getLeastSignificantBits());
+    }
+}
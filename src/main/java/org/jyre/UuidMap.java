@@ -0,0 +1,158 @@
+package org.jyre;
+
+import java.util.Arrays;
+
+/**
+ * Open addressing hash map keyed by the two longs of a UUID.
+ * <p>
+ * Lookups neither box the key nor build a String, so it can be used on the
+ * receive paths where every message or beacon has to find its peer. Not
+ * thread safe; owned by the agent thread.
+ *
+ * @param <V> The value type
+ */
+class UuidMap<V> {
+    private static final int DEFAULT_CAPACITY = 16;
+
+    private long[] mostSigBits;
+    private long[] leastSigBits;
+    private Object[] values;
+    private int size;
+
+    public UuidMap() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    public UuidMap(int capacity) {
+        int length = Integer.highestOneBit(Math.max(capacity, 2) * 2 - 1);
+        this.mostSigBits = new long[length];
+        this.leastSigBits = new long[length];
+        this.values = new Object[length];
+    }
+
+    /**
+     * Get the value for a key.
+     *
+     * @param msb The most significant bits of the key
+     * @param lsb The least significant bits of the key
+     * @return The value, or null if the key is not present
+     */
+    @SuppressWarnings("unchecked")
+    public V get(long msb, long lsb) {
+        int mask = values.length - 1;
+        for (int i = hash(msb, lsb) & mask; values[i] != null; i = (i + 1) & mask) {
+            if (mostSigBits[i] == msb && leastSigBits[i] == lsb) {
+                return (V) values[i];
+            }
+        }
+
+        return null;
+    }
+
+    /**
+     * Put a value for a key.
+     *
+     * @param msb The most significant bits of the key
+     * @param lsb The least significant bits of the key
+     * @param value The value, must not be null
+     * @return The previous value, or null if the key was not present
+     */
+    @SuppressWarnings("unchecked")
+    public V put(long msb, long lsb, V value) {
+        assert value != null;
+        if ((size + 1) * 2 > values.length) {
+            resize(values.length * 2);
+        }
+
+        int mask = values.length - 1;
+        int i = hash(msb, lsb) & mask;
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (mostSigBits[i] == msb && leastSigBits[i] == lsb) {
+                V previous = (V) values[i];
+                values[i] = value;
+                return previous;
+            }
+        }
+
+        mostSigBits[i] = msb;
+        leastSigBits[i] = lsb;
+        values[i] = value;
+        size++;
+        return null;
+    }
+
+    /**
+     * Remove the value for a key.
+     *
+     * @param msb The most significant bits of the key
+     * @param lsb The least significant bits of the key
+     * @return The removed value, or null if the key was not present
+     */
+    @SuppressWarnings("unchecked")
+    public V remove(long msb, long lsb) {
+        int mask = values.length - 1;
+        int i = hash(msb, lsb) & mask;
+        for (; values[i] != null; i = (i + 1) & mask) {
+            if (mostSigBits[i] == msb && leastSigBits[i] == lsb) {
+                break;
+            }
+        }
+
+        V removed = (V) values[i];
+        if (removed == null) {
+            return null;
+        }
+
+        // Shift back any entries in the same probe run so lookups stay correct
+        int hole = i;
+        for (int j = (i + 1) & mask; values[j] != null; j = (j + 1) & mask) {
+            int home = hash(mostSigBits[j], leastSigBits[j]) & mask;
+            if (((j - home) & mask) >= ((j - hole) & mask)) {
+                mostSigBits[hole] = mostSigBits[j];
+                leastSigBits[hole] = leastSigBits[j];
+                values[hole] = values[j];
+                hole = j;
+            }
+        }
+
+        values[hole] = null;
+        size--;
+        return removed;
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public boolean isEmpty() {
+        return size == 0;
+    }
+
+    public void clear() {
+        Arrays.fill(values, null);
+        size = 0;
+    }
+
+    @SuppressWarnings("unchecked")
+    private void resize(int length) {
+        long[] oldMostSigBits = mostSigBits;
+        long[] oldLeastSigBits = leastSigBits;
+        Object[] oldValues = values;
+
+        mostSigBits = new long[length];
+        leastSigBits = new long[length];
+        values = new Object[length];
+        size = 0;
+
+        for (int i = 0; i < oldValues.length; i++) {
+            if (oldValues[i] != null) {
+                put(oldMostSigBits[i], oldLeastSigBits[i], (V) oldValues[i]);
+            }
+        }
+    }
+
+    private static int hash(long msb, long lsb) {
+        long h = (msb ^ lsb) * 0x9E3779B97F4A7C15L;
+        return (int) (h ^ (h >>> 32));
+    }
+}
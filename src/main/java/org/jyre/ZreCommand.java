@@ -0,0 +1,70 @@
+package org.jyre;
+
+import org.zeromq.api.Message.Frame;
+
+/**
+ * Commands sent from the interface to its agent.
+ * <p>
+ * Each command goes over the pipe as a single byte opcode, its ordinal, so
+ * the agent can dispatch through a table instead of comparing strings.
+ * Only append new commands; the agent and interface always share one
+ * build, but keeping opcodes stable makes pipe traffic easier to read.
+ */
+enum ZreCommand {
+    UUID,
+    NAME,
+    SET_NAME,
+    SET_HEADER,
+    SET_VERBOSE,
+    SET_BEACONS_ENABLED,
+    SET_PORT,
+    SET_EVASIVE_TIMEOUT,
+    SET_EXPIRED_TIMEOUT,
+    SET_INTERVAL,
+    SET_ENDPOINT,
+    OWN_GROUPS,
+    START,
+    STOP,
+    JOIN,
+    LEAVE,
+    WHISPER,
+    SHOUT,
+    CONNECT,
+    PUBLISH,
+    WHISPER_BATCH,
+    SHOUT_BATCH,
+    SET_PIPE_BUDGET,
+    SET_DISCOVERY,
+    SET_MAX_INTERVAL,
+    SET_IGNORE_ACTIVE_BEACONS,
+    SET_SEND_QUEUE,
+    SET_LOG_LEVEL,
+    SET_LOG_ENDPOINT,
+    SET_SHARDS;
+
+    private final Frame frame;
+
+    ZreCommand() {
+        this.frame = Frame.of(new byte[] { (byte) ordinal() });
+    }
+
+    /**
+     * Get the opcode frame for this command.
+     *
+     * @return The frame
+     */
+    public Frame getFrame() {
+        return frame;
+    }
+
+    /**
+     * Get the opcode carried by a command frame.
+     *
+     * @param frame The command frame
+     * @return The opcode, or -1 if the frame is not a command
+     */
+    public static int getOpcode(Frame frame) {
+        byte[] data = frame.getData();
+        return data.length == 1 ? data[0] & 0xff : -1;
+    }
+}
@@ -6,9 +6,20 @@ interface ZreConstants {
 
     // Intervals to be configured/reviewed
     int PING_INTERVAL  =  1000;   // Once per second
+    int BEACON_MAX     =  8000;   // Beacons back off to this while peers are stable
     int PEER_EVASIVE   =  5000;   // Five seconds - silence is evasive
     int PEER_EXPIRED   = 10000;   // Ten seconds - silence is expired
     int PEER_HWM       =  1000;   // Approximately 100 messages per second
+    int PEER_QUEUE     =  1000;   // Messages queued per peer once its HWM is reached
+    int PEER_BLOCK     =  1000;   // Longest wait for a full peer under the BLOCK policy
+    int PEER_FLUSH     =    10;   // Retry queued sends every 10 milliseconds
+    int PIPE_BUDGET    =   100;   // Pipe commands handled per reactor wakeup
+    int MALFORMED_MAX  =    10;   // Malformed messages before a peer is dropped
+    int MALFORMED_LOG  =  1000;   // At most one malformed report per second
+    int LOG_QUEUE      =  1024;   // Log messages waiting for the logging thread
+    int LOG_SEGMENT    = 16 << 20; // Bytes per collector log segment
+    int EVENT_QUEUE    =  1024;   // Events a dispatcher holds for receivers
+    int STOP_TICK      =    10;   // Reactor wakeups while waiting to be stopped
 
     // Agent constants
     int USHORT_MAX     = 0xffff;
@@ -0,0 +1,375 @@
+package org.jyre;
+
+import org.zeromq.api.Message;
+import org.zeromq.api.Message.Frame;
+import org.zeromq.api.Socket;
+import org.zeromq.api.SocketType;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Shares one interface between any number of threads.
+ * <p>
+ * An interface's sockets may only be used by one thread at a time. The
+ * dispatcher gives each an owner: a command thread runs commands and
+ * queries against the pipe in the order they are submitted, and an event
+ * thread receives from the inbox and hands each event to the next waiting
+ * receiver. Callers get a {@link CompletableFuture} for every result, and
+ * can block on it or chain on it as they like.
+ * <p>
+ * Waiting never holds a monitor, so virtual threads blocked on a result
+ * or an event park without tying up their carrier thread.
+ * <p>
+ * Events are held for receivers up to a limit. Once it is reached, the
+ * event thread stops reading the inbox until a receiver catches up, and
+ * the inbox fills towards its high water mark instead of the heap.
+ * <p>
+ * Once wrapped, the interface must only be used through the dispatcher,
+ * except for the peer queries and metrics, which never touch a socket and
+ * are safe from any thread, see {@link #getInterface()}.
+ */
+public class ZreDispatcher implements AutoCloseable {
+    // Numbers dispatcher threads, for thread dumps
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+    // Sent to our own inbox to wake the event thread on close
+    private static final Frame WAKEUP = Frame.of(new byte[0]);
+
+    private final ZreInterface inf;
+    private final int capacity;
+    private final BlockingQueue<Runnable> tasks = new LinkedBlockingQueue<>();
+    private final Runnable shutdown = this::shutdown;
+    private final Thread commandThread;
+    private final Thread eventThread;
+
+    // Guards everything below
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final ArrayDeque<ZreEvent> events = new ArrayDeque<>();
+    private final ArrayDeque<CompletableFuture<ZreEvent>> receivers = new ArrayDeque<>();
+    private boolean closed;
+
+    public ZreDispatcher(ZreInterface inf) {
+        this(inf, ZreConstants.EVENT_QUEUE);
+    }
+
+    /**
+     * Start dispatching for an interface. The dispatcher owns the interface
+     * from now on, and closes it on {@link #close()}.
+     *
+     * @param inf The interface
+     * @param capacity The most events held for receivers before the inbox is left to fill
+     */
+    public ZreDispatcher(ZreInterface inf, int capacity) {
+        this.inf = inf;
+        this.capacity = Math.max(1, capacity);
+
+        int instance = INSTANCES.incrementAndGet();
+        this.commandThread = new Thread(this::runCommands, "zre-commands-" + instance);
+        this.commandThread.setDaemon(true);
+        this.eventThread = new Thread(this::runEvents, "zre-events-" + instance);
+        this.eventThread.setDaemon(true);
+        this.commandThread.start();
+        this.eventThread.start();
+    }
+
+    /**
+     * Get the interface, for the peer queries and metrics, which read the
+     * agent's latest snapshot and are safe to call from any thread. Send
+     * everything else through {@link #submit(Function)}.
+     *
+     * @return The interface
+     */
+    public ZreInterface getInterface() {
+        return inf;
+    }
+
+    /**
+     * Run something against the interface on the command thread. Tasks run
+     * one at a time, in the order they are submitted.
+     *
+     * @param task The task, e.g. {@code inf -> inf.connect(address)}
+     * @return The task's result, or failed with whatever the task threw, or
+     *         with IllegalStateException if the dispatcher is closed
+     */
+    public <T> CompletableFuture<T> submit(Function<ZreInterface, T> task) {
+        CompletableFuture<T> future = new CompletableFuture<>();
+        Runnable command = () -> {
+            try {
+                future.complete(task.apply(inf));
+            } catch (RuntimeException ex) {
+                future.completeExceptionally(ex);
+            }
+        };
+
+        // Checked under the lock, so nothing is queued behind the close
+        lock.lock();
+        try {
+            if (closed) {
+                future.completeExceptionally(new IllegalStateException("Dispatcher is closed"));
+            } else {
+                tasks.add(command);
+            }
+        } finally {
+            lock.unlock();
+        }
+
+        return future;
+    }
+
+    public CompletableFuture<Void> start() {
+        return submit(inf -> {
+            inf.start();
+            return null;
+        });
+    }
+
+    public CompletableFuture<String> getUuid() {
+        return submit(ZreInterface::getUuid);
+    }
+
+    public CompletableFuture<String> getName() {
+        return submit(ZreInterface::getName);
+    }
+
+    public CompletableFuture<List<String>> getOwnGroups() {
+        return submit(ZreInterface::getOwnGroups);
+    }
+
+    public CompletableFuture<Boolean> connect(String address) {
+        return submit(inf -> inf.connect(address));
+    }
+
+    public CompletableFuture<Void> join(String group) {
+        return submit(inf -> {
+            inf.join(group);
+            return null;
+        });
+    }
+
+    public CompletableFuture<Void> leave(String group) {
+        return submit(inf -> {
+            inf.leave(group);
+            return null;
+        });
+    }
+
+    /**
+     * Whisper to a peer. The message belongs to the dispatcher until the
+     * future completes.
+     *
+     * @param peer The peer identity
+     * @param message The message to send
+     * @return Completed once the message is handed to the agent
+     */
+    public CompletableFuture<Void> whisper(String peer, Message message) {
+        return submit(inf -> {
+            inf.whisper(peer, message);
+            return null;
+        });
+    }
+
+    /**
+     * Shout to a group. The message belongs to the dispatcher until the
+     * future completes.
+     *
+     * @param group The group name
+     * @param message The message to send
+     * @return Completed once the message is handed to the agent
+     */
+    public CompletableFuture<Void> shout(String group, Message message) {
+        return submit(inf -> {
+            inf.shout(group, message);
+            return null;
+        });
+    }
+
+    /**
+     * Receive the next event. Each event goes to exactly one receiver, in
+     * the order receivers asked. Cancelling the future before it completes
+     * passes its event on to the next receiver.
+     *
+     * @return The event, or null once the dispatcher is closed
+     */
+    public CompletableFuture<ZreEvent> receiveAsync() {
+        lock.lock();
+        try {
+            ZreEvent event = events.pollFirst();
+            if (event != null) {
+                notFull.signal();
+                return CompletableFuture.completedFuture(event);
+            }
+            if (closed) {
+                return CompletableFuture.completedFuture(null);
+            }
+
+            // Forget receivers at the front that have given up
+            while (!receivers.isEmpty() && receivers.peekFirst().isDone()) {
+                receivers.pollFirst();
+            }
+
+            CompletableFuture<ZreEvent> future = new CompletableFuture<>();
+            receivers.addLast(future);
+            return future;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Wait for the next event.
+     *
+     * @return The event, or null if interrupted or the dispatcher is closed
+     */
+    public ZreEvent receive() {
+        CompletableFuture<ZreEvent> future = receiveAsync();
+        try {
+            return future.get();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+
+            // Keep an event that arrived anyway, rather than lose it
+            return future.cancel(false) ? null : future.join();
+        } catch (ExecutionException ex) {
+            return null;
+        }
+    }
+
+    /**
+     * Stop dispatching, and close the interface. Receivers still waiting
+     * get null, events already held can still be received, and commands
+     * already submitted run first.
+     */
+    @Override
+    public void close() {
+        List<CompletableFuture<ZreEvent>> waiting;
+        lock.lock();
+        try {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            notFull.signalAll();
+            tasks.add(shutdown);
+
+            waiting = new ArrayList<>(receivers);
+            receivers.clear();
+        } finally {
+            lock.unlock();
+        }
+
+        for (CompletableFuture<ZreEvent> receiver : waiting) {
+            receiver.complete(null);
+        }
+
+        // A task closing us can't wait for itself
+        if (Thread.currentThread() != commandThread) {
+            try {
+                commandThread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    private void runCommands() {
+        while (true) {
+            Runnable task;
+            try {
+                task = tasks.take();
+            } catch (InterruptedException ex) {
+                break;
+            }
+
+            task.run();
+            if (task == shutdown) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Last command: wake the event thread, wait for it to let go of the
+     * inbox, then close the interface from here.
+     */
+    private void shutdown() {
+        // The event thread may be blocked in a receive, so wake it through
+        // the inbox itself; a fresh connection is never full
+        Socket wakeup = inf.getContext().buildSocket(SocketType.PUSH).connect(inf.getInboxEndpoint());
+        wakeup.send(new Message(WAKEUP));
+        try {
+            eventThread.join();
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
+        wakeup.close();
+
+        inf.close();
+    }
+
+    private void runEvents() {
+        while (true) {
+            Message message = inf.receiveMessage();
+            if (message == null || message.getFirstFrame().getData().length == 0) {
+                break; // Interrupted or woken to close
+            }
+
+            try {
+                if (!deliver(inf.newEvent(message))) {
+                    break;
+                }
+            } catch (InterruptedException ex) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Hand an event to the first receiver still waiting, or hold it for the
+     * next one, waiting for room if we already hold as many as we may.
+     *
+     * @return true if the event was delivered or held, false if we closed
+     */
+    private boolean deliver(ZreEvent event) throws InterruptedException {
+        while (true) {
+            CompletableFuture<ZreEvent> receiver;
+            lock.lock();
+            try {
+                while (true) {
+                    if (closed) {
+                        return false;
+                    }
+
+                    receiver = receivers.pollFirst();
+                    if (receiver != null) {
+                        break;
+                    }
+
+                    if (events.size() < capacity) {
+                        events.addLast(event);
+                        return true;
+                    }
+                    notFull.await();
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            // Completed outside the lock, as it runs the receiver's
+            // callbacks; a receiver that gave up meanwhile is skipped
+            if (receiver.complete(event)) {
+                return true;
+            }
+        }
+    }
+}
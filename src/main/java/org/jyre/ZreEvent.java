@@ -8,6 +8,7 @@ public class ZreEvent {
     private String name;
     private String group;
     private Message content;
+    private int queueDepth;
 
     public ZreEvent(ZreEventType eventType) {
         this.eventType = eventType;
@@ -53,11 +54,47 @@ public class ZreEvent {
         this.content = content;
     }
 
+    /**
+     * Get the send queue depth that triggered a BACKPRESSURE event.
+     *
+     * @return The queue depth
+     */
+    public int getQueueDepth() {
+        return queueDepth;
+    }
+
+    public void setQueueDepth(int queueDepth) {
+        this.queueDepth = queueDepth;
+    }
+
     public static ZreEvent newZreEvent(Message message) {
-        ZreEventType eventType = ZreEventType.valueOf(message.popString());
+        return newZreEvent(message, ZrePeerDirectory.EMPTY);
+    }
+
+    /**
+     * Build an event, taking the peer's identity and name from the directory
+     * when it knows the peer so they are not decoded again. The content
+     * frame is handed over as received, without copying.
+     *
+     * @param message The event message from the agent
+     * @param directory The latest peer directory
+     * @return The event
+     */
+    static ZreEvent newZreEvent(Message message, ZrePeerDirectory directory) {
+        ZreEventType eventType = ZreEventType.valueOf(message.popFrame());
         ZreEvent event = new ZreEvent(eventType);
-        event.setPeer(message.popString());
-        event.setName(message.popString());
+
+        byte[] identity = message.popFrame().getData();
+        byte[] name = message.popFrame().getData();
+        ZrePeerDirectory.Entry peer = directory.getPeer(identity);
+        if (peer != null && peer.isName(name)) {
+            event.setPeer(peer.getIdentity());
+            event.setName(peer.getName());
+        } else {
+            event.setPeer(new String(identity, Message.CHARSET));
+            event.setName(new String(name, Message.CHARSET));
+        }
+
         switch (eventType) {
             case JOIN:
             case SHOUT:
@@ -70,6 +107,9 @@ public class ZreEvent {
             case SHOUT:
                 event.setContent(message);
                 break;
+            case BACKPRESSURE:
+                event.setQueueDepth(message.popInt());
+                break;
         }
 
         return event;
@@ -0,0 +1,385 @@
+package org.jyre;
+
+import org.zeromq.api.Message;
+import org.zeromq.api.Message.Frame;
+import org.zeromq.api.Socket;
+import org.zeromq.api.SocketType;
+
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.Flow;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Predicate;
+
+/**
+ * Publishes an interface's events to reactive subscribers, as they ask for
+ * them.
+ * <p>
+ * One reader thread owns the inbox. It only receives an event once some
+ * subscriber has asked for one, and holds that event until every
+ * subscriber it matches has asked, so at most one event is ever held.
+ * While subscribers are behind, events wait in the inbox; once that reaches
+ * its high water mark the agent blocks sending to it, stops reading from
+ * peers, and peers queue and drop by their send policy. A slow subscriber
+ * slows the transport rather than growing the heap.
+ * <p>
+ * Every subscriber whose filter matches an event receives it, so
+ * subscribers sharing an event must not change its content. Events no
+ * subscriber matches are dropped, and events arriving while nobody is
+ * subscribed wait in the inbox. Filters run on the reader thread, and
+ * must be quick.
+ * <p>
+ * Once events are published, they must not also be received from the
+ * interface, or through a {@link ZreDispatcher}. Closing the interface
+ * completes every subscriber.
+ */
+public class ZreEventPublisher implements Flow.Publisher<ZreEvent> {
+    private final Source source;
+    private final Predicate<? super ZreEvent> filter;
+
+    ZreEventPublisher(ZreInterface inf) {
+        this(new Source(inf), event -> true);
+    }
+
+    private ZreEventPublisher(Source source, Predicate<? super ZreEvent> filter) {
+        this.source = source;
+        this.filter = filter;
+    }
+
+    @Override
+    public void subscribe(Flow.Subscriber<? super ZreEvent> subscriber) {
+        source.subscribe(Objects.requireNonNull(subscriber), filter);
+    }
+
+    /**
+     * Get a sub-stream of the events this publisher publishes.
+     *
+     * @param predicate Which events to publish
+     * @return A publisher of the matching events
+     */
+    public ZreEventPublisher filter(Predicate<? super ZreEvent> predicate) {
+        Predicate<? super ZreEvent> outer = filter;
+        return new ZreEventPublisher(source, event -> outer.test(event) && predicate.test(event));
+    }
+
+    /**
+     * @param type An event type to publish
+     * @param types Any more event types to publish
+     * @return A publisher of events of the given types
+     */
+    public ZreEventPublisher ofType(ZreEventType type, ZreEventType... types) {
+        EnumSet<ZreEventType> matching = EnumSet.of(type, types);
+        return filter(event -> matching.contains(event.getEventType()));
+    }
+
+    /**
+     * @param group The group name
+     * @return A publisher of JOIN, LEAVE and SHOUT events for the group
+     */
+    public ZreEventPublisher ofGroup(String group) {
+        return filter(event -> group.equals(event.getGroup()));
+    }
+
+    void close() {
+        source.close();
+    }
+
+    /**
+     * The reader and its subscribers, shared by every filtered publisher.
+     */
+    private static class Source {
+        // Numbers reader threads, for thread dumps
+        private static final AtomicInteger INSTANCES = new AtomicInteger();
+
+        // Sent to our own inbox to wake the reader on close
+        private static final Frame WAKEUP = Frame.of(new byte[0]);
+
+        private final ZreInterface inf;
+
+        // Guards everything below
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition changed = lock.newCondition();
+        private final List<Subscription> subscriptions = new ArrayList<>();
+        private Thread reader;
+        private boolean closed;
+
+        Source(ZreInterface inf) {
+            this.inf = inf;
+        }
+
+        void subscribe(Flow.Subscriber<? super ZreEvent> subscriber, Predicate<? super ZreEvent> filter) {
+            Subscription subscription = new Subscription(this, subscriber, filter);
+
+            // Added once onSubscribe returns, so nothing is signalled before
+            subscriber.onSubscribe(subscription);
+
+            lock.lock();
+            try {
+                if (!closed) {
+                    if (!subscription.cancelled) {
+                        subscriptions.add(subscription);
+                    }
+                    if (reader == null) {
+                        reader = new Thread(this::run, "zre-publisher-" + INSTANCES.incrementAndGet());
+                        reader.setDaemon(true);
+                        reader.start();
+                    }
+                    changed.signalAll();
+                    return;
+                }
+            } finally {
+                lock.unlock();
+            }
+
+            subscription.complete();
+        }
+
+        void close() {
+            Thread thread;
+            lock.lock();
+            try {
+                if (closed) {
+                    return;
+                }
+                closed = true;
+                thread = reader;
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+
+            // A subscriber closing us can't wait for itself
+            if (thread == null || thread == Thread.currentThread()) {
+                return;
+            }
+
+            // The reader may be blocked in a receive, so wake it through the
+            // inbox itself; a fresh connection is never full
+            Socket wakeup = inf.getContext().buildSocket(SocketType.PUSH).connect(inf.getInboxEndpoint());
+            wakeup.send(new Message(WAKEUP));
+            try {
+                thread.join();
+            } catch (InterruptedException ex) {
+                Thread.currentThread().interrupt();
+            }
+            wakeup.close();
+        }
+
+        private void run() {
+            try {
+                while (awaitDemand()) {
+                    Message message = inf.receiveMessage();
+                    if (message == null) {
+                        break; // Interrupted or context closed
+                    }
+                    if (message.getFirstFrame().getData().length == 0) {
+                        continue; // Woken to close
+                    }
+                    if (!publish(inf.newEvent(message))) {
+                        break;
+                    }
+                }
+            } catch (InterruptedException ignored) {
+            }
+
+            List<Subscription> remaining;
+            lock.lock();
+            try {
+                closed = true;
+                remaining = new ArrayList<>(subscriptions);
+                subscriptions.clear();
+            } finally {
+                lock.unlock();
+            }
+
+            for (Subscription subscription : remaining) {
+                subscription.complete();
+            }
+        }
+
+        /**
+         * Wait until some subscriber wants an event.
+         *
+         * @return true if one does, false if we closed
+         */
+        private boolean awaitDemand() throws InterruptedException {
+            while (true) {
+                List<Subscription> failed;
+                lock.lock();
+                try {
+                    failed = takeFailed();
+                    if (failed.isEmpty()) {
+                        if (closed) {
+                            return false;
+                        }
+                        for (Subscription subscription : subscriptions) {
+                            if (subscription.demand > 0) {
+                                return true;
+                            }
+                        }
+                        changed.await();
+                        continue;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+
+                fail(failed);
+            }
+        }
+
+        /**
+         * Wait until every subscriber matching an event wants it, then hand
+         * it to them all.
+         *
+         * @return true if the event was published or dropped, false if we closed
+         */
+        private boolean publish(ZreEvent event) throws InterruptedException {
+            List<Subscription> matching = new ArrayList<>();
+            while (true) {
+                List<Subscription> failed;
+                lock.lock();
+                try {
+                    failed = takeFailed();
+                    if (failed.isEmpty()) {
+                        if (closed) {
+                            return false;
+                        }
+
+                        // Nobody to decide whether it's wanted, so keep it
+                        boolean ready = !subscriptions.isEmpty();
+                        matching.clear();
+                        for (Subscription subscription : subscriptions) {
+                            if (subscription.filter.test(event)) {
+                                matching.add(subscription);
+                                ready &= subscription.demand > 0;
+                            }
+                        }
+
+                        if (ready) {
+                            for (Subscription subscription : matching) {
+                                if (subscription.demand != Long.MAX_VALUE) {
+                                    subscription.demand--;
+                                }
+                            }
+                            break;
+                        }
+                        changed.await();
+                        continue;
+                    }
+                } finally {
+                    lock.unlock();
+                }
+
+                fail(failed);
+            }
+
+            // Signalled outside the lock, so subscribers may request or
+            // cancel from any thread meanwhile
+            for (Subscription subscription : matching) {
+                subscription.next(event);
+            }
+            return true;
+        }
+
+        private List<Subscription> takeFailed() {
+            List<Subscription> failed = new ArrayList<>(0);
+            for (Subscription subscription : subscriptions) {
+                if (subscription.error != null) {
+                    failed.add(subscription);
+                }
+            }
+            subscriptions.removeAll(failed);
+            return failed;
+        }
+
+        private void fail(List<Subscription> failed) {
+            for (Subscription subscription : failed) {
+                subscription.cancelled = true;
+                subscription.subscriber.onError(subscription.error);
+            }
+        }
+
+        private void remove(Subscription subscription) {
+            lock.lock();
+            try {
+                subscriptions.remove(subscription);
+                changed.signalAll();
+            } finally {
+                lock.unlock();
+            }
+        }
+    }
+
+    /**
+     * One subscriber's demand. Signals all come from the reader thread,
+     * except completing a subscriber that arrives after close.
+     */
+    private static class Subscription implements Flow.Subscription {
+        private final Source source;
+        private final Flow.Subscriber<? super ZreEvent> subscriber;
+        private final Predicate<? super ZreEvent> filter;
+
+        // Guarded by the source's lock
+        private long demand;
+        private Throwable error;
+
+        private volatile boolean cancelled;
+
+        Subscription(Source source, Flow.Subscriber<? super ZreEvent> subscriber, Predicate<? super ZreEvent> filter) {
+            this.source = source;
+            this.subscriber = subscriber;
+            this.filter = filter;
+        }
+
+        @Override
+        public void request(long n) {
+            source.lock.lock();
+            try {
+                if (cancelled || error != null) {
+                    return;
+                }
+                if (n <= 0) {
+                    // Signalled by the reader, to keep signals in order
+                    error = new IllegalArgumentException("Request must be positive, was " + n);
+                } else {
+                    demand = demand + n < 0 ? Long.MAX_VALUE : demand + n;
+                }
+                source.changed.signalAll();
+            } finally {
+                source.lock.unlock();
+            }
+        }
+
+        @Override
+        public void cancel() {
+            if (!cancelled) {
+                cancelled = true;
+                source.remove(this);
+            }
+        }
+
+        void next(ZreEvent event) {
+            if (cancelled) {
+                return;
+            }
+            try {
+                subscriber.onNext(event);
+            } catch (RuntimeException ex) {
+                // A subscriber that throws is treated as cancelled
+                cancel();
+            }
+        }
+
+        void complete() {
+            if (!cancelled) {
+                cancelled = true;
+                subscriber.onComplete();
+            }
+        }
+    }
+}
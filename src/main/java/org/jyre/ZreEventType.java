@@ -1,5 +1,10 @@
 package org.jyre;
 
+import org.zeromq.api.Message;
+import org.zeromq.api.Message.Frame;
+
+import java.util.Arrays;
+
 public enum ZreEventType {
     ENTER,
     JOIN,
@@ -7,5 +12,28 @@ public enum ZreEventType {
     SHOUT,
     LEAVE,
     EXIT,
-    EVASIVE
+    EVASIVE,
+    BACKPRESSURE;
+
+    private static final ZreEventType[] VALUES = values();
+
+    private final byte[] data = name().getBytes(Message.CHARSET);
+
+    /**
+     * Get the event type named by a frame, without decoding it.
+     *
+     * @param frame The frame holding the event type's name
+     * @return The event type
+     * @throws IllegalArgumentException if the frame names no event type
+     */
+    public static ZreEventType valueOf(Frame frame) {
+        byte[] data = frame.getData();
+        for (ZreEventType eventType : VALUES) {
+            if (Arrays.equals(eventType.data, data)) {
+                return eventType;
+            }
+        }
+
+        throw new IllegalArgumentException("No event type " + new String(data, Message.CHARSET));
+    }
 }
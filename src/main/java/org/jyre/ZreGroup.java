@@ -7,26 +7,79 @@ import org.jyre.protocol.PingMessage;
 import org.jyre.protocol.PingOkMessage;
 import org.jyre.protocol.ShoutMessage;
 import org.jyre.protocol.WhisperMessage;
+import org.jyre.protocol.ZreCodec;
 
+import org.zeromq.api.Message.Frame;
+
+import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 
 public class ZreGroup {
     private final String name;
+    private final Frame nameFrame;
     private final HashMap<String, ZrePeer> peers;
+    private final ZreCodec codec;
+    private ZreMetrics.Traffic traffic;
+    private List<String> members;
 
     public ZreGroup(String name) {
         this.name = name;
+        this.nameFrame = Frame.of(name);
         this.peers = new HashMap<>();
+        this.codec = new ZreCodec();
     }
 
     public String getName() {
         return name;
     }
 
+    /**
+     * Get our name, encoded once for the events sent to the caller.
+     *
+     * @return The name frame
+     */
+    public Frame getNameFrame() {
+        return nameFrame;
+    }
+
     public HashMap<String, ZrePeer> getPeers() {
         return peers;
     }
 
+    /**
+     * Get the identities of our peers for the directory, copied once per
+     * change.
+     *
+     * @return The member identities
+     */
+    List<String> getMembers() {
+        if (members == null) {
+            members = Collections.unmodifiableList(new ArrayList<>(peers.keySet()));
+        }
+
+        return members;
+    }
+
+    /**
+     * Our peers changed.
+     */
+    void onUpdate() {
+        members = null;
+    }
+
+    /**
+     * @return Traffic with this group, or null if it isn't counted
+     */
+    public ZreMetrics.Traffic getTraffic() {
+        return traffic;
+    }
+
+    public void setTraffic(ZreMetrics.Traffic traffic) {
+        this.traffic = traffic;
+    }
+
     public void send(HelloMessage message) {
         for (ZrePeer peer : peers.values()) {
             peer.send(message);
@@ -58,8 +111,10 @@ public class ZreGroup {
     }
 
     public void send(ShoutMessage message) {
+        // Encode once, each peer only patches its own sequence number
+        ZreCodec.PreparedMessage prepared = codec.prepare(message);
         for (ZrePeer peer : peers.values()) {
-            peer.send(message);
+            peer.send(prepared);
         }
     }
 
@@ -0,0 +1,147 @@
+package org.jyre;
+
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Conversions between peer identities and the UUIDs behind them.
+ * <p>
+ * Identities are normally 32 upper case hex digits, the UUID without
+ * dashes. Some peers send the raw 16 byte UUID instead, optionally behind
+ * one leading byte. All three forms map to the same two longs, which
+ * the agent uses as its peer key so receive paths never build a String.
+ */
+final class ZreIdentity {
+    private static final char[] HEX_DIGITS = "0123456789ABCDEF".toCharArray();
+
+    private ZreIdentity() {
+    }
+
+    /**
+     * Format a UUID as an identity, 32 upper case hex digits without dashes.
+     *
+     * @param msb The most significant bits of the UUID
+     * @param lsb The least significant bits of the UUID
+     * @return The identity
+     */
+    public static String toString(long msb, long lsb) {
+        char[] chars = new char[32];
+        for (int i = 15; i >= 0; i--) {
+            chars[i] = HEX_DIGITS[(int) (msb & 0x0f)];
+            chars[i + 16] = HEX_DIGITS[(int) (lsb & 0x0f)];
+            msb >>>= 4;
+            lsb >>>= 4;
+        }
+
+        return new String(chars);
+    }
+
+    /**
+     * Normalise raw identity bytes from a ROUTER socket to an identity.
+     * Hex identities are kept as they are, raw UUIDs are formatted as hex,
+     * anything else is decoded as-is.
+     *
+     * @param identity The identity bytes
+     * @return The identity
+     */
+    public static String toString(byte[] identity) {
+        if (isUuid(identity) && identity.length != 32) {
+            return toString(getMostSignificantBits(identity), getLeastSignificantBits(identity));
+        }
+
+        return new String(identity, StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Check whether identity bytes hold a UUID, either as 32 hex digits or
+     * as 16 raw bytes with an optional leading byte.
+     *
+     * @param identity The identity bytes
+     * @return true if the identity is a UUID, false otherwise
+     */
+    public static boolean isUuid(byte[] identity) {
+        switch (identity.length) {
+            case 16:
+            case 17:
+                return true;
+            case 32:
+                for (byte b : identity) {
+                    if (Character.digit(b, 16) < 0) {
+                        return false;
+                    }
+                }
+                return true;
+            default:
+                return false;
+        }
+    }
+
+    /**
+     * Check whether an identity is 32 hex digits.
+     *
+     * @param identity The identity
+     * @return true if the identity is a UUID, false otherwise
+     */
+    public static boolean isUuid(String identity) {
+        if (identity.length() != 32) {
+            return false;
+        }
+
+        for (int i = 0; i < identity.length(); i++) {
+            if (Character.digit(identity.charAt(i), 16) < 0) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+
+    /**
+     * @param identity The identity bytes, checked by {@link #isUuid(byte[])}
+     * @return The most significant bits of the UUID
+     */
+    public static long getMostSignificantBits(byte[] identity) {
+        return identity.length == 32 ? parseHex(identity, 0) : getLong(identity, identity.length - 16);
+    }
+
+    /**
+     * @param identity The identity bytes, checked by {@link #isUuid(byte[])}
+     * @return The least significant bits of the UUID
+     */
+    public static long getLeastSignificantBits(byte[] identity) {
+        return identity.length == 32 ? parseHex(identity, 16) : getLong(identity, identity.length - 8);
+    }
+
+    /**
+     * @param identity The identity, checked by {@link #isUuid(String)}
+     * @return The most significant bits of the UUID
+     */
+    public static long getMostSignificantBits(String identity) {
+        return Long.parseUnsignedLong(identity.substring(0, 16), 16);
+    }
+
+    /**
+     * @param identity The identity, checked by {@link #isUuid(String)}
+     * @return The least significant bits of the UUID
+     */
+    public static long getLeastSignificantBits(String identity) {
+        return Long.parseUnsignedLong(identity.substring(16), 16);
+    }
+
+    private static long parseHex(byte[] data, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 16; i++) {
+            value = (value << 4) | Character.digit(data[i], 16);
+        }
+
+        return value;
+    }
+
+    private static long getLong(byte[] data, int offset) {
+        long value = 0;
+        for (int i = offset; i < offset + 8; i++) {
+            value = (value << 8) | (data[i] & 0xff);
+        }
+
+        return value;
+    }
+}
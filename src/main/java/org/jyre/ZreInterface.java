@@ -9,49 +9,85 @@ import org.zeromq.api.SocketType;
 
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
 
 public class ZreInterface {
     // Commands sent to background agent
-    private static final Frame UUID                = Frame.of("UUID");
-    private static final Frame NAME                = Frame.of("NAME");
-    private static final Frame SET_NAME            = Frame.of("SET NAME");
-    private static final Frame SET_HEADER          = Frame.of("SET HEADER");
-    private static final Frame SET_VERBOSE         = Frame.of("SET VERBOSE");
-    private static final Frame SET_BEACONS_ENABLED = Frame.of("SET BEACONS ENABLED");
-    private static final Frame SET_PORT            = Frame.of("SET PORT");
-    private static final Frame SET_EVASIVE_TIMEOUT = Frame.of("SET EVASIVE TIMEOUT");
-    private static final Frame SET_EXPIRED_TIMEOUT = Frame.of("SET EXPIRED TIMEOUT");
-    private static final Frame SET_INTERVAL        = Frame.of("SET INTERVAL");
-    private static final Frame SET_ENDPOINT        = Frame.of("SET ENDPOINT");
-    private static final Frame PEERS               = Frame.of("PEERS");
-    private static final Frame GROUP_PEERS         = Frame.of("GROUP PEERS");
-    private static final Frame PEER_NAME           = Frame.of("PEER NAME");
-    private static final Frame PEER_ENDPOINT       = Frame.of("PEER ENDPOINT");
-    private static final Frame PEER_HEADER         = Frame.of("PEER HEADER");
-    private static final Frame PEER_HEADERS        = Frame.of("PEER HEADERS");
-    private static final Frame PEER_GROUPS         = Frame.of("PEER GROUPS");
-    private static final Frame OWN_GROUPS          = Frame.of("OWN GROUPS");
-    private static final Frame START               = Frame.of("START");
-    private static final Frame STOP                = Frame.of("STOP");
-    private static final Frame JOIN                = Frame.of("JOIN");
-    private static final Frame LEAVE               = Frame.of("LEAVE");
-    private static final Frame WHISPER             = Frame.of("WHISPER");
-    private static final Frame SHOUT               = Frame.of("SHOUT");
-    private static final Frame CONNECT             = Frame.of("CONNECT");
-    private static final Frame PUBLISH             = Frame.of("PUBLISH");
+    private static final Frame UUID                = ZreCommand.UUID.getFrame();
+    private static final Frame NAME                = ZreCommand.NAME.getFrame();
+    private static final Frame SET_NAME            = ZreCommand.SET_NAME.getFrame();
+    private static final Frame SET_HEADER          = ZreCommand.SET_HEADER.getFrame();
+    private static final Frame SET_VERBOSE         = ZreCommand.SET_VERBOSE.getFrame();
+    private static final Frame SET_BEACONS_ENABLED = ZreCommand.SET_BEACONS_ENABLED.getFrame();
+    private static final Frame SET_PORT            = ZreCommand.SET_PORT.getFrame();
+    private static final Frame SET_EVASIVE_TIMEOUT = ZreCommand.SET_EVASIVE_TIMEOUT.getFrame();
+    private static final Frame SET_EXPIRED_TIMEOUT = ZreCommand.SET_EXPIRED_TIMEOUT.getFrame();
+    private static final Frame SET_INTERVAL        = ZreCommand.SET_INTERVAL.getFrame();
+    private static final Frame SET_ENDPOINT        = ZreCommand.SET_ENDPOINT.getFrame();
+    private static final Frame OWN_GROUPS          = ZreCommand.OWN_GROUPS.getFrame();
+    private static final Frame START               = ZreCommand.START.getFrame();
+    private static final Frame STOP                = ZreCommand.STOP.getFrame();
+    private static final Frame JOIN                = ZreCommand.JOIN.getFrame();
+    private static final Frame LEAVE               = ZreCommand.LEAVE.getFrame();
+    private static final Frame WHISPER             = ZreCommand.WHISPER.getFrame();
+    private static final Frame SHOUT               = ZreCommand.SHOUT.getFrame();
+    private static final Frame CONNECT             = ZreCommand.CONNECT.getFrame();
+    private static final Frame PUBLISH             = ZreCommand.PUBLISH.getFrame();
+    private static final Frame WHISPER_BATCH       = ZreCommand.WHISPER_BATCH.getFrame();
+    private static final Frame SHOUT_BATCH         = ZreCommand.SHOUT_BATCH.getFrame();
+    private static final Frame SET_PIPE_BUDGET     = ZreCommand.SET_PIPE_BUDGET.getFrame();
+    private static final Frame SET_DISCOVERY       = ZreCommand.SET_DISCOVERY.getFrame();
+    private static final Frame SET_MAX_INTERVAL    = ZreCommand.SET_MAX_INTERVAL.getFrame();
+    private static final Frame SET_IGNORE_ACTIVE_BEACONS = ZreCommand.SET_IGNORE_ACTIVE_BEACONS.getFrame();
+    private static final Frame SET_SEND_QUEUE      = ZreCommand.SET_SEND_QUEUE.getFrame();
+    private static final Frame SET_LOG_LEVEL       = ZreCommand.SET_LOG_LEVEL.getFrame();
+    private static final Frame SET_LOG_ENDPOINT    = ZreCommand.SET_LOG_ENDPOINT.getFrame();
+    private static final Frame SET_SHARDS          = ZreCommand.SET_SHARDS.getFrame();
+
+    // Numbers inbox pipes, so interfaces can share a context
+    private static final AtomicInteger INSTANCES = new AtomicInteger();
 
     private Context context;
+    private boolean ownsContext;
+    private boolean stopped;
+
+    // Published by the agent on every peer or group change
+    private final AtomicReference<ZrePeerDirectory> directory = new AtomicReference<>(ZrePeerDirectory.EMPTY);
+
+    // Updated by the agent as it runs, readable from any thread
+    private final ZreMetrics metrics = new ZreMetrics();
+    private String inboxEndpoint;
+    private ZreInterfaceAgent agent;
     private Socket pipe;
     private Socket inbox;
+    private final ZreEventPublisher events;
 
     public ZreInterface() {
-        this(ContextFactory.createContext(1));
+        this(ContextFactory.createContext(1), true);
     }
 
+    /**
+     * Create an interface on a shared context. Any number of interfaces may
+     * share one context, and closing one leaves the context open.
+     *
+     * @param context The context
+     */
     public ZreInterface(Context context) {
+        this(context, false);
+    }
+
+    private ZreInterface(Context context, boolean ownsContext) {
+        String endpoint = String.format("inproc://zre-inbox-%d", INSTANCES.incrementAndGet());
         this.context = context;
-        this.inbox = context.buildSocket(SocketType.PAIR).bind("inproc://inbox");
-        this.pipe = context.fork(new ZreInterfaceAgent());
+        this.ownsContext = ownsContext;
+        this.inboxEndpoint = endpoint;
+        this.inbox = context.buildSocket(SocketType.PULL).bind(endpoint);
+        this.agent = new ZreInterfaceAgent(endpoint, directory, metrics);
+        this.pipe = context.fork(agent);
+
+        // Cheap until subscribed to, its reader only starts then
+        this.events = new ZreEventPublisher(this);
     }
 
     public String getUuid() {
@@ -76,10 +112,66 @@ public class ZreInterface {
         pipe.send(new Message(SET_BEACONS_ENABLED).addString(String.valueOf(enabled)));
     }
 
+    /**
+     * Skip beacons from peers that sent us a message within the current
+     * beacon interval. Their traffic already shows they are alive, so
+     * beacons from busy peers cost nothing but the receive.
+     *
+     * @param ignore true to skip beacons from active peers, false to process all beacons
+     */
+    public void setIgnoreActiveBeacons(boolean ignore) {
+        pipe.send(new Message(SET_IGNORE_ACTIVE_BEACONS).addString(String.valueOf(ignore)));
+    }
+
+    /**
+     * Set the UDP port beacons are sent and received on. Call before
+     * {@link #start()}.
+     *
+     * @param port The beacon port
+     */
     public void setPort(int port) {
         pipe.send(new Message(SET_PORT).addInt(port));
     }
 
+    /**
+     * Discover peers through a multicast group instead of broadcast. Only
+     * hosts that join the group receive beacons, and beacons can cross
+     * routers if the TTL allows. Call before {@link #start()}.
+     *
+     * @param group The multicast group address, e.g. 239.255.90.82
+     * @param ttl How many routers beacons may cross, 1 to stay on the segment
+     * @param networkInterface Name or address of the interface to use, or null for the default
+     */
+    public void setMulticastDiscovery(String group, int ttl, String networkInterface) {
+        Message message = new Message(SET_DISCOVERY).addString(BeaconSocket.Mode.MULTICAST.name()).addString(group).addInt(ttl);
+        if (networkInterface != null) {
+            message.addString(networkInterface);
+        }
+        pipe.send(message);
+    }
+
+    /**
+     * Discover peers by sending beacons to a fixed list of hosts instead of
+     * broadcast. Call before {@link #start()}.
+     *
+     * @param seeds Seed hosts, as "host" or "host:port"
+     */
+    public void setUnicastDiscovery(List<String> seeds) {
+        Message message = new Message(SET_DISCOVERY).addString(BeaconSocket.Mode.UNICAST.name());
+        for (String seed : seeds) {
+            message.addString(seed);
+        }
+        pipe.send(message);
+    }
+
+    /**
+     * Discover only peers on this host, for tests. Call before
+     * {@link #start()}.
+     */
+    public void setLoopbackDiscovery() {
+        pipe.send(new Message(SET_DISCOVERY).addString(BeaconSocket.Mode.LOOPBACK.name()));
+    }
+
     public void setEvasiveTimeout(int evasiveTimeout) {
         pipe.send(new Message(SET_EVASIVE_TIMEOUT).addInt(evasiveTimeout));
     }
@@ -88,53 +180,143 @@ public class ZreInterface {
         pipe.send(new Message(SET_EXPIRED_TIMEOUT).addInt(expiredTimeout));
     }
 
+    /**
+     * Set the interval between beacons after a peer comes or goes, and
+     * between liveness checks on peers.
+     *
+     * @param interval The interval, in milliseconds
+     */
     public void setInterval(int interval) {
         pipe.send(new Message(SET_INTERVAL).addInt(interval));
     }
 
+    /**
+     * Set the longest interval between beacons. While no peers come or go,
+     * the beacon interval doubles up to this ceiling, and evasive and
+     * expired timeouts grow with it.
+     *
+     * @param maxInterval The ceiling, in milliseconds
+     */
+    public void setMaxInterval(int maxInterval) {
+        pipe.send(new Message(SET_MAX_INTERVAL).addInt(maxInterval));
+    }
+
+    /**
+     * Set how many pipe commands the agent handles per wakeup before it
+     * polls its other sockets again.
+     *
+     * @param budget The number of commands, at least 1
+     */
+    public void setPipeBudget(int budget) {
+        pipe.send(new Message(SET_PIPE_BUDGET).addInt(budget));
+    }
+
+    /**
+     * Set how many messages are queued for a peer whose socket is full, and
+     * what happens when that queue is full too. A BACKPRESSURE event is
+     * received each time a peer's queue overflows.
+     *
+     * @param limit The most messages to queue per peer, at least 1
+     * @param policy What to do when a peer's queue is full
+     */
+    public void setSendQueue(int limit, ZreSendPolicy policy) {
+        pipe.send(new Message(SET_SEND_QUEUE).addInt(limit).addString(policy.name()));
+    }
+
+    /**
+     * Set the least severe level of log messages the agent publishes.
+     * Messages below it cost the agent a comparison and nothing more.
+     *
+     * @param level The level threshold
+     */
+    public void setLogLevel(ZreLogger.Level level) {
+        pipe.send(new Message(SET_LOG_LEVEL).addString(level.name()));
+    }
+
+    /**
+     * Publish log messages to a collector. Collectors that announce
+     * themselves in a peer's {@value ZreLogCollector#HEADER} header are
+     * published to as well.
+     *
+     * @param endpoint The collector's endpoint
+     */
+    public void setLogEndpoint(String endpoint) {
+        pipe.send(new Message(SET_LOG_ENDPOINT).addString(endpoint));
+    }
+
+    /**
+     * Spread peers over several threads, for nodes with very many peers.
+     * Each peer belongs to one shard, picked by its identity, which owns its
+     * socket, decodes its messages and checks it is alive. Shouts are sent
+     * by every shard at once. Events for one peer arrive in order, but
+     * events for peers in different shards may interleave. Call before
+     * {@link #start()}.
+     *
+     * @param shards The number of shards, 1 to do everything on one thread
+     */
+    public void setShards(int shards) {
+        pipe.send(new Message(SET_SHARDS).addInt(shards));
+    }
+
     public void setEndpoint(String endpoint) {
         pipe.send(new Message(SET_ENDPOINT).addString(endpoint));
     }
 
+    // Peer queries read the agent's latest directory snapshot, and never
+    // block on the agent. Returned lists and maps are read-only.
+
     public List<String> getPeers() {
-        pipe.send(new Message(PEERS));
-        return pipe.receiveMessage().popStrings();
+        return directory.get().getPeers();
     }
 
     public List<String> getPeersByGroup(String name) {
-        pipe.send(new Message(GROUP_PEERS).addString(name));
-        Message message = pipe.receiveMessage();
-        return message.isEmpty() ? null : message.popStrings();
+        return directory.get().getPeersByGroup(name);
     }
 
     public String getPeerName(String identity) {
-        pipe.send(new Message(PEER_NAME).addString(identity));
-        Message message = pipe.receiveMessage();
-        return message.isEmpty() ? null : message.popString();
+        ZrePeerDirectory.Entry peer = directory.get().getPeer(identity);
+        return peer == null ? null : peer.getName();
     }
 
     public String getPeerEndpoint(String identity) {
-        pipe.send(new Message(PEER_ENDPOINT).addString(identity));
-        Message message = pipe.receiveMessage();
-        return message.isEmpty() ? null : message.popString();
+        ZrePeerDirectory.Entry peer = directory.get().getPeer(identity);
+        return peer == null ? null : peer.getEndpoint();
     }
 
     public String getPeerHeader(String identity, String key) {
-        pipe.send(new Message(PEER_HEADER).addString(identity).addString(key));
-        Message message = pipe.receiveMessage();
-        return message.isEmpty() ? null : message.popString();
+        ZrePeerDirectory.Entry peer = directory.get().getPeer(identity);
+        return peer == null ? null : peer.getHeader(key, "");
     }
 
     public Map<String, String> getPeerHeaders(String identity) {
-        pipe.send(new Message(PEER_HEADERS).addString(identity));
-        Message message = pipe.receiveMessage();
-        return message.isEmpty() ? null : message.popMap();
+        ZrePeerDirectory.Entry peer = directory.get().getPeer(identity);
+        return peer == null ? null : peer.getHeaders();
+    }
+
+    /**
+     * Get the number of messages waiting to be sent to a peer.
+     *
+     * @param identity The peer identity
+     * @return The queue depth, or 0 if the peer is unknown
+     */
+    public int getPeerQueueDepth(String identity) {
+        ZrePeerDirectory.Entry peer = directory.get().getPeer(identity);
+        return peer != null ? peer.getQueueDepth() : 0;
     }
 
     public List<String> getPeerGroups(String identity) {
-        pipe.send(new Message(PEER_GROUPS).addString(identity));
-        Message message = pipe.receiveMessage();
-        return message.isEmpty() ? null : message.popStrings();
+        ZrePeerDirectory.Entry peer = directory.get().getPeer(identity);
+        return peer == null ? null : peer.getGroups();
+    }
+
+    /**
+     * Get the agent's counters and histograms. They are updated live, and
+     * can be read at any time without blocking the agent.
+     *
+     * @return The metrics
+     */
+    public ZreMetrics getMetrics() {
+        return metrics;
     }
 
     public List<String> getOwnGroups() {
@@ -146,8 +328,19 @@ public class ZreInterface {
         pipe.send(new Message(START));
     }
 
+    /**
+     * Leave the network, disconnecting from every peer. A stopped node
+     * can't be started again, only closed.
+     */
     public void stop() {
+        if (stopped) {
+            return;
+        }
+        stopped = true;
+
+        // Wait for the agent to let go, so it can then be closed
         pipe.send(new Message(STOP));
+        pipe.receiveMessage();
     }
 
     public boolean connect(String address) {
@@ -171,6 +364,36 @@ public class ZreInterface {
         pipe.send(message.pushString(group).pushFrame(SHOUT));
     }
 
+    /**
+     * Whisper many messages to a peer in one pipe command. The first frame
+     * of each message is sent, as with {@link #whisper(String, Message)}.
+     *
+     * @param peer The peer identity
+     * @param messages The messages to send
+     */
+    public void whisperBatch(String peer, List<Message> messages) {
+        Message batch = new Message(WHISPER_BATCH).addString(peer);
+        for (Message message : messages) {
+            batch.addFrame(message.getFirstFrame());
+        }
+        pipe.send(batch);
+    }
+
+    /**
+     * Shout many messages to a group in one pipe command. The first frame
+     * of each message is sent, as with {@link #shout(String, Message)}.
+     *
+     * @param group The group name
+     * @param messages The messages to send
+     */
+    public void shoutBatch(String group, List<Message> messages) {
+        Message batch = new Message(SHOUT_BATCH).addString(group);
+        for (Message message : messages) {
+            batch.addFrame(message.getFirstFrame());
+        }
+        pipe.send(batch);
+    }
+
     public void setHeader(String name, String value) {
         pipe.send(new Message(SET_HEADER).addString(name).addString(value));
     }
@@ -189,7 +412,35 @@ public class ZreInterface {
 
     public ZreEvent receive() {
         Message message = inbox.receiveMessage();
-        return message == null ? null : ZreEvent.newZreEvent(message);
+        return message == null ? null : newEvent(message);
+    }
+
+    /**
+     * Get the events received on the inbox, as a reactive stream. Events
+     * are only read from the inbox as subscribers ask for them, and once
+     * called, events must not be received any other way.
+     *
+     * @return The publisher, the same one on every call
+     */
+    public ZreEventPublisher events() {
+        return events;
+    }
+
+    /**
+     * Build an event from a message received on the inbox.
+     *
+     * @param message The event message from the agent
+     * @return The event
+     */
+    ZreEvent newEvent(Message message) {
+        return ZreEvent.newZreEvent(message, directory.get());
+    }
+
+    /**
+     * @return The inproc endpoint the inbox is bound to
+     */
+    String getInboxEndpoint() {
+        return inboxEndpoint;
     }
 
     public Message receiveMessage() {
@@ -197,6 +448,16 @@ public class ZreInterface {
     }
 
     public void close() {
-        context.close();
+        // Let go of the inbox before it is closed
+        events.close();
+
+        stop();
+        if (ownsContext) {
+            context.close();
+        } else {
+            agent.onClose();
+            pipe.close();
+            inbox.close();
+        }
     }
 }
@@ -1,65 +1,76 @@
 package org.jyre;
 
-import org.jyre.protocol.HelloMessage;
-import org.jyre.protocol.JoinMessage;
-import org.jyre.protocol.LeaveMessage;
-import org.jyre.protocol.PingMessage;
-import org.jyre.protocol.PingOkMessage;
-import org.jyre.protocol.ShoutMessage;
-import org.jyre.protocol.WhisperMessage;
-import org.jyre.protocol.ZreCodec;
-import org.jyre.protocol.ZreSocket;
 import org.zeromq.api.Backgroundable;
 import org.zeromq.api.Context;
 import org.zeromq.api.LoopAdapter;
 import org.zeromq.api.Message;
 import org.zeromq.api.Message.Frame;
+import org.zeromq.api.MessageFlag;
 import org.zeromq.api.Pollable;
 import org.zeromq.api.PollerType;
 import org.zeromq.api.Reactor;
 import org.zeromq.api.Socket;
 import org.zeromq.api.SocketType;
-import org.zeromq.jzmq.UdpSocket;
 
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.SelectableChannel;
-import java.nio.charset.Charset;
-import java.nio.charset.StandardCharsets;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.UUID;
-
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+/**
+ * Runs an interface's node: the pipe, the beacons and the inbox.
+ * <p>
+ * Peers themselves are looked after by one or more {@link ZreShard}s. The
+ * agent hands each shard the beacons and inbox messages of its peers, and
+ * forwards commands to the shards they concern: a whisper to the shard of
+ * its peer, a shout to every shard, so each shard sends to its own share of
+ * the group at the same time.
+ */
 class ZreInterfaceAgent implements Backgroundable, ZreConstants {
-    private static final Frame ENTER   = Frame.of("ENTER");
-    private static final Frame JOIN    = Frame.of("JOIN");
-    private static final Frame WHISPER = Frame.of("WHISPER");
-    private static final Frame SHOUT   = Frame.of("SHOUT");
-    private static final Frame LEAVE   = Frame.of("LEAVE");
-    private static final Frame EXIT    = Frame.of("EXIT");
-    private static final Frame EVASIVE = Frame.of("EVASIVE");
     private static final Frame OK      = Frame.of("OK");
     private static final Frame ERROR   = Frame.of("ERROR");
 
+    private final String outboxEndpoint;
+    private final AtomicReference<ZrePeerDirectory> directory;
+    private final ZreMetrics metrics;
+
     private Context context;
     private Socket pipe;
     private Socket inbox;
     private Socket outbox;
-    private ZreSocket zre;
-    private UdpSocket udp;
+    private BeaconSocket udp;
     private UdpBeacon beacon;
     private Reactor reactor;
     private ZreLogger logger;
     private PipeHandler pipeHandler;
     private InboxHandler inboxHandler;
     private BeaconHandler beaconHandler;
-    private PingHandler pingHandler;
+    private BeaconTimer beaconTimer;
+    private ShardHandler shardHandler;
+
+    /**
+     * Our shards, once started, and their pipes if they run on their own
+     * threads. A lone shard runs on our reactor and has no pipe.
+     */
+    private int shardCount = 1;
+    private ZreShard[] shards;
+    private Socket[] shardPipes;
 
     /**
-     * Our endpoint.
+     * Our endpoint, and whether the caller set it rather than us working
+     * it out from the beacon socket.
      */
     private String endpoint;
+    private boolean endpointSet;
 
     /**
      * Our port.
@@ -91,6 +102,30 @@ class ZreInterfaceAgent implements Backgroundable, ZreConstants {
      */
     private boolean beacons = true;
 
+    /**
+     * Flag to specify whether beacons from peers that sent us a message
+     * within the current beacon interval are skipped.
+     */
+    private boolean ignoreActiveBeacons = false;
+
+    /**
+     * How beacons are addressed, and the port they are sent to.
+     */
+    private BeaconSocket.Mode discovery = BeaconSocket.Mode.BROADCAST;
+    private int beaconPort = PING_PORT;
+
+    /**
+     * Multicast group, TTL and interface, for multicast discovery.
+     */
+    private String multicastGroup;
+    private int multicastTtl;
+    private String multicastInterface;
+
+    /**
+     * Seed hosts, for unicast discovery.
+     */
+    private List<String> seeds = new ArrayList<>();
+
     /**
      * Amount of time before peer is considered evasive, in milliseconds.
      */
@@ -101,16 +136,39 @@ class ZreInterfaceAgent implements Backgroundable, ZreConstants {
      */
     private int expiredTimeout = PEER_EXPIRED;
 
+    /**
+     * Beacon interval floor and ceiling, and the current interval between
+     * them, in milliseconds. Beacons start at the floor and back off
+     * towards the ceiling while no peers come or go. Peers are checked for
+     * liveness at the floor interval.
+     */
+    private int interval = PING_INTERVAL;
+    private int maxInterval = BEACON_MAX;
+    private int beaconInterval = PING_INTERVAL;
+
+    /**
+     * When the next beacon is due, from System.nanoTime(), once started.
+     */
+    private long beaconAt;
+    private boolean started;
+
+    /**
+     * Set once we have left the network, which is final, and once our
+     * reactor has been stopped and our pipe closed.
+     */
+    private boolean stopped;
+    private final AtomicBoolean closed = new AtomicBoolean();
 
     /**
-     * Known peers, by identity.
+     * Limit and overflow policy of each peer's send queue.
      */
-    private Map<String, ZrePeer> peers = new HashMap<>();
+    private int sendQueueLimit = PEER_QUEUE;
+    private ZreSendPolicy sendPolicy = ZreSendPolicy.DISCONNECT;
 
     /**
-     * Groups that our peers are in, by group name.
+     * Maximum number of pipe commands handled per reactor wakeup.
      */
-    private Map<String, ZreGroup> peerGroups = new HashMap<>();
+    private int pipeBudget = PIPE_BUDGET;
 
     /**
      * Groups that we are in, by name.
@@ -122,30 +180,43 @@ class ZreInterfaceAgent implements Backgroundable, ZreConstants {
      */
     private Map<String, String> headers = new HashMap<>();
 
+    /**
+     * Create an agent for an interface.
+     *
+     * @param outboxEndpoint The inproc endpoint the interface receives events on
+     * @param directory Reference the agent publishes peer snapshots to
+     * @param metrics Metrics the agent counts its traffic in
+     */
+    public ZreInterfaceAgent(String outboxEndpoint, AtomicReference<ZrePeerDirectory> directory, ZreMetrics metrics) {
+        this.outboxEndpoint = outboxEndpoint;
+        this.directory = directory;
+        this.metrics = metrics;
+    }
+
     @Override
     public void run(Context context, Socket socket) {
         this.context = context;
 
         // Bind to dummy address first, then random port
-        this.inbox = context.buildSocket(SocketType.ROUTER).bind(String.format("inproc://inbox-%s", toString()));
+        this.inbox = context.buildSocket(SocketType.ROUTER).bind(outboxEndpoint + "-router");
         this.port = inbox.getZMQSocket().bindToRandomPort("tcp://*", 0xc000, 0xffff);
         try {
-            this.udp = new UdpSocket(PING_PORT);
+            this.udp = openBeaconSocket();
         } catch (IOException ex) {
             throw new RuntimeException("Unable to initialize DatagramChannel for UDP beacon:", ex);
         }
         this.pipe = socket;
-        this.outbox = context.buildSocket(SocketType.PAIR).connect("inproc://inbox");
-        this.zre = new ZreSocket(inbox);
+        this.outbox = context.buildSocket(SocketType.PUSH).connect(outboxEndpoint);
         this.beacon = new UdpBeacon(UUID.randomUUID(), port);
         this.identity = beacon.getIdentity();
         this.name = identity;
         this.endpoint = String.format("tcp://%s:%d", udp.getHost(), port);
-        this.logger = new ZreLogger(context.buildSocket(SocketType.PUB).connect(endpoint), identity);
+        this.logger = new ZreLogger(context, identity);
         this.pipeHandler = new PipeHandler();
         this.inboxHandler = new InboxHandler();
         this.beaconHandler = new BeaconHandler();
-        this.pingHandler = new PingHandler();
+        this.beaconTimer = new BeaconTimer();
+        this.shardHandler = new ShardHandler();
 
         // Create a Reactor for pipe, inbox, and beacon sockets
         this.reactor = context.buildReactor()
@@ -156,182 +227,293 @@ class ZreInterfaceAgent implements Backgroundable, ZreConstants {
         reactor.start();
     }
 
+    /**
+     * Stop our reactor and close everything. Called by the interface once
+     * we have replied to its STOP, or by the context as it closes.
+     */
     @Override
     public void onClose() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+
+        // Only another thread can stop our reactor, and only once it next
+        // wakes up, so this waits for the tick left behind by STOP
+        reactor.stop();
         stop();
+        pipe.close();
     }
 
     public void start() {
+        if (stopped) {
+            return;
+        }
+
+        startShards();
         reactor.addPollable(context.newPollable(inbox, PollerType.POLL_IN), inboxHandler);
         reactor.addPollable(context.newPollable(udp.getChannel(), PollerType.POLL_IN), beaconHandler);
-        reactor.addTimer(PING_INTERVAL, -1, pingHandler);
+        scheduleBeacon(beaconInterval);
+        started = true;
+    }
+
+    /**
+     * Create our shards, with a copy of everything set so far. A lone shard
+     * runs on our reactor and sends events on our outbox, so an unsharded
+     * node still does all its work on one thread.
+     */
+    private void startShards() {
+        ZrePeerDirectory.Publisher publisher = new ZrePeerDirectory.Publisher(directory, shardCount);
+        shards = new ZreShard[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            ZreHistogram loopTime = shardCount == 1 ? metrics.getLoopTime() : metrics.addShardLoopTime();
+            ZreShard shard = new ZreShard(i, outboxEndpoint, publisher, metrics, loopTime, logger);
+            shard.setSelf(identity, endpoint, name, status, ownGroups.keySet(), headers);
+            shard.setVerbose(verbose);
+            shard.setIgnoreActiveBeacons(ignoreActiveBeacons);
+            shard.setTimeouts(evasiveTimeout, expiredTimeout, beaconInterval);
+            shard.setInterval(interval);
+            shard.setSendQueue(sendQueueLimit, sendPolicy);
+            shards[i] = shard;
+        }
+
+        if (shardCount == 1) {
+            shards[0].start(context, reactor, outbox, this::resetBeaconInterval);
+            return;
+        }
+
+        shardPipes = new Socket[shardCount];
+        for (int i = 0; i < shardCount; i++) {
+            shardPipes[i] = context.fork(shards[i]);
+            reactor.addPollable(context.newPollable(shardPipes[i], PollerType.POLL_IN), shardHandler);
+        }
     }
 
+    /**
+     * Leave the network, and close everything but our pipe, which answers
+     * until we are closed.
+     */
     private void stop() {
-        for (ZrePeer peer : peers.values()) {
-            peer.disconnect();
+        if (stopped) {
+            return;
         }
+        stopped = true;
+
+        if (started) {
+            started = false;
+            reactor.cancel(inboxHandler);
+            reactor.cancel(beaconHandler);
+            reactor.cancel(beaconTimer);
+        }
+        stopShards();
 
-        reactor.stop();
         logger.close();
         outbox.close();
-        pipe.close();
-        zre.close();
+        inbox.close();
         udp.close();
     }
 
-    private ZrePeer getZrePeer(String identity, String endpoint) {
-        ZrePeer peer = getPeer(identity);
-        if (peer == null) {
-            peer = new ZrePeer(context, identity);
-
-            // Check for other peers on this endpoint
-            for (ZrePeer other : new ArrayList<>(peers.values())) {
-                if (other.getEndpoint().equals(endpoint)) {
-                    removeZrePeer(other);
-                }
-            }
-
-            putPeer(identity, peer);
-            peer.connect(this.identity, endpoint);
+    /**
+     * Stop, then reply so the interface can close us, see {@link #onClose()}.
+     */
+    private void onStop() {
+        stop();
+        reactor.addTimer(STOP_TICK, -1, (r, pollable) -> { });
+        pipe.send(new Message(ZreCommand.STOP.getFrame()));
+    }
 
-            // Handshake discovery by sending HELLO as first message
-            HelloMessage hello = new HelloMessage()
-                .withEndpoint(this.endpoint)
-                .withName(this.name)
-                .withGroups(new ArrayList<>(ownGroups.keySet()))
-                .withStatus(this.status)
-                .withHeaders(headers);
-            peer.send(hello);
+    /**
+     * Stop our shards. Each disconnects its peers before it replies, so no
+     * peer socket outlives the agent.
+     */
+    private void stopShards() {
+        if (shards == null) {
+            return;
+        }
 
-            logger.info(ZreLogger.Event.ENTER, peer.getIdentity(), "Peer %s connected to %s", peer.getIdentity(), this.identity);
+        ZreShard[] stopping = shards;
+        shards = null;
+        if (shardPipes == null) {
+            stopping[0].stop();
+            return;
         }
 
-        return peer;
+        reactor.cancel(shardHandler);
+        for (Socket shardPipe : shardPipes) {
+            shardPipe.send(new Message(ZreCommand.STOP.getFrame()));
+        }
+        for (Socket shardPipe : shardPipes) {
+            // Skip anything the shard sent before it saw the STOP
+            Message reply = shardPipe.receiveMessage();
+            while (reply != null && ZreCommand.getOpcode(reply.popFrame()) != ZreCommand.STOP.ordinal()) {
+                reply = shardPipe.receiveMessage();
+            }
+        }
+        for (int i = 0; i < stopping.length; i++) {
+            stopping[i].onClose();
+            shardPipes[i].close();
+        }
+        shardPipes = null;
     }
 
-    private ZrePeer putPeer(String identity, ZrePeer peer) {
-        return peers.put(identity, peer);
+    /**
+     * Hand a command to one shard, over its pipe or, for a lone shard,
+     * directly.
+     *
+     * @param shard The shard
+     * @param message The command, starting with its opcode
+     */
+    private void forward(int shard, Message message) {
+        if (shards == null) {
+            return;
+        } else if (shardPipes == null) {
+            shards[shard].execute(message);
+        } else {
+            shardPipes[shard].send(message);
+        }
     }
 
-    private ZrePeer getPeer(String identity) {
-        return peers.get(identity);
+    /**
+     * Hand a command to every shard. Each gets its own copy, as handling a
+     * command consumes its frames.
+     *
+     * @param command Builds the command, starting with its opcode
+     */
+    private void forwardAll(Supplier<Message> command) {
+        if (shards == null) {
+            return;
+        }
+
+        for (int i = 0; i < shards.length; i++) {
+            forward(i, command.get());
+        }
     }
 
-    private void removeZrePeer(ZrePeer peer) {
-        peer.disconnect();
+    /**
+     * Hand a command about one peer to the peer's shard.
+     *
+     * @param command The command
+     * @param message The rest of the command, starting with the peer identity
+     */
+    private void forwardToPeer(ZreCommand command, Message message) {
+        // Drop the message if we have no peers yet
+        if (shards == null) {
+            return;
+        }
+
+        int shard = shards.length == 1 ? 0 : ZreShard.getShard(message.getFirstFrame().getData(), shards.length);
+        forward(shard, message.pushFrame(command.getFrame()));
+    }
 
-        peers.remove(peer.getIdentity());
-        for (ZreGroup group : peerGroups.values()) {
-            peer.leave(group);
+    private BeaconSocket openBeaconSocket() throws IOException {
+        switch (discovery) {
+            case MULTICAST:
+                return BeaconSocket.multicast(beaconPort, multicastGroup, multicastTtl, multicastInterface);
+            case UNICAST:
+                return BeaconSocket.unicast(beaconPort, seeds);
+            case LOOPBACK:
+                return BeaconSocket.loopback(beaconPort);
+            default:
+                return BeaconSocket.broadcast(beaconPort);
         }
+    }
 
-        logger.info(ZreLogger.Event.EXIT, peer.getIdentity(), "Peer %s disconnected from %s", peer.getIdentity(), this.identity);
-        outbox.send(new Message(EXIT).addString(peer.getIdentity()).addString(peer.getName()));
+    private void scheduleBeacon(int delay) {
+        beaconAt = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(delay);
+        reactor.addTimer(delay, 1, beaconTimer);
     }
 
-    private ZreGroup getZreGroup(String name) {
-        ZreGroup group = peerGroups.get(name);
-        if (group == null) {
-            group = new ZreGroup(name);
-            peerGroups.put(name, group);
+    /**
+     * A peer came or went, so beacon at the floor interval again until the
+     * peer set settles. A beacon already due sooner is left alone, so
+     * constant churn can't keep pushing beacons back.
+     */
+    private void resetBeaconInterval() {
+        beaconInterval = interval;
+        updateTimeouts();
+        if (started && beaconAt - System.nanoTime() > TimeUnit.MILLISECONDS.toNanos(interval)) {
+            reactor.cancel(beaconTimer);
+            scheduleBeacon(interval);
         }
+    }
 
-        return group;
+    /**
+     * Peers beacon less often while the peer set is stable, so shards
+     * extend the evasive and expired timeouts, by up to the current beacon
+     * interval.
+     */
+    private void updateTimeouts() {
+        if (shards != null) {
+            for (ZreShard shard : shards) {
+                shard.setTimeouts(evasiveTimeout, expiredTimeout, beaconInterval);
+            }
+        }
     }
 
     private class PipeHandler extends LoopAdapter {
+        private final Command[] commands = new Command[ZreCommand.values().length];
+
+        public PipeHandler() {
+            commands[ZreCommand.UUID.ordinal()]                = message -> onUuid();
+            commands[ZreCommand.NAME.ordinal()]                = message -> onName();
+            commands[ZreCommand.SET_NAME.ordinal()]            = this::onSetName;
+            commands[ZreCommand.SET_HEADER.ordinal()]          = this::onSetHeader;
+            commands[ZreCommand.SET_VERBOSE.ordinal()]         = message -> onSetVerbose();
+            commands[ZreCommand.SET_BEACONS_ENABLED.ordinal()] = this::onSetBeaconsEnabled;
+            commands[ZreCommand.SET_PORT.ordinal()]            = this::onSetPort;
+            commands[ZreCommand.SET_EVASIVE_TIMEOUT.ordinal()] = this::onSetEvasiveTimeout;
+            commands[ZreCommand.SET_EXPIRED_TIMEOUT.ordinal()] = this::onSetExpiredTimeout;
+            commands[ZreCommand.SET_INTERVAL.ordinal()]        = this::onSetInterval;
+            commands[ZreCommand.SET_ENDPOINT.ordinal()]        = this::onSetEndpoint;
+            commands[ZreCommand.OWN_GROUPS.ordinal()]          = message -> onOwnGroups();
+            commands[ZreCommand.START.ordinal()]               = message -> start();
+            commands[ZreCommand.STOP.ordinal()]                = message -> onStop();
+            commands[ZreCommand.CONNECT.ordinal()]             = this::onConnect;
+            commands[ZreCommand.JOIN.ordinal()]                = this::onJoin;
+            commands[ZreCommand.LEAVE.ordinal()]               = this::onLeave;
+            commands[ZreCommand.WHISPER.ordinal()]             = message -> forwardToPeer(ZreCommand.WHISPER, message);
+            commands[ZreCommand.SHOUT.ordinal()]               = this::onShout;
+            commands[ZreCommand.PUBLISH.ordinal()]             = this::onPublish;
+            commands[ZreCommand.WHISPER_BATCH.ordinal()]       = message -> forwardToPeer(ZreCommand.WHISPER_BATCH, message);
+            commands[ZreCommand.SHOUT_BATCH.ordinal()]         = this::onShoutBatch;
+            commands[ZreCommand.SET_PIPE_BUDGET.ordinal()]     = this::onSetPipeBudget;
+            commands[ZreCommand.SET_DISCOVERY.ordinal()]       = this::onSetDiscovery;
+            commands[ZreCommand.SET_MAX_INTERVAL.ordinal()]    = this::onSetMaxInterval;
+            commands[ZreCommand.SET_IGNORE_ACTIVE_BEACONS.ordinal()] = this::onSetIgnoreActiveBeacons;
+            commands[ZreCommand.SET_SEND_QUEUE.ordinal()]      = this::onSetSendQueue;
+            commands[ZreCommand.SET_LOG_LEVEL.ordinal()]       = this::onSetLogLevel;
+            commands[ZreCommand.SET_LOG_ENDPOINT.ordinal()]    = this::onSetLogEndpoint;
+            commands[ZreCommand.SET_SHARDS.ordinal()]          = this::onSetShards;
+        }
+
         @Override
         protected void execute(Reactor reactor, Socket socket) {
+            long start = System.nanoTime();
             Message message = pipe.receiveMessage();
-            if (message == null) {
-                return; // Interrupted
-            }
 
-            String command = message.popString();
-            switch (command) {
-                case "UUID":
-                    onUuid();
-                    break;
-                case "NAME":
-                    onName();
-                    break;
-                case "SET NAME":
-                    onSetName(message);
-                    break;
-                case "SET HEADER":
-                    onSetHeader(message);
-                    break;
-                case "SET VERBOSE":
-                    onSetVerbose();
-                    break;
-                case "SET BEACONS ENABLED":
-                    onSetBeaconsEnabled(message);
-                    break;
-                case "SET PORT":
-                    onSetPort(message);
-                    break;
-                case "SET EVASIVE TIMEOUT":
-                    onSetEvasiveTimeout(message);
-                    break;
-                case "SET EXPIRED TIMEOUT":
-                    onSetExpiredTimeout(message);
-                    break;
-                case "SET INTERVAL":
-                    onSetInterval(message);
-                    break;
-                case "SET ENDPOINT":
-                    onSetEndpoint(message);
-                    break;
-                case "PEERS":
-                    onPeers();
-                    break;
-                case "GROUP PEERS":
-                    onGroupPeers(message);
-                    break;
-                case "PEER NAME":
-                    onPeerName(message);
-                    break;
-                case "PEER ENDPOINT":
-                    onPeerEndpoint(message);
-                    break;
-                case "PEER HEADER":
-                    onPeerHeader(message);
-                    break;
-                case "PEER HEADERS":
-                    onPeerHeaders(message);
-                    break;
-                case "PEER GROUPS":
-                    onPeerGroups(message);
-                    break;
-                case "OWN GROUPS":
-                    onOwnGroups();
-                    break;
-                case "START":
-                    start();
-                    break;
-                case "STOP":
-                    stop();
-                    break;
-                case "CONNECT":
-                    onConnect(message);
-                    break;
-                case "JOIN":
-                    onJoin(message);
-                    break;
-                case "LEAVE":
-                    onLeave(message);
-                    break;
-                case "WHISPER":
-                    onWhisper(message);
-                    break;
-                case "SHOUT":
-                    onShout(message);
-                    break;
-                case "PUBLISH":
-                    onPublish(message);
+            // Drain whatever else is already queued, up to our budget, so a
+            // burst of commands costs one wakeup rather than one each
+            int handled = 0;
+            while (message != null) {
+                handled++;
+
+                // Dispatch on the opcode, ignoring anything we don't know
+                int opcode = ZreCommand.getOpcode(message.popFrame());
+                if (opcode >= 0 && opcode < commands.length) {
+                    commands[opcode].execute(message);
+                } else if (verbose) {
+                    System.err.printf("E: Discarding unknown command %d\n", opcode);
+                }
+
+                // Pipe is closed once we stop
+                if (opcode == ZreCommand.STOP.ordinal() || handled >= pipeBudget) {
                     break;
+                }
+
+                message = pipe.receiveMessage(MessageFlag.DONT_WAIT);
             }
+
+            metrics.getPipeBatch().record(handled);
+            metrics.getLoopTime().record(System.nanoTime() - start);
         }
 
         private void onUuid() {
@@ -344,115 +526,146 @@ class ZreInterfaceAgent implements Backgroundable, ZreConstants {
 
         private void onSetName(Message message) {
             name = message.popString();
+            forwardAll(() -> new Message(ZreCommand.SET_NAME.getFrame()).addString(name));
         }
 
         private void onSetHeader(Message message) {
-            headers.put(message.popString(), message.popString());
+            String key = message.popString();
+            String value = message.popString();
+            headers.put(key, value);
+            forwardAll(() -> new Message(ZreCommand.SET_HEADER.getFrame()).addString(key).addString(value));
         }
 
         private void onSetVerbose() {
             verbose = true;
+            if (shards != null) {
+                for (ZreShard shard : shards) {
+                    shard.setVerbose(true);
+                }
+            }
         }
 
         private void onSetBeaconsEnabled(Message message) {
             beacons = message.popString().equals("true");
         }
 
+        private void onSetIgnoreActiveBeacons(Message message) {
+            ignoreActiveBeacons = message.popString().equals("true");
+            if (shards != null) {
+                for (ZreShard shard : shards) {
+                    shard.setIgnoreActiveBeacons(ignoreActiveBeacons);
+                }
+            }
+        }
+
         private void onSetPort(Message message) {
-            int port = message.popInt();
-            udp.close();
+            // Our reactor already polls the beacon socket, so only before we start
+            if (!started) {
+                beaconPort = message.popInt();
+                reopenBeaconSocket();
+            }
+        }
+
+        private void onSetDiscovery(Message message) {
+            // Our reactor already polls the beacon socket, so only before we start
+            if (started) {
+                return;
+            }
+
+            discovery = BeaconSocket.Mode.valueOf(message.popString());
+            switch (discovery) {
+                case MULTICAST:
+                    multicastGroup = message.popString();
+                    multicastTtl = message.popInt();
+                    multicastInterface = message.isEmpty() ? null : message.popString();
+                    break;
+                case UNICAST:
+                    seeds.clear();
+                    while (!message.isEmpty()) {
+                        seeds.add(message.popString());
+                    }
+                    break;
+            }
+            reopenBeaconSocket();
+        }
+
+        private void reopenBeaconSocket() {
+            // Keep beaconing on the old socket if the new one won't open
+            BeaconSocket reopened;
             try {
-                udp = new UdpSocket(port);
+                reopened = openBeaconSocket();
             } catch (IOException ex) {
                 if (verbose) {
                     System.err.println("E: Unable to initialize DatagramChannel for UDP beacon");
                 }
+                return;
             }
-        }
 
-        private void onSetEvasiveTimeout(Message message) {
-            evasiveTimeout = message.popInt();
+            udp.close();
+            udp = reopened;
+
+            // Advertise the address peers can reach us on through this socket
+            if (!endpointSet) {
+                endpoint = String.format("tcp://%s:%d", udp.getHost(), port);
+            }
         }
 
-        private void onSetExpiredTimeout(Message message) {
-            expiredTimeout = message.popInt();
+        private void onSetPipeBudget(Message message) {
+            pipeBudget = Math.max(1, message.popInt());
         }
 
-        private void onSetInterval(Message message) {
-            int interval = message.popInt();
-            reactor.cancel(pingHandler);
-            reactor.addTimer(interval, -1, pingHandler);
+        private void onSetShards(Message message) {
+            // Peers can't move between shards, so only before we start
+            if (!started) {
+                shardCount = Math.max(1, message.popInt());
+            }
         }
 
-        private void onSetEndpoint(Message message) {
-            zre.getSocket().getZMQSocket().unbind(endpoint);
-            endpoint = message.popString();
-            zre.getSocket().getZMQSocket().bind(endpoint);
+        private void onSetEvasiveTimeout(Message message) {
+            evasiveTimeout = message.popInt();
+            updateTimeouts();
         }
 
-        private void onPeers() {
-            pipe.send(new Message().addStrings(new ArrayList<>(peers.keySet())));
+        private void onSetExpiredTimeout(Message message) {
+            expiredTimeout = message.popInt();
+            updateTimeouts();
         }
 
-        private void onGroupPeers(Message message) {
-            String name = message.popString();
-            ZreGroup group = peerGroups.get(name);
-            if (group != null) {
-                pipe.send(new Message().addStrings(new ArrayList<>(group.getPeers().keySet())));
-            } else {
-                pipe.send(new Message());
+        private void onSetInterval(Message message) {
+            interval = message.popInt();
+            beaconInterval = interval;
+            updateTimeouts();
+            forwardAll(() -> new Message(ZreCommand.SET_INTERVAL.getFrame()).addInt(interval));
+            if (started) {
+                reactor.cancel(beaconTimer);
+                scheduleBeacon(interval);
             }
         }
 
-        private void onPeerName(Message message) {
-            String identity = message.popString();
-            ZrePeer peer = getPeer(identity);
-            if (peer != null) {
-                pipe.send(new Message(peer.getName()));
-            } else {
-                pipe.send(new Message());
-            }
+        private void onSetMaxInterval(Message message) {
+            maxInterval = message.popInt();
         }
 
-        private void onPeerEndpoint(Message message) {
-            String identity = message.popString();
-            ZrePeer peer = getPeer(identity);
-            if (peer != null) {
-                pipe.send(new Message(peer.getEndpoint()));
-            } else {
-                pipe.send(new Message());
-            }
+        private void onSetSendQueue(Message message) {
+            sendQueueLimit = Math.max(1, message.popInt());
+            sendPolicy = ZreSendPolicy.valueOf(message.popString());
+            forwardAll(() -> new Message(ZreCommand.SET_SEND_QUEUE.getFrame()).addInt(sendQueueLimit).addString(sendPolicy.name()));
         }
 
-        private void onPeerHeader(Message message) {
-            String identity = message.popString();
-            String key = message.popString();
-            ZrePeer peer = getPeer(identity);
-            if (peer != null) {
-                pipe.send(new Message(peer.getHeader(key, "")));
-            } else {
-                pipe.send(new Message());
-            }
+        private void onSetLogLevel(Message message) {
+            logger.setLevel(ZreLogger.Level.valueOf(message.popString()));
         }
 
-        private void onPeerHeaders(Message message) {
-            String identity = message.popString();
-            ZrePeer peer = getPeer(identity);
-            if (peer != null) {
-                pipe.send(new Message().addMap(peer.getHeaders()));
-            } else {
-                pipe.send(new Message());
-            }
+        private void onSetLogEndpoint(Message message) {
+            logger.connect(message.popString());
         }
 
-        private void onPeerGroups(Message message) {
-            String identity = message.popString();
-            ZrePeer peer = getPeer(identity);
-            if (peer != null) {
-                pipe.send(new Message().addStrings(peer.getGroups()));
-            } else {
-                pipe.send(new Message());
-            }
+        private void onSetEndpoint(Message message) {
+            inbox.getZMQSocket().unbind(endpoint);
+            endpoint = message.popString();
+            endpointSet = true;
+            inbox.getZMQSocket().bind(endpoint);
+            forwardAll(() -> new Message(ZreCommand.SET_ENDPOINT.getFrame()).addString(endpoint));
         }
 
         private void onOwnGroups() {
@@ -482,10 +695,9 @@ class ZreInterfaceAgent implements Backgroundable, ZreConstants {
             if (!ownGroups.containsKey(name)) {
                 ownGroups.put(name, new ZreGroup(name));
 
-                JoinMessage join = new JoinMessage().withGroup(name).withStatus(incrementStatus());
-                for (ZrePeer peer : peers.values()) {
-                    peer.send(join);
-                }
+                // Each shard tells its own peers
+                int status = incrementStatus();
+                forwardAll(() -> new Message(ZreCommand.JOIN.getFrame()).addString(name).addInt(status));
 
                 logger.info(ZreLogger.Event.JOIN, null, "Peer %s joined group %s", identity, name);
             }
@@ -499,39 +711,36 @@ class ZreInterfaceAgent implements Backgroundable, ZreConstants {
             if (ownGroups.containsKey(name)) {
                 ownGroups.remove(name);
 
-                LeaveMessage leave = new LeaveMessage().withGroup(name).withStatus(incrementStatus());
-                for (ZrePeer peer : peers.values()) {
-                    peer.send(leave);
-                }
+                // Each shard tells its own peers
+                int status = incrementStatus();
+                forwardAll(() -> new Message(ZreCommand.LEAVE.getFrame()).addString(name).addInt(status));
 
                 logger.info(ZreLogger.Event.LEAVE, null, "Peer %s left group %s", identity, name);
             }
         }
 
-        private void onWhisper(Message message) {
-            // Get peer to send message to
-            String identity = message.popString();
-            ZrePeer peer = getPeer(identity);
-
-            // Send frame on out to peer's mailbox, drop message
-            // if peer doesn't exist (may have been destroyed)
-            if (peer != null) {
-                WhisperMessage whisper = new WhisperMessage().withContent(message.popFrame());
-                peer.send(whisper);
-            }
-        }
-
         private void onShout(Message message) {
-            // Get group to send message to
+            // Every shard sends to its own members of the group
             String name = message.popString();
-            ZreGroup group = peerGroups.get(name);
+            Frame content = message.popFrame();
+            forwardAll(() -> new Message(ZreCommand.SHOUT.getFrame()).addString(name).addFrame(content));
+        }
 
-            // Send frame on out to group's mailbox, drop message
-            // if group doesn't exist (may have been destroyed)
-            if (group != null) {
-                ShoutMessage shout = new ShoutMessage().withGroup(name).withContent(message.popFrame());
-                group.send(shout);
+        private void onShoutBatch(Message message) {
+            // Every shard sends to its own members of the group
+            String name = message.popString();
+            List<Frame> contents = new ArrayList<>();
+            while (!message.isEmpty()) {
+                contents.add(message.popFrame());
             }
+
+            forwardAll(() -> {
+                Message batch = new Message(ZreCommand.SHOUT_BATCH.getFrame()).addString(name);
+                for (Frame content : contents) {
+                    batch.addFrame(content);
+                }
+                return batch;
+            });
         }
 
         private void onPublish(Message message) {
@@ -547,187 +756,57 @@ class ZreInterfaceAgent implements Backgroundable, ZreConstants {
         }
     }
 
+    /**
+     * Handler for one pipe command.
+     */
+    private interface Command {
+        void execute(Message message);
+    }
+
     private class InboxHandler extends LoopAdapter {
         @Override
         protected void execute(Reactor reactor, Socket socket) {
-            ZreCodec.MessageType messageType = zre.receive();
-            if (messageType == null) {
-                return; // Interrupted
-            }
-
-            String identity = org.zyre.ZreInterface.normaliseIdentity(zre.getAddress().getData());
-
-            ZrePeer peer = getPeer(identity);
-            if (messageType == ZreCodec.MessageType.HELLO) {
-                // On HELLO we may create the peer if it's unknown
-                // On other commands the peer must already exist
-                peer = getZrePeer(identity, zre.getHello().getEndpoint());
-                peer.onReady();
-            } else if (messageType == ZreCodec.MessageType.PING_OK) {
-                // On PING-OK we may set the peer from EVASIVE back to READY
-                if (peer != null) {
-                    peer.onReady();
+            long start = System.nanoTime();
+            Message frames = inbox.receiveMessage();
+            if (frames != null) {
+                // A lone shard decodes on our thread, otherwise the
+                // message goes to its peer's shard still encoded
+                if (shardPipes == null) {
+                    shards[0].onInbox(frames);
+                } else {
+                    int shard = ZreShard.getShard(frames.getFirstFrame().getData(), shards.length);
+                    shardPipes[shard].send(frames.pushFrame(ZreShard.INBOX_FRAME));
                 }
             }
-
-            // Ignore command if peer isn't ready
-            if (peer == null || !peer.isReady()) {
-                if (verbose) {
-                    System.err.printf("E: Discarding %s from %s\n", messageType, peer == null ? identity : peer.getName());
-                }
-                return;
-            }
-
-            // Activity from peer resets peer timers
-            peer.onPing(evasiveTimeout, expiredTimeout);
-
-            // Now process each command
-            switch (messageType) {
-                case HELLO:
-                    onHello(peer);
-                    break;
-                case WHISPER:
-                    onWhisper(peer);
-                    break;
-                case SHOUT:
-                    onShout(peer);
-                    break;
-                case PING:
-                    onPing(peer);
-                    break;
-                case PING_OK:
-                    onPingOk(peer);
-                    break;
-                case JOIN:
-                    onJoin(peer);
-                    break;
-                case LEAVE:
-                    onLeave(peer);
-                    break;
-            }
-        }
-
-        private void onHello(ZrePeer peer) {
-            HelloMessage hello = zre.getHello();
-            if (!checkSequence(peer, hello.getSequence())) {
-                return;
-            }
-
-            peer.setName(hello.getName());
-            peer.setGroups(hello.getGroups());
-            peer.setHeaders(hello.getHeaders());
-
-            // Tell the caller about the new peer
-            outbox.send(new Message(ENTER).addString(peer.getIdentity()).addString(peer.getName()));
-
-            // Join peer to listed groups
-            for (String name : hello.getGroups()) {
-                ZreGroup group = getZreGroup(name);
-                peer.join(group);
-
-                // Now tell the caller about the peers group
-                outbox.send(new Message(JOIN).addString(peer.getIdentity()).addString(peer.getName()).addString(group.getName()));
-            }
-
-            // Hello command holds latest status of peer
-            peer.setStatus(hello.getStatus());
-
-            // Store peer headers for future reference
-            peer.setHeaders(hello.getHeaders());
-        }
-
-        private void onWhisper(ZrePeer peer) {
-            WhisperMessage whisper = zre.getWhisper();
-            if (!checkSequence(peer, whisper.getSequence())) {
-                return;
-            }
-
-            outbox.send(new Message(WHISPER).addString(peer.getIdentity()).addString(peer.getName()).addFrame(whisper.getContent()));
-        }
-
-        private void onShout(ZrePeer peer) {
-            ShoutMessage shout = zre.getShout();
-            if (!checkSequence(peer, shout.getSequence())) {
-                return;
-            }
-
-            outbox.send(new Message(SHOUT).addString(peer.getIdentity()).addString(peer.getName()).addString(shout.getGroup()).addFrame(shout.getContent()));
-        }
-
-        private void onPing(ZrePeer peer) {
-            PingMessage ping = zre.getPing();
-            checkSequence(peer, ping.getSequence());
-
-            peer.send(new PingOkMessage());
-        }
-
-        private void onPingOk(ZrePeer peer) {
-            PingOkMessage pingOk = zre.getPingOk();
-            checkSequence(peer, pingOk.getSequence());
-        }
-
-        private void onJoin(ZrePeer peer) {
-            JoinMessage join = zre.getJoin();
-            if (!checkSequence(peer, join.getSequence())) {
-                return;
-            }
-
-            String name = join.getGroup();
-            ZreGroup group = getZreGroup(name);
-            peer.join(group);
-            assert (join.getStatus() == peer.getStatus());
-
-            // Now tell the caller about the peer joined a group
-            outbox.send(new Message(JOIN).addString(peer.getIdentity()).addString(peer.getName()).addString(group.getName()));
-        }
-
-        private void onLeave(ZrePeer peer) {
-            LeaveMessage leave = zre.getLeave();
-            if (!checkSequence(peer, leave.getSequence())) {
-                return;
-            }
-
-            String name = leave.getGroup();
-            ZreGroup group = getZreGroup(name);
-            peer.leave(group);
-            assert (leave.getStatus() == peer.getStatus());
-
-            // Now tell the caller about the peer joined a group
-            outbox.send(new Message(LEAVE).addString(peer.getIdentity()).addString(peer.getName()).addString(group.getName()));
-        }
-
-        private boolean checkSequence(ZrePeer peer, int sequence) {
-            boolean isValid = peer.isValidSequence(sequence);
-            if (!isValid) {
-                logger.error(ZreLogger.Event.OTHER, peer.getIdentity(), "Peer %s lost messages from %s", identity, peer.getIdentity());
-                removeZrePeer(peer);
-            }
-
-            return isValid;
+            metrics.getLoopTime().record(System.nanoTime() - start);
         }
     }
 
     private class BeaconHandler extends LoopAdapter {
-        private ByteBuffer buffer = ByteBuffer.allocate(UdpBeacon.BEACON_SIZE);
+        private final ByteBuffer buffer = ByteBuffer.allocate(UdpBeacon.BEACON_SIZE);
+        private final UdpBeaconView message = new UdpBeaconView();
 
         @Override
         protected void execute(Reactor reactor, SelectableChannel channel) {
+            long start = System.nanoTime();
             try {
                 int size = udp.receive(buffer);
-
-                // Ignore invalid beacons
-                UdpBeacon message = new UdpBeacon(buffer);
-                if (size == UdpBeacon.BEACON_SIZE
-                        && message.getProtocol().equals(UdpBeacon.BEACON_PROTOCOL)
-                        && message.getVersion() == UdpBeacon.BEACON_VERSION
-                        && !message.getUuid().equals(beacon.getUuid())) {
-                    ZrePeer peer = getZrePeer(message.getIdentity(), String.format("tcp://%s:%d", udp.getFrom(), message.getPort()));
-                    if (message.getPort() == 0) {
-                        removeZrePeer(peer);
-                    } else if (peer.isReady()) {
-                        peer.onPing(evasiveTimeout, expiredTimeout);
-                    } else if (verbose) {
-                        System.err.printf("E: Ignoring beacon from %s in state %s\n", peer.getName(), peer.getState());
+                if (size < 0) {
+                    return;
+                }
+                metrics.add(ZreMetrics.Counter.BEACONS_RECEIVED, 1);
+
+                // Ignore invalid beacons and our own
+                message.wrap(buffer, size);
+                if (!message.isValid()) {
+                    metrics.add(ZreMetrics.Counter.BEACONS_REJECTED, 1);
+                } else if (!isOwnBeacon()) {
+                    if (shardPipes == null) {
+                        shards[0].onBeacon(message, udp.getFrom());
+                    } else {
+                        int shard = ZreShard.getShard(message.getMostSignificantBits(), message.getLeastSignificantBits(), shards.length);
+                        Frame data = Frame.of(Arrays.copyOf(buffer.array(), size));
+                        shardPipes[shard].send(new Message(ZreShard.BEACON_FRAME).addFrame(data).addString(udp.getFrom()));
                     }
                 }
             } catch (IOException ex) {
@@ -736,21 +815,35 @@ class ZreInterfaceAgent implements Backgroundable, ZreConstants {
                 }
             } finally {
                 buffer.clear();
+                metrics.getLoopTime().record(System.nanoTime() - start);
             }
         }
+
+        private boolean isOwnBeacon() {
+            UUID uuid = beacon.getUuid();
+            return message.getMostSignificantBits() == uuid.getMostSignificantBits()
+                && message.getLeastSignificantBits() == uuid.getLeastSignificantBits();
+        }
     }
 
-    private class PingHandler extends LoopAdapter {
+    private class BeaconTimer extends LoopAdapter {
         @Override
         public void execute(Reactor reactor, Pollable pollable) {
+            long start = System.nanoTime();
             sendUdpBeacon();
-            pingPeers();
+
+            // Back off while the peer set is stable
+            beaconInterval = Math.max(interval, Math.min(beaconInterval * 2, maxInterval));
+            updateTimeouts();
+            scheduleBeacon(beaconInterval);
+            metrics.getLoopTime().record(System.nanoTime() - start);
         }
 
         private void sendUdpBeacon() {
             if (beacons) {
                 try {
                     udp.send(beacon.getBuffer());
+                    metrics.add(ZreMetrics.Counter.BEACONS_SENT, 1);
                 } catch (IOException ex) {
                     if (verbose) {
                         System.err.println("E: Unable to send UDP beacon");
@@ -758,21 +851,20 @@ class ZreInterfaceAgent implements Backgroundable, ZreConstants {
                 }
             }
         }
+    }
 
-        private void pingPeers() {
-            for (ZrePeer peer : new ArrayList<>(peers.values())) {
-                String identity = peer.getIdentity();
-                peer.onWake();
-
-                if (peer.isExpired()) {
-                    removeZrePeer(peer);
-                } else if (peer.isEvasive()) {
-                    peer.send(new PingMessage());
-
-                    logger.info(ZreLogger.Event.OTHER, identity, "Peer %s is being evasive", identity);
-                    outbox.send(new Message(EVASIVE).addString(peer.getIdentity()).addString(peer.getName()));
-                }
+    /**
+     * Handles messages from shards that run on their own threads.
+     */
+    private class ShardHandler extends LoopAdapter {
+        @Override
+        protected void execute(Reactor reactor, Socket socket) {
+            long start = System.nanoTime();
+            Message message = socket.receiveMessage(MessageFlag.DONT_WAIT);
+            if (message != null && ZreCommand.getOpcode(message.popFrame()) == ZreShard.CHANGED) {
+                resetBeaconInterval();
             }
+            metrics.getLoopTime().record(System.nanoTime() - start);
         }
     }
 }
@@ -0,0 +1,94 @@
+package org.jyre;
+
+import org.jyre.protocol.ZreLogCodec;
+import org.jyre.protocol.ZreLogSocket;
+import org.zeromq.api.Context;
+import org.zeromq.api.Socket;
+import org.zeromq.api.SocketType;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+
+/**
+ * Collects log messages published by nodes, and appends them to a log
+ * for {@link ZreLogReader}.
+ * <p>
+ * Nodes publish to the collector once told its endpoint, either with
+ * {@link ZreInterface#setLogEndpoint(String)} or by seeing it in the
+ * {@value #HEADER} header of a peer, which {@link #main(String[])} sets.
+ */
+public class ZreLogCollector implements Closeable {
+    /**
+     * Header a collector announces its endpoint in.
+     */
+    public static final String HEADER = "X-ZRELOG";
+
+    private final ZreLogSocket socket;
+    private final ZreLogWriter writer;
+
+    /**
+     * Bind a collector.
+     *
+     * @param context The context to create the socket in
+     * @param endpoint The endpoint to bind to
+     * @param directory The log directory
+     */
+    public ZreLogCollector(Context context, String endpoint, Path directory) throws IOException {
+        this.writer = new ZreLogWriter(directory);
+
+        Socket socket = context.buildSocket(SocketType.SUB).bind(endpoint);
+        socket.getZMQSocket().subscribe(new byte[0]);
+        this.socket = new ZreLogSocket(socket);
+    }
+
+    /**
+     * Append messages to the log until interrupted or the context closes.
+     * Malformed messages are dropped.
+     */
+    public void run() throws IOException {
+        while (!Thread.currentThread().isInterrupted()) {
+            ZreLogCodec.MessageType type = socket.receive();
+            if (type == null) {
+                if (socket.getCodec().getRejection() != null) {
+                    continue;
+                }
+                break; // Interrupted
+            }
+
+            writer.append(socket.getLog());
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            socket.close();
+        } finally {
+            writer.close();
+        }
+    }
+
+    /**
+     * Run a collector, and announce it to every node on the network.
+     * <p>
+     * Usage: ZreLogCollector directory endpoint, where the endpoint is one
+     * other nodes can reach, e.g. tcp://192.168.1.10:5671
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 2) {
+            System.err.println("Usage: ZreLogCollector directory endpoint");
+            System.exit(1);
+        }
+
+        ZreInterface inf = new ZreInterface();
+        inf.setHeader(HEADER, args[1]);
+        try (ZreLogCollector collector = new ZreLogCollector(inf.getContext(), args[1], Paths.get(args[0]))) {
+            inf.start();
+            collector.run();
+        } finally {
+            inf.close();
+        }
+    }
+}
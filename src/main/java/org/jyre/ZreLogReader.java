@@ -0,0 +1,234 @@
+package org.jyre;
+
+import org.jyre.protocol.LogMessage;
+import org.jyre.protocol.ZreLogSocket;
+
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.function.Consumer;
+
+/**
+ * Reads log messages back from a log written by {@link ZreLogWriter}.
+ * <p>
+ * Records can be filtered by node, peer, event and time range. Filters are
+ * checked against the fixed fields in place, so only matching records are
+ * decoded. A log can be read while a collector is still writing it.
+ * <p>
+ * Nodes and peers are logged as a 16 bit hash of their identity, see
+ * {@link #hash(String)}.
+ */
+public class ZreLogReader {
+    private final Path directory;
+    private int node = -1;
+    private int peer = -1;
+    private int event = -1;
+    private long from = Long.MIN_VALUE;
+    private long to = Long.MAX_VALUE;
+
+    public ZreLogReader(Path directory) {
+        this.directory = directory;
+    }
+
+    /**
+     * Only read messages logged by a node.
+     *
+     * @param node The hash of the node's identity
+     * @return This reader
+     */
+    public ZreLogReader withNode(int node) {
+        this.node = node;
+        return this;
+    }
+
+    /**
+     * Only read messages about a peer.
+     *
+     * @param peer The hash of the peer's identity
+     * @return This reader
+     */
+    public ZreLogReader withPeer(int peer) {
+        this.peer = peer;
+        return this;
+    }
+
+    /**
+     * Only read messages for one event.
+     *
+     * @param event The event
+     * @return This reader
+     */
+    public ZreLogReader withEvent(ZreLogger.Event event) {
+        this.event = event.value();
+        return this;
+    }
+
+    /**
+     * Only read messages logged within a time range.
+     *
+     * @param from The earliest time, inclusive, in milliseconds since the epoch
+     * @param to The latest time, exclusive, in milliseconds since the epoch
+     * @return This reader
+     */
+    public ZreLogReader withTimeRange(long from, long to) {
+        this.from = from;
+        this.to = to;
+        return this;
+    }
+
+    /**
+     * Read matching messages, oldest segment first.
+     *
+     * @return The messages
+     */
+    public List<LogMessage> read() throws IOException {
+        List<LogMessage> messages = new ArrayList<>();
+        read(messages::add);
+        return messages;
+    }
+
+    /**
+     * Pass matching messages to a consumer, oldest segment first.
+     *
+     * @param consumer The consumer, given a new message for each record
+     */
+    public void read(Consumer<LogMessage> consumer) throws IOException {
+        for (Path path : ZreLogWriter.getSegments(directory)) {
+            try (FileChannel channel = FileChannel.open(path, StandardOpenOption.READ)) {
+                MappedByteBuffer buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+                if (buffer.limit() < ZreLogWriter.HEADER_SIZE || buffer.getLong(0) != ZreLogWriter.MAGIC) {
+                    throw new IOException("Not a ZRE log segment: " + path);
+                }
+
+                read(buffer, consumer);
+            }
+        }
+    }
+
+    private void read(MappedByteBuffer buffer, Consumer<LogMessage> consumer) {
+        int end = ZreLogWriter.getEnd(buffer);
+        int position = ZreLogWriter.HEADER_SIZE;
+        while (position < end) {
+            int length = buffer.getInt(position);
+            int level = buffer.get(position + 4) & 0xff;
+            int event = buffer.get(position + 5) & 0xff;
+            int node = buffer.getShort(position + 6) & 0xffff;
+            int peer = buffer.getShort(position + 8) & 0xffff;
+            long time = buffer.getLong(position + 10);
+
+            if ((this.node < 0 || this.node == node)
+                && (this.peer < 0 || this.peer == peer)
+                && (this.event < 0 || this.event == event)
+                && time >= from && time < to) {
+                byte[] data = new byte[length - (ZreLogWriter.RECORD_SIZE - 4)];
+                for (int i = 0; i < data.length; i++) {
+                    data[i] = buffer.get(position + ZreLogWriter.RECORD_SIZE + i);
+                }
+
+                consumer.accept(new LogMessage()
+                    .withLevel(level)
+                    .withEvent(event)
+                    .withNode(node)
+                    .withPeer(peer)
+                    .withTime(time)
+                    .withData(new String(data, StandardCharsets.UTF_8)));
+            }
+
+            position += 4 + length;
+        }
+    }
+
+    /**
+     * Hash an identity the way it is logged.
+     *
+     * @param identity The identity
+     * @return The hash
+     */
+    public static int hash(String identity) {
+        return identity.hashCode() & 0xffff;
+    }
+
+    /**
+     * Print a log, optionally filtered.
+     * <p>
+     * Usage: ZreLogReader directory [node=identity] [peer=identity] [event=ENTER] [from=millis] [to=millis]
+     */
+    public static void main(String[] args) throws IOException {
+        if (args.length < 1) {
+            System.err.println("Usage: ZreLogReader directory [node=identity] [peer=identity] [event=ENTER] [from=millis] [to=millis]");
+            System.exit(1);
+        }
+
+        ZreLogReader reader = new ZreLogReader(Paths.get(args[0]));
+        long from = Long.MIN_VALUE;
+        long to = Long.MAX_VALUE;
+        for (int i = 1; i < args.length; i++) {
+            int equals = args[i].indexOf('=');
+            String key = args[i].substring(0, equals);
+            String value = args[i].substring(equals + 1);
+            switch (key) {
+                case "node":
+                    reader.withNode(hash(value));
+                    break;
+                case "peer":
+                    reader.withPeer(hash(value));
+                    break;
+                case "event":
+                    reader.withEvent(ZreLogger.Event.valueOf(value));
+                    break;
+                case "from":
+                    from = Long.parseLong(value);
+                    break;
+                case "to":
+                    to = Long.parseLong(value);
+                    break;
+                default:
+                    throw new IllegalArgumentException("Unknown filter: " + key);
+            }
+        }
+        reader.withTimeRange(from, to);
+
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss.SSS");
+        reader.read(message -> System.out.printf("%s %s: [%04X] [%04X] - %s %s\n",
+            format.format(new Date(message.getTime())),
+            getLevel(message.getLevel()),
+            message.getNode(),
+            message.getPeer(),
+            getEvent(message.getEvent()),
+            message.getData()));
+    }
+
+    private static String getLevel(int level) {
+        switch (level) {
+            case ZreLogSocket.LEVEL_ERROR:
+                return "E";
+            case ZreLogSocket.LEVEL_WARNING:
+                return "W";
+            default:
+                return "I";
+        }
+    }
+
+    private static String getEvent(int event) {
+        switch (event) {
+            case ZreLogSocket.EVENT_JOIN:
+                return "Join group";
+            case ZreLogSocket.EVENT_LEAVE:
+                return "Leave group";
+            case ZreLogSocket.EVENT_ENTER:
+                return "Peer enters";
+            case ZreLogSocket.EVENT_EXIT:
+                return "Peer exits";
+            default:
+                return "";
+        }
+    }
+}
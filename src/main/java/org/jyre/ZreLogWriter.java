@@ -0,0 +1,185 @@
+package org.jyre;
+
+import org.jyre.protocol.LogMessage;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Appends log messages to memory-mapped segment files.
+ * <p>
+ * A log is a directory of fixed-size segments, named so they sort in the
+ * order they were written. Each segment starts with an 8 byte magic
+ * number, followed by records:
+ * <pre class="text">
+ *    length                       number 4, of the rest of the record
+ *    level                        number 1
+ *    event                        number 1
+ *    node                         number 2
+ *    peer                         number 2
+ *    time                         number 8
+ *    data                         UTF-8, to the end of the record
+ * </pre>
+ * A length of zero marks the end of the records in a segment. The length
+ * is written last, so a reader, or a writer reopening a segment after a
+ * crash, never sees a partial record.
+ */
+public class ZreLogWriter implements Closeable {
+    static final long MAGIC = 0x5a52454c4f470001L; // "ZRELOG", version 1
+    static final int HEADER_SIZE = 8;
+    static final int RECORD_SIZE = 18;
+    static final String PREFIX = "zrelog-";
+    static final String SUFFIX = ".seg";
+
+    private final Path directory;
+    private final int segmentSize;
+    private FileChannel channel;
+    private MappedByteBuffer buffer;
+    private int index;
+
+    public ZreLogWriter(Path directory) throws IOException {
+        this(directory, ZreConstants.LOG_SEGMENT);
+    }
+
+    /**
+     * Open a log for appending, continuing after the last record of the
+     * last segment if the log already exists.
+     *
+     * @param directory The log directory, created if missing
+     * @param segmentSize The size of each segment, in bytes
+     */
+    public ZreLogWriter(Path directory, int segmentSize) throws IOException {
+        if (segmentSize < HEADER_SIZE + RECORD_SIZE + 4 + 0xffff) {
+            throw new IllegalArgumentException("Segment size too small: " + segmentSize);
+        }
+
+        this.directory = directory;
+        this.segmentSize = segmentSize;
+        Files.createDirectories(directory);
+
+        List<Path> segments = getSegments(directory);
+        if (segments.isEmpty()) {
+            create(0);
+        } else {
+            Path last = segments.get(segments.size() - 1);
+            String name = last.getFileName().toString();
+            this.index = Integer.parseInt(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+            this.channel = FileChannel.open(last, StandardOpenOption.READ, StandardOpenOption.WRITE);
+            this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, Math.max(channel.size(), segmentSize));
+            if (buffer.getLong(0) != MAGIC) {
+                channel.close();
+                throw new IOException("Not a ZRE log segment: " + last);
+            }
+            buffer.position(getEnd(buffer));
+        }
+    }
+
+    /**
+     * Append a message, starting a new segment if this one is full.
+     *
+     * @param message The message
+     */
+    public void append(LogMessage message) throws IOException {
+        byte[] data = message.getData() != null ? message.getData().getBytes(StandardCharsets.UTF_8) : new byte[0];
+        int size = data.length;
+        if (size > 0xffff) {
+            // Cut before the character the limit falls in, not part way through
+            size = 0xffff;
+            while (size > 0 && (data[size] & 0xc0) == 0x80) {
+                size--;
+            }
+        }
+        int length = RECORD_SIZE + size;
+        if (buffer.remaining() < length) {
+            roll();
+        }
+
+        int position = buffer.position();
+        buffer.position(position + 4);
+        buffer.put((byte) message.getLevel());
+        buffer.put((byte) message.getEvent());
+        buffer.putShort((short) message.getNode());
+        buffer.putShort((short) message.getPeer());
+        buffer.putLong(message.getTime());
+        buffer.put(data, 0, length - RECORD_SIZE);
+
+        // Publish the record by writing its length last
+        buffer.putInt(position, length - 4);
+    }
+
+    /**
+     * Write appended records through to disk.
+     */
+    public void flush() {
+        buffer.force();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            flush();
+        } finally {
+            channel.close();
+        }
+    }
+
+    private void roll() throws IOException {
+        close();
+        create(index + 1);
+    }
+
+    private void create(int index) throws IOException {
+        Path path = directory.resolve(String.format("%s%08d%s", PREFIX, index, SUFFIX));
+        this.index = index;
+        this.channel = FileChannel.open(path, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        buffer.putLong(MAGIC);
+    }
+
+    /**
+     * Find the end of the records in a segment.
+     *
+     * @param buffer The segment
+     * @return The offset just past the last record
+     */
+    static int getEnd(MappedByteBuffer buffer) {
+        int position = HEADER_SIZE;
+        while (position + 4 <= buffer.limit()) {
+            int length = buffer.getInt(position);
+            if (length <= 0 || position + 4 + length > buffer.limit()) {
+                break;
+            }
+            position += 4 + length;
+        }
+
+        return position;
+    }
+
+    /**
+     * List the segments of a log, oldest first.
+     *
+     * @param directory The log directory
+     * @return The segment files
+     */
+    static List<Path> getSegments(Path directory) throws IOException {
+        List<Path> segments = new ArrayList<>();
+        try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory, PREFIX + "*" + SUFFIX)) {
+            for (Path path : stream) {
+                segments.add(path);
+            }
+        }
+        Collections.sort(segments);
+
+        return segments;
+    }
+}
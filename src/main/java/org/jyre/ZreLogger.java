@@ -2,44 +2,288 @@ package org.jyre;
 
 import org.jyre.protocol.LogMessage;
 import org.jyre.protocol.ZreLogSocket;
-import org.zeromq.api.Socket;
+import org.zeromq.api.Context;
+import org.zeromq.api.SocketType;
 
+import java.util.HashSet;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Publishes log messages from the agent without slowing it down.
+ * <p>
+ * Messages below the level threshold are dropped before anything else
+ * happens. The rest are captured unformatted into a bounded ring buffer,
+ * and formatted and sent by a logging thread that owns the socket. When
+ * the ring is full, new messages are dropped and counted rather than
+ * waiting, and the logging thread reports how many were lost. So are
+ * messages that fail to format.
+ * <p>
+ * Nothing is published until the logger is connected to a collector, see
+ * {@link ZreLogCollector}. Until then messages are discarded unformatted.
+ * <p>
+ * Any agent thread may log. Each claims its slot in the ring with a
+ * compare and set, and marks it published once filled.
+ */
 public class ZreLogger {
-    private final ZreLogSocket socket;
+    // How long the logging thread sleeps when idle, if nothing wakes it
+    private static final long IDLE_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final Context context;
     private final String identity;
+    private final Entry[] entries;
+    private final int mask;
+    private final Thread thread;
+
+    // Next slot to publish, and next slot to claim
+    private final AtomicLong head = new AtomicLong();
+    private final AtomicLong tail = new AtomicLong();
+    private final AtomicLong dropped = new AtomicLong();
+    private final Queue<String> endpoints = new ConcurrentLinkedQueue<>();
+    private volatile boolean waiting;
+    private volatile boolean closed;
+
+    private volatile Level level = Level.INFO;
+
+    public ZreLogger(Context context, String identity) {
+        this(context, identity, ZreConstants.LOG_QUEUE);
+    }
 
-    public ZreLogger(Socket socket, String identity) {
-        this.socket = new ZreLogSocket(socket);
+    /**
+     * Create a logger and start its logging thread. The logging thread
+     * creates and owns the socket, which is closed by {@link #close()}.
+     *
+     * @param context The context to create the socket in
+     * @param identity Our identity
+     * @param capacity The most messages waiting to be published, rounded up to a power of two
+     */
+    public ZreLogger(Context context, String identity, int capacity) {
+        int length = Integer.highestOneBit(Math.max(capacity, 2) * 2 - 1);
+        this.context = context;
         this.identity = identity;
+        this.entries = new Entry[length];
+        this.mask = length - 1;
+        for (int i = 0; i < length; i++) {
+            entries[i] = new Entry();
+        }
+
+        this.thread = new Thread(this::publish, "zre-logger-" + identity);
+        this.thread.setDaemon(true);
+        this.thread.start();
+    }
+
+    /**
+     * Set the least severe level that is logged.
+     *
+     * @param level The level threshold
+     */
+    public void setLevel(Level level) {
+        this.level = level;
+    }
+
+    public Level getLevel() {
+        return level;
+    }
+
+    /**
+     * Check whether a level is logged, so callers can skip building
+     * arguments for messages that would be dropped.
+     *
+     * @param level The level
+     * @return true if messages at this level are logged, false otherwise
+     */
+    public boolean isEnabled(Level level) {
+        return level.value() <= this.level.value();
+    }
+
+    /**
+     * Publish to a log collector, as well as any already connected. The
+     * logging thread connects before publishing its next message.
+     *
+     * @param endpoint The collector's endpoint
+     */
+    public void connect(String endpoint) {
+        endpoints.add(endpoint);
+        LockSupport.unpark(thread);
+    }
+
+    /**
+     * @return The number of messages dropped because the ring was full, or
+     *         because they couldn't be formatted
+     */
+    public long getDropped() {
+        return dropped.get();
     }
 
     public void info(Event event, String peer, String msg, Object... args) {
-        LogMessage message = createLogMessage(Level.INFO, event, peer, msg, args);
-        socket.send(message);
+        log(Level.INFO, event, peer, msg, args);
     }
 
     public void warn(Event event, String peer, String msg, Object... args) {
-        LogMessage message = createLogMessage(Level.WARNING, event, peer, msg, args);
-        socket.send(message);
+        log(Level.WARNING, event, peer, msg, args);
     }
 
     public void error(Event event, String peer, String msg, Object... args) {
-        LogMessage message = createLogMessage(Level.ERROR, event, peer, msg, args);
-        socket.send(message);
+        log(Level.ERROR, event, peer, msg, args);
     }
 
+    /**
+     * Stop the logging thread once it has published what is waiting, and
+     * close the socket.
+     */
     public void close() {
-        socket.close();
+        closed = true;
+        LockSupport.unpark(thread);
+        try {
+            thread.join(TimeUnit.SECONDS.toMillis(1));
+        } catch (InterruptedException ex) {
+            Thread.currentThread().interrupt();
+        }
     }
 
-    private LogMessage createLogMessage(Level level, Event event, String peer, String msg, Object[] args) {
+    private void log(Level level, Event event, String peer, String msg, Object[] args) {
+        if (!isEnabled(level) || closed) {
+            return;
+        }
+
+        long position;
+        do {
+            position = tail.get();
+            if (position - head.get() >= entries.length) {
+                dropped.incrementAndGet();
+                return;
+            }
+        } while (!tail.compareAndSet(position, position + 1));
+
+        Entry entry = entries[(int) position & mask];
+        entry.level = level;
+        entry.event = event;
+        entry.peer = peer;
+        entry.msg = msg;
+        entry.args = args;
+        entry.time = System.currentTimeMillis();
+        entry.published = position + 1;
+
+        if (waiting) {
+            LockSupport.unpark(thread);
+        }
+    }
+
+    /**
+     * Body of the logging thread.
+     */
+    private void publish() {
+        Set<String> connected = new HashSet<>();
+        ZreLogSocket socket = null;
+        long reported = 0;
+        try {
+            while (true) {
+                for (String endpoint = endpoints.poll(); endpoint != null; endpoint = endpoints.poll()) {
+                    if (socket == null) {
+                        socket = new ZreLogSocket(context.buildSocket(SocketType.PUB).connect(endpoint));
+                    } else if (!connected.contains(endpoint)) {
+                        socket.getSocket().getZMQSocket().connect(endpoint);
+                    }
+                    connected.add(endpoint);
+                }
+
+                long position = head.get();
+                if (position == tail.get()) {
+                    if (closed) {
+                        break;
+                    }
+
+                    // Check again after saying we're waiting, so a message
+                    // logged in between is not left until the timeout
+                    waiting = true;
+                    if (position == tail.get() && endpoints.isEmpty() && !closed) {
+                        LockSupport.parkNanos(this, IDLE_NANOS);
+                    }
+                    waiting = false;
+                    continue;
+                }
+
+                // A slot can be claimed but not yet filled
+                Entry entry = entries[(int) position & mask];
+                if (entry.published != position + 1) {
+                    Thread.yield();
+                    continue;
+                }
+
+                if (socket != null) {
+                    String data = format(entry);
+                    if (data != null) {
+                        socket.send(createLogMessage(entry.level, entry.event, entry.peer, entry.time, data));
+                    }
+                }
+                entry.clear();
+                head.lazySet(position + 1);
+
+                long lost = dropped.get();
+                if (lost > reported && socket != null) {
+                    socket.send(createLogMessage(Level.WARNING, Event.OTHER, null, System.currentTimeMillis(),
+                        String.format("Peer %s dropped %d log messages", identity, lost - reported)));
+                    reported = lost;
+                }
+            }
+        } catch (RuntimeException ex) {
+            // Context closed under us, nothing more can be published
+        } finally {
+            try {
+                if (socket != null) {
+                    socket.close();
+                }
+            } catch (RuntimeException ignored) {
+            }
+        }
+    }
+
+    /**
+     * Format one message, counting it as dropped if it can't be, so a bad
+     * format string or argument loses that message rather than the logger.
+     *
+     * @return The formatted message, or null if it was dropped
+     */
+    private String format(Entry entry) {
+        try {
+            return String.format(entry.msg, entry.args);
+        } catch (RuntimeException ex) {
+            dropped.incrementAndGet();
+            return null;
+        }
+    }
+
+    private LogMessage createLogMessage(Level level, Event event, String peer, long time, String data) {
         return new LogMessage()
             .withEvent(event.value())
             .withLevel(level.value())
             .withPeer(peer != null ? peer.hashCode() : 0)
             .withNode(identity.hashCode())
-            .withTime(System.currentTimeMillis())
-            .withData(String.format(msg, args));
+            .withTime(time)
+            .withData(data);
+    }
+
+    /**
+     * One slot of the ring, holding a message until it is formatted.
+     */
+    private static class Entry {
+        private Level level;
+        private Event event;
+        private String peer;
+        private String msg;
+        private Object[] args;
+        private long time;
+        private volatile long published;
+
+        private void clear() {
+            peer = null;
+            msg = null;
+            args = null;
+        }
     }
 
     public enum Level {
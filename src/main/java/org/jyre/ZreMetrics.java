@@ -0,0 +1,219 @@
+package org.jyre;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Counters and histograms kept by the agent, for finding out where its
+ * time and traffic go.
+ * <p>
+ * Counters are striped, so agent threads can count at the same time
+ * without contending, and nothing is allocated per message. Any thread may
+ * read the values at any time; each is current, but they are not one
+ * consistent snapshot.
+ */
+public class ZreMetrics {
+    /**
+     * Agent-wide counters.
+     */
+    public enum Counter {
+        /** Beacons sent, once per beacon interval. */
+        BEACONS_SENT,
+        /** Datagrams received on the beacon port, including our own beacons. */
+        BEACONS_RECEIVED,
+        /** Datagrams received on the beacon port that were not beacons we understand. */
+        BEACONS_REJECTED,
+        /** Messages received from ready peers. */
+        MESSAGES_IN,
+        /** Messages sent to peers. */
+        MESSAGES_OUT,
+        /** Content bytes of WHISPER and SHOUT messages received. */
+        BYTES_IN,
+        /** Content bytes of WHISPER and SHOUT messages sent. */
+        BYTES_OUT,
+        /** Messages queued because a peer's socket was full. */
+        SEND_QUEUED,
+        /** Times a peer's send queue overflowed. */
+        SEND_OVERFLOWS,
+        /** Messages dropped by the overflow policy, or by disconnecting a full peer. */
+        SEND_DROPPED,
+        /** Messages out of sequence, each of which disconnects its peer. */
+        SEQUENCE_GAPS,
+        /** Messages that could not be decoded. */
+        MALFORMED
+    }
+
+    private final LongAdder[] counters = new LongAdder[Counter.values().length];
+    private final ZreHistogram loopTime = new ZreHistogram();
+    private final ZreHistogram pipeBatch = new ZreHistogram();
+    private final List<ZreHistogram> shardLoopTimes = new CopyOnWriteArrayList<>();
+    private final Map<String, Traffic> peers = new ConcurrentHashMap<>();
+    private final Map<String, Traffic> groups = new ConcurrentHashMap<>();
+
+    public ZreMetrics() {
+        for (int i = 0; i < counters.length; i++) {
+            counters[i] = new LongAdder();
+        }
+    }
+
+    /**
+     * @param counter The counter
+     * @return The counter's value
+     */
+    public long get(Counter counter) {
+        return counters[counter.ordinal()].sum();
+    }
+
+    /**
+     * Get the time taken by each reactor wakeup of the agent, from when a
+     * handler starts to when it returns, in nanoseconds. When peers are
+     * sharded across workers, this is the coordinating thread only.
+     *
+     * @return The histogram
+     */
+    public ZreHistogram getLoopTime() {
+        return loopTime;
+    }
+
+    /**
+     * Get the loop time of each shard worker, when peers are sharded.
+     *
+     * @return The histograms, by shard, or an empty list if not sharded
+     */
+    public List<ZreHistogram> getShardLoopTimes() {
+        return Collections.unmodifiableList(shardLoopTimes);
+    }
+
+    /**
+     * Get the number of pipe commands handled per wakeup. Commands are
+     * drained until the pipe is empty or the pipe budget is spent, so a
+     * batch at the budget means commands were still waiting.
+     *
+     * @return The histogram
+     */
+    public ZreHistogram getPipeBatch() {
+        return pipeBatch;
+    }
+
+    /**
+     * @param identity The peer identity
+     * @return Traffic with the peer, or null if the peer is not connected
+     */
+    public Traffic getPeer(String identity) {
+        return peers.get(identity);
+    }
+
+    /**
+     * @return Traffic with each connected peer, by identity
+     */
+    public Map<String, Traffic> getPeers() {
+        return Collections.unmodifiableMap(peers);
+    }
+
+    /**
+     * @param name The group name
+     * @return Traffic with the group, or null if no peer has joined it
+     */
+    public Traffic getGroup(String name) {
+        return groups.get(name);
+    }
+
+    /**
+     * @return Traffic with each group our peers have joined, by name
+     */
+    public Map<String, Traffic> getGroups() {
+        return Collections.unmodifiableMap(groups);
+    }
+
+    void add(Counter counter, long delta) {
+        counters[counter.ordinal()].add(delta);
+    }
+
+    void onReceive(Traffic traffic, int bytes) {
+        add(Counter.MESSAGES_IN, 1);
+        add(Counter.BYTES_IN, bytes);
+        traffic.onReceive(bytes);
+    }
+
+    void onSend(Traffic traffic, int bytes) {
+        add(Counter.MESSAGES_OUT, 1);
+        add(Counter.BYTES_OUT, bytes);
+        traffic.onSend(bytes);
+    }
+
+    Traffic addPeer(String identity) {
+        Traffic traffic = new Traffic();
+        peers.put(identity, traffic);
+        return traffic;
+    }
+
+    void removePeer(String identity) {
+        peers.remove(identity);
+    }
+
+    Traffic addGroup(String name) {
+        return groups.computeIfAbsent(name, key -> new Traffic());
+    }
+
+    ZreHistogram addShardLoopTime() {
+        ZreHistogram histogram = new ZreHistogram();
+        shardLoopTimes.add(histogram);
+        return histogram;
+    }
+
+    /**
+     * Messages, bytes and time for one peer or group.
+     * <p>
+     * For a peer, time is spent handling its messages and sending it
+     * whispers. For a group, time is spent handling shouts to it and
+     * sending shouts to its peers. Bytes count WHISPER and SHOUT content.
+     * A group's traffic is counted by every shard with a member in it.
+     */
+    public static class Traffic {
+        private final LongAdder messagesIn = new LongAdder();
+        private final LongAdder messagesOut = new LongAdder();
+        private final LongAdder bytesIn = new LongAdder();
+        private final LongAdder bytesOut = new LongAdder();
+        private final ZreHistogram time = new ZreHistogram();
+
+        Traffic() {
+        }
+
+        public long getMessagesIn() {
+            return messagesIn.sum();
+        }
+
+        public long getMessagesOut() {
+            return messagesOut.sum();
+        }
+
+        public long getBytesIn() {
+            return bytesIn.sum();
+        }
+
+        public long getBytesOut() {
+            return bytesOut.sum();
+        }
+
+        /**
+         * @return Time spent on this peer or group's messages, in nanoseconds
+         */
+        public ZreHistogram getTime() {
+            return time;
+        }
+
+        void onReceive(int bytes) {
+            messagesIn.increment();
+            bytesIn.add(bytes);
+        }
+
+        void onSend(int bytes) {
+            messagesOut.increment();
+            bytesOut.add(bytes);
+        }
+    }
+}
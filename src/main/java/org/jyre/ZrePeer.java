@@ -14,12 +14,13 @@ import org.zeromq.api.Message;
 import org.zeromq.api.Socket;
 import org.zeromq.api.SocketType;
 
+import java.util.ArrayDeque;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 class ZrePeer {
-    private static final String FAILED_MESSAGE = "E: Failed to send %s message";
-
     /**
      * Valid peer states.
      */
@@ -27,19 +28,65 @@ class ZrePeer {
         DISCONNECTED, CONNECTED, READY, EVASIVE, EXPIRING, EXPIRED
     }
 
+    /**
+     * Told when messages to a peer back up.
+     */
+    interface Listener {
+        /**
+         * The socket was full, so messages started queueing.
+         *
+         * @param peer The peer
+         */
+        void onQueued(ZrePeer peer);
+
+        /**
+         * The queue reached its limit and the overflow policy was applied.
+         * Told once until the queue drains again.
+         *
+         * @param peer The peer
+         * @param depth The queue depth when it overflowed
+         */
+        void onOverflow(ZrePeer peer, int depth);
+
+        /**
+         * The overflow policy disconnected the peer, which should now be
+         * treated as gone. Told from inside a send, so the peer must not be
+         * removed from a group being sent to before the send returns.
+         *
+         * @param peer The peer
+         */
+        void onDisconnected(ZrePeer peer);
+    }
+
     private Context context;
     private ZreSocket socket;
     private String identity;
     private String endpoint;
     private String name;
+    private Message.Frame identityFrame;
+    private Message.Frame nameFrame;
+    private ZrePeerDirectory.Entry entry;
     private State state = State.DISCONNECTED;
     private int status;
     private long evasiveAt;
     private long expiredAt;
+    private long wakeAt;
     private int sentSequence;
     private int recvSequence;
+    private int malformed;
+    private long receivedAt;
     private List<String> groups;
     private Map<String, String> headers;
+    private final ArrayDeque<ZreCodec.PreparedMessage> queue = new ArrayDeque<>();
+    private final AtomicInteger queued = new AtomicInteger();
+    private int queueLimit = ZreConstants.PEER_QUEUE;
+    private ZreSendPolicy policy = ZreSendPolicy.DISCONNECT;
+    private boolean overflowing;
+    private boolean blocked;
+    private long blockedUntil;
+    private Listener listener;
+    private ZreMetrics metrics;
+    private ZreMetrics.Traffic traffic;
 
     public ZrePeer(Context context, String identity) {
         this.context = context;
@@ -51,8 +98,7 @@ class ZrePeer {
         if (state != State.DISCONNECTED) {
             assert socket != null;
 
-            boolean result = socket.send(message.withSequence(incrementSentSequence()));
-            checkSendResult(result, ZreCodec.MessageType.HELLO);
+            send(ZreCodec.prepare(ZreCodec.MessageType.HELLO, socket.getCodec().serialize(message)));
         }
     }
 
@@ -60,8 +106,7 @@ class ZrePeer {
         if (state != State.DISCONNECTED) {
             assert socket != null;
 
-            boolean result = socket.send(message.withSequence(incrementSentSequence()));
-            checkSendResult(result, ZreCodec.MessageType.JOIN);
+            send(ZreCodec.prepare(ZreCodec.MessageType.JOIN, socket.getCodec().serialize(message)));
         }
     }
 
@@ -69,8 +114,7 @@ class ZrePeer {
         if (state != State.DISCONNECTED) {
             assert socket != null;
 
-            boolean result = socket.send(message.withSequence(incrementSentSequence()));
-            checkSendResult(result, ZreCodec.MessageType.LEAVE);
+            send(ZreCodec.prepare(ZreCodec.MessageType.LEAVE, socket.getCodec().serialize(message)));
         }
     }
 
@@ -78,8 +122,7 @@ class ZrePeer {
         if (state != State.DISCONNECTED) {
             assert socket != null;
 
-            boolean result = socket.send(message.withSequence(incrementSentSequence()));
-            checkSendResult(result, ZreCodec.MessageType.PING);
+            send(ZreCodec.prepare(ZreCodec.MessageType.PING, socket.getCodec().serialize(message)));
         }
     }
 
@@ -87,8 +130,7 @@ class ZrePeer {
         if (state != State.DISCONNECTED) {
             assert socket != null;
 
-            boolean result = socket.send(message.withSequence(incrementSentSequence()));
-            checkSendResult(result, ZreCodec.MessageType.PING_OK);
+            send(ZreCodec.prepare(ZreCodec.MessageType.PING_OK, socket.getCodec().serialize(message)));
         }
     }
 
@@ -96,8 +138,7 @@ class ZrePeer {
         if (state != State.DISCONNECTED) {
             assert socket != null;
 
-            boolean result = socket.send(message.withSequence(incrementSentSequence()));
-            checkSendResult(result, ZreCodec.MessageType.SHOUT);
+            send(ZreCodec.prepare(ZreCodec.MessageType.SHOUT, socket.getCodec().serialize(message)));
         }
     }
 
@@ -105,11 +146,106 @@ class ZrePeer {
         if (state != State.DISCONNECTED) {
             assert socket != null;
 
-            boolean result = socket.send(message.withSequence(incrementSentSequence()));
-            checkSendResult(result, ZreCodec.MessageType.WHISPER);
+            send(ZreCodec.prepare(ZreCodec.MessageType.WHISPER, socket.getCodec().serialize(message)));
+        }
+    }
+
+    /**
+     * Send a message, or queue it behind earlier messages if the socket is
+     * full. Sequence numbers are given out as messages actually leave, so
+     * dropping a queued message never shows up as a gap at the peer.
+     *
+     * @param message The message to send
+     */
+    public void send(ZreCodec.PreparedMessage message) {
+        if (state != State.DISCONNECTED) {
+            assert socket != null;
+
+            if (flush() && trySend(message)) {
+                return;
+            }
+
+            enqueue(message);
         }
     }
 
+    /**
+     * Send queued messages until the queue is empty or the socket is full.
+     * Under the BLOCK policy, a peer still over its queue limit when its
+     * deadline passes is disconnected.
+     *
+     * @return true if nothing is left queued, false otherwise
+     */
+    public boolean flush() {
+        while (!queue.isEmpty()) {
+            if (state == State.DISCONNECTED || !trySend(queue.peekFirst())) {
+                if (blocked && queue.size() >= queueLimit && System.nanoTime() - blockedUntil >= 0) {
+                    drop(queue.size());
+                }
+                return false;
+            }
+
+            queue.pollFirst();
+            queued.lazySet(queue.size());
+            if (queue.size() < queueLimit) {
+                blocked = false;
+            }
+        }
+
+        overflowing = false;
+        return true;
+    }
+
+    /**
+     * Set the limit and overflow policy of the send queue.
+     *
+     * @param limit The most messages to queue while the socket is full
+     * @param policy What to do when the queue is full
+     */
+    public void setSendQueue(int limit, ZreSendPolicy policy) {
+        this.queueLimit = limit;
+        this.policy = policy;
+    }
+
+    public void setListener(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * Count traffic with this peer, until it is removed from the metrics.
+     *
+     * @param metrics The agent's metrics
+     */
+    public void setMetrics(ZreMetrics metrics) {
+        this.metrics = metrics;
+        this.traffic = metrics.addPeer(identity);
+    }
+
+    /**
+     * @return Traffic with this peer, or null if it isn't counted
+     */
+    public ZreMetrics.Traffic getTraffic() {
+        return traffic;
+    }
+
+    /**
+     * Get the number of messages waiting to be sent.
+     *
+     * @return The queue depth
+     */
+    public int getQueueDepth() {
+        return queue.size();
+    }
+
+    /**
+     * Get a live view of the queue depth, safe to read from other threads.
+     *
+     * @return The queue depth counter
+     */
+    public AtomicInteger getQueueDepthCounter() {
+        return queued;
+    }
+
     /**
      * Connect to peer's mailbox with a given reply-to address.
      *
@@ -127,6 +263,11 @@ class ZrePeer {
         this.socket = new ZreSocket(socket);
         this.state = State.CONNECTED;
         this.endpoint = endpoint;
+        this.entry = null;
+
+        // Due for a check straight away, until the first PING arrives
+        this.evasiveAt = System.nanoTime();
+        this.expiredAt = evasiveAt;
     }
 
     /**
@@ -141,6 +282,10 @@ class ZrePeer {
                 this.state = State.DISCONNECTED;
                 this.socket = null;
                 this.endpoint = null;
+                this.entry = null;
+                this.queue.clear();
+                this.queued.lazySet(0);
+                this.blocked = false;
             }
         }
     }
@@ -152,6 +297,7 @@ class ZrePeer {
      */
     public void join(ZreGroup group) {
         group.getPeers().put(identity, this);
+        group.onUpdate();
         onUpdate();
     }
 
@@ -162,6 +308,7 @@ class ZrePeer {
      */
     public void leave(ZreGroup group) {
         group.getPeers().remove(identity);
+        group.onUpdate();
         onUpdate();
     }
 
@@ -180,38 +327,92 @@ class ZrePeer {
     }
 
     /**
-     * Update evasive and expired status in response to receiving a PING.
+     * Note that a message arrived from this peer over TCP.
      *
+     * @param now The current time, from {@link System#nanoTime()}
+     */
+    public void onMessage(long now) {
+        receivedAt = now;
+    }
+
+    /**
+     * @return When a message last arrived from this peer over TCP, from {@link System#nanoTime()}
+     */
+    public long getReceivedAt() {
+        return receivedAt;
+    }
+
+    /**
+     * Count a malformed message from this peer.
+     *
+     * @return The number of malformed messages received from this peer
+     */
+    public int onMalformed() {
+        return ++malformed;
+    }
+
+    /**
+     * Update evasive and expired status in response to receiving a PING,
+     * or to connecting, so a new peer has as long to say HELLO.
+     *
+     * @param now The current time, from {@link System#nanoTime()}
      * @param evasiveTimeout Amount of time before peer is considered evasive, in milliseconds
      * @param expiredTimeout Amount of time before peer is considered expired, in milliseconds
      */
-    public void onPing(int evasiveTimeout, int expiredTimeout) {
-        assert state == State.READY
+    public void onPing(long now, int evasiveTimeout, int expiredTimeout) {
+        assert state == State.CONNECTED
+            || state == State.READY
             || state == State.EVASIVE
             || state == State.EXPIRING;
-        long now = System.currentTimeMillis();
-        evasiveAt = now + evasiveTimeout;
-        expiredAt = now + expiredTimeout;
+        evasiveAt = now + TimeUnit.MILLISECONDS.toNanos(evasiveTimeout);
+        expiredAt = now + TimeUnit.MILLISECONDS.toNanos(expiredTimeout);
     }
 
     /**
      * Check evasive and expired status and update state accordingly.
+     *
+     * @param now The current time, from {@link System#nanoTime()}
      */
-    public void onWake() {
-        long now = System.currentTimeMillis();
+    public void onWake(long now) {
         if (state == State.CONNECTED || state == State.READY) {
-            if (now >= evasiveAt) {
+            if (now - evasiveAt >= 0) {
                 state = State.EVASIVE;
             }
         } else if (state == State.EVASIVE) {
             state = State.EXPIRING;
         } else if (state == State.EXPIRING) {
-            if (now >= expiredAt) {
+            if (now - expiredAt >= 0) {
                 state = State.EXPIRED;
             }
         }
     }
 
+    /**
+     * Get the next time {@link #onWake(long)} can change our state. An
+     * evasive peer becomes expiring on the very next wake.
+     *
+     * @param now The current time, from {@link System#nanoTime()}
+     * @return The time of the next state change, from {@link System#nanoTime()}
+     */
+    public long getNextWakeAt(long now) {
+        switch (state) {
+            case EVASIVE:
+                return now + 1;
+            case EXPIRING:
+                return expiredAt;
+            default:
+                return evasiveAt;
+        }
+    }
+
+    public long getWakeAt() {
+        return wakeAt;
+    }
+
+    public void setWakeAt(long wakeAt) {
+        this.wakeAt = wakeAt;
+    }
+
     /**
      * Set state to READY.
      */
@@ -242,12 +443,53 @@ class ZrePeer {
 
     public void setName(String name) {
         this.name = name;
+        this.nameFrame = null;
+        this.entry = null;
+    }
+
+    /**
+     * Get our identity, encoded once for the events we send to the caller.
+     *
+     * @return The identity frame
+     */
+    public Message.Frame getIdentityFrame() {
+        if (identityFrame == null) {
+            identityFrame = Message.Frame.of(identity);
+        }
+
+        return identityFrame;
+    }
+
+    /**
+     * Get our name, encoded once per name for the events we send to the caller.
+     *
+     * @return The name frame
+     */
+    public Message.Frame getNameFrame() {
+        if (nameFrame == null) {
+            nameFrame = Message.Frame.of(name);
+        }
+
+        return nameFrame;
     }
 
     public String getEndpoint() {
         return endpoint;
     }
 
+    /**
+     * Get our details for the directory, copied once per change.
+     *
+     * @return The directory entry
+     */
+    ZrePeerDirectory.Entry getEntry() {
+        if (entry == null) {
+            entry = new ZrePeerDirectory.Entry(this);
+        }
+
+        return entry;
+    }
+
     public int getStatus() {
         return status;
     }
@@ -270,6 +512,7 @@ class ZrePeer {
 
     public void setGroups(List<String> groups) {
         this.groups = groups;
+        this.entry = null;
     }
 
     public String getHeader(String key, String defaultValue) {
@@ -287,6 +530,7 @@ class ZrePeer {
 
     public void setHeaders(Map<String, String> headers) {
         this.headers = headers;
+        this.entry = null;
     }
 
     /**
@@ -329,19 +573,87 @@ class ZrePeer {
         return state;
     }
 
-    private int incrementSentSequence() {
-        if (++sentSequence > ZreConstants.USHORT_MAX) {
-            sentSequence = 0;
+    private boolean trySend(ZreCodec.PreparedMessage message) {
+        int sequence = sentSequence + 1;
+        if (sequence > ZreConstants.USHORT_MAX) {
+            sequence = 0;
+        }
+
+        if (!socket.send(message, sequence)) {
+            return false;
+        }
+
+        sentSequence = sequence;
+        if (metrics != null) {
+            metrics.onSend(traffic, message.getContentSize());
+        }
+        return true;
+    }
+
+    private void enqueue(ZreCodec.PreparedMessage message) {
+        int depth = queue.size();
+        if (depth < queueLimit) {
+            append(message);
+            return;
+        }
+
+        boolean first = !overflowing;
+        overflowing = true;
+        switch (policy) {
+            case BLOCK:
+                // Keep queueing past the limit while the peer catches up,
+                // retried by flush() rather than waited for here
+                if (!blocked) {
+                    blocked = true;
+                    blockedUntil = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(ZreConstants.PEER_BLOCK);
+                }
+                append(message);
+                break;
+            case DROP_OLDEST:
+                queue.pollFirst();
+                append(message);
+                onDropped(1);
+                break;
+            case DROP_NEWEST:
+                onDropped(1);
+                break;
+            case DISCONNECT:
+                drop(queue.size() + 1);
+                break;
         }
 
-        return sentSequence;
+        if (first && listener != null) {
+            listener.onOverflow(this, depth);
+        }
+    }
+
+    private void append(ZreCodec.PreparedMessage message) {
+        queue.addLast(message);
+        queued.lazySet(queue.size());
+        if (metrics != null) {
+            metrics.add(ZreMetrics.Counter.SEND_QUEUED, 1);
+        }
+        if (queue.size() == 1 && listener != null) {
+            listener.onQueued(this);
+        }
+    }
+
+    /**
+     * Give up on a peer that can't keep up, dropping everything queued.
+     *
+     * @param count The number of messages dropped
+     */
+    private void drop(int count) {
+        onDropped(count);
+        disconnect();
+        if (listener != null) {
+            listener.onDisconnected(this);
+        }
     }
 
-    private void checkSendResult(boolean result, Object... args) {
-        if (!result) {
-            System.err.printf(FAILED_MESSAGE, args);
-            System.err.println();
-            disconnect();
+    private void onDropped(int count) {
+        if (metrics != null) {
+            metrics.add(ZreMetrics.Counter.SEND_DROPPED, count);
         }
     }
 }
@@ -0,0 +1,289 @@
+package org.jyre;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+ * Immutable snapshot of the peers and groups known to the agent.
+ * <p>
+ * The agent builds a new snapshot whenever a peer enters, exits, joins or
+ * leaves a group, and publishes it through a shared reference. Application
+ * threads read the current snapshot without a round trip to the agent.
+ * When peers are sharded, each shard builds a snapshot of its own peers,
+ * and the {@link Publisher} publishes a view of them all that combines
+ * them only as they are read.
+ */
+class ZrePeerDirectory {
+    static final ZrePeerDirectory EMPTY = new ZrePeerDirectory(
+        Collections.<ZrePeer>emptyList(), Collections.<ZreGroup>emptyList());
+
+    private final List<String> identities;
+    private final Map<String, Entry> peers;
+    private final UuidMap<Entry> peersByUuid;
+    private final Map<String, List<String>> groups;
+
+    ZrePeerDirectory(Collection<ZrePeer> peers, Collection<ZreGroup> groups) {
+        // Entries and member lists are kept by their peer and group until
+        // they change, so only what changed is copied
+        Map<String, Entry> peerMap = new HashMap<>();
+        UuidMap<Entry> uuidMap = new UuidMap<>(peers.size());
+        for (ZrePeer peer : peers) {
+            Entry entry = peer.getEntry();
+            peerMap.put(peer.getIdentity(), entry);
+            if (ZreIdentity.isUuid(peer.getIdentity())) {
+                uuidMap.put(ZreIdentity.getMostSignificantBits(peer.getIdentity()), ZreIdentity.getLeastSignificantBits(peer.getIdentity()), entry);
+            }
+        }
+
+        Map<String, List<String>> groupMap = new HashMap<>();
+        for (ZreGroup group : groups) {
+            groupMap.put(group.getName(), group.getMembers());
+        }
+
+        this.identities = Collections.unmodifiableList(new ArrayList<>(peerMap.keySet()));
+        this.peers = Collections.unmodifiableMap(peerMap);
+        this.peersByUuid = uuidMap;
+        this.groups = Collections.unmodifiableMap(groupMap);
+    }
+
+    /**
+     * @return Identities of all known peers
+     */
+    public List<String> getPeers() {
+        return identities;
+    }
+
+    /**
+     * @param group The group name
+     * @return Identities of peers in the group, or null if the group is unknown
+     */
+    public List<String> getPeersByGroup(String group) {
+        return groups.get(group);
+    }
+
+    /**
+     * @param identity The peer identity
+     * @return The peer, or null if the peer is unknown
+     */
+    public Entry getPeer(String identity) {
+        return peers.get(identity);
+    }
+
+    /**
+     * Find a peer from the raw identity bytes of an event, without decoding
+     * them. The map is never changed once published, so reading it from any
+     * thread is safe.
+     *
+     * @param identity The identity bytes
+     * @return The peer, or null if the peer is unknown
+     */
+    public Entry getPeer(byte[] identity) {
+        if (ZreIdentity.isUuid(identity)) {
+            return peersByUuid.get(ZreIdentity.getMostSignificantBits(identity), ZreIdentity.getLeastSignificantBits(identity));
+        }
+
+        return null;
+    }
+
+    /**
+     * The snapshots of several shards, read as one. Every peer is in
+     * exactly one shard, so a peer is looked up shard by shard, and a
+     * group's members are those of all shards.
+     */
+    private static class Merged extends ZrePeerDirectory {
+        private final ZrePeerDirectory[] shards;
+
+        // Combined on first read, racing readers build the same list
+        private volatile List<String> all;
+
+        Merged(ZrePeerDirectory[] shards) {
+            super(Collections.<ZrePeer>emptyList(), Collections.<ZreGroup>emptyList());
+            this.shards = shards;
+        }
+
+        @Override
+        public List<String> getPeers() {
+            List<String> identities = all;
+            if (identities == null) {
+                List<String> combined = new ArrayList<>();
+                for (ZrePeerDirectory shard : shards) {
+                    combined.addAll(shard.getPeers());
+                }
+                identities = all = Collections.unmodifiableList(combined);
+            }
+
+            return identities;
+        }
+
+        @Override
+        public List<String> getPeersByGroup(String group) {
+            List<String> members = null;
+            List<String> combined = null;
+            for (ZrePeerDirectory shard : shards) {
+                List<String> part = shard.getPeersByGroup(group);
+                if (part == null) {
+                    continue;
+                }
+                if (members == null) {
+                    members = part;
+                } else {
+                    if (combined == null) {
+                        combined = new ArrayList<>(members);
+                    }
+                    combined.addAll(part);
+                }
+            }
+
+            return combined != null ? Collections.unmodifiableList(combined) : members;
+        }
+
+        @Override
+        public Entry getPeer(String identity) {
+            for (ZrePeerDirectory shard : shards) {
+                Entry entry = shard.getPeer(identity);
+                if (entry != null) {
+                    return entry;
+                }
+            }
+
+            return null;
+        }
+
+        @Override
+        public Entry getPeer(byte[] identity) {
+            for (ZrePeerDirectory shard : shards) {
+                Entry entry = shard.getPeer(identity);
+                if (entry != null) {
+                    return entry;
+                }
+            }
+
+            return null;
+        }
+    }
+
+    /**
+     * Publishes the combined snapshot of a node's shards. Each shard
+     * replaces only its own part, then swaps in a view over every part,
+     * without a lock. Parts are read after the current view, and a swap
+     * fails if another shard swapped in between, so shards that change at
+     * once never lose each other's updates.
+     */
+    static class Publisher {
+        private final AtomicReference<ZrePeerDirectory> reference;
+        private final AtomicReferenceArray<ZrePeerDirectory> shards;
+
+        Publisher(AtomicReference<ZrePeerDirectory> reference, int shards) {
+            this.reference = reference;
+            this.shards = new AtomicReferenceArray<>(shards);
+            for (int i = 0; i < shards; i++) {
+                this.shards.set(i, EMPTY);
+            }
+        }
+
+        /**
+         * Replace one shard's part of the directory, and publish the whole.
+         *
+         * @param shard The shard
+         * @param directory The shard's snapshot
+         */
+        void publish(int shard, ZrePeerDirectory directory) {
+            if (shards.length() == 1) {
+                reference.set(directory);
+                return;
+            }
+
+            shards.set(shard, directory);
+            while (true) {
+                ZrePeerDirectory current = reference.get();
+                ZrePeerDirectory[] parts = new ZrePeerDirectory[shards.length()];
+                for (int i = 0; i < parts.length; i++) {
+                    parts[i] = shards.get(i);
+                }
+                if (reference.compareAndSet(current, new Merged(parts))) {
+                    return;
+                }
+            }
+        }
+    }
+
+    /**
+     * Read-only copy of a peer's details.
+     */
+    static class Entry {
+        private final String identity;
+        private final String name;
+        private final byte[] nameData;
+        private final String endpoint;
+        private final Map<String, String> headers;
+        private final List<String> groups;
+        private final AtomicInteger queueDepth;
+
+        Entry(ZrePeer peer) {
+            this.identity = peer.getIdentity();
+            this.name = peer.getName();
+            this.nameData = peer.getNameFrame().getData();
+            this.endpoint = peer.getEndpoint();
+            this.headers = peer.getHeaders() == null
+                ? Collections.<String, String>emptyMap()
+                : Collections.unmodifiableMap(new HashMap<>(peer.getHeaders()));
+            this.groups = peer.getGroups() == null
+                ? Collections.<String>emptyList()
+                : Collections.unmodifiableList(new ArrayList<>(peer.getGroups()));
+            this.queueDepth = peer.getQueueDepthCounter();
+        }
+
+        public String getIdentity() {
+            return identity;
+        }
+
+        public String getName() {
+            return name;
+        }
+
+        /**
+         * Check whether an encoded name is this peer's current name.
+         *
+         * @param data The encoded name
+         * @return true if it matches, false otherwise
+         */
+        public boolean isName(byte[] data) {
+            return Arrays.equals(nameData, data);
+        }
+
+        public String getEndpoint() {
+            return endpoint;
+        }
+
+        public String getHeader(String key, String defaultValue) {
+            String header = headers.get(key);
+            return header != null ? header : defaultValue;
+        }
+
+        public Map<String, String> getHeaders() {
+            return headers;
+        }
+
+        public List<String> getGroups() {
+            return groups;
+        }
+
+        /**
+         * Get the number of messages waiting to be sent to the peer. Unlike
+         * the rest of the entry, this is live rather than a snapshot.
+         *
+         * @return The queue depth
+         */
+        public int getQueueDepth() {
+            return queueDepth.get();
+        }
+    }
+}
@@ -0,0 +1,33 @@
+package org.jyre;
+
+/**
+ * What to do when a peer's send queue is full.
+ * <p>
+ * Messages to a peer are queued while its socket is at its high water
+ * mark, and sent in order once it drains. The policy only applies when
+ * the queue itself reaches its limit. A peer a policy disconnects exits,
+ * as if it had gone silent, and rejoins with its next beacon.
+ */
+public enum ZreSendPolicy {
+    /**
+     * Keep queueing past the limit while the peer catches up, and
+     * disconnect it if it is still over the limit after a second. The
+     * agent goes on handling everything else meanwhile.
+     */
+    BLOCK,
+
+    /**
+     * Drop the oldest queued message to make room.
+     */
+    DROP_OLDEST,
+
+    /**
+     * Drop the message being sent.
+     */
+    DROP_NEWEST,
+
+    /**
+     * Disconnect the peer.
+     */
+    DISCONNECT
+}
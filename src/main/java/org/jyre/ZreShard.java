@@ -0,0 +1,1055 @@
+package org.jyre;
+
+import org.jyre.protocol.HelloMessage;
+import org.jyre.protocol.JoinMessage;
+import org.jyre.protocol.LeaveMessage;
+import org.jyre.protocol.PingMessage;
+import org.jyre.protocol.PingOkMessage;
+import org.jyre.protocol.ShoutMessage;
+import org.jyre.protocol.WhisperMessage;
+import org.jyre.protocol.ZreCodec;
+import org.zeromq.api.Backgroundable;
+import org.zeromq.api.Context;
+import org.zeromq.api.LoopAdapter;
+import org.zeromq.api.Message;
+import org.zeromq.api.Message.Frame;
+import org.zeromq.api.MessageFlag;
+import org.zeromq.api.Pollable;
+import org.zeromq.api.Reactor;
+import org.zeromq.api.Socket;
+import org.zeromq.api.SocketType;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Owns a share of the agent's peers: their sockets, the messages they send
+ * us, and the liveness checks on them.
+ * <p>
+ * Peers are assigned to a shard by a hash of their identity, see
+ * {@link #getShard(byte[], int)}. The agent keeps the pipe, the beacons
+ * and the inbox, and hands each shard its peers' messages still encoded,
+ * so decoding happens on the shard's thread. A lone shard runs inline on
+ * the agent's reactor; otherwise each runs on its own, and the agent talks
+ * to it over its pipe.
+ */
+class ZreShard implements Backgroundable, ZreConstants {
+    // Opcodes of our own, above any ZreCommand
+    static final int INBOX   = 0xff;
+    static final int BEACON  = 0xfe;
+    static final int CHANGED = 0xfd;
+
+    static final Frame INBOX_FRAME   = Frame.of(new byte[] { (byte) INBOX });
+    static final Frame BEACON_FRAME  = Frame.of(new byte[] { (byte) BEACON });
+    static final Frame CHANGED_FRAME = Frame.of(new byte[] { (byte) CHANGED });
+
+    private static final Frame ENTER   = Frame.of("ENTER");
+    private static final Frame JOIN    = Frame.of("JOIN");
+    private static final Frame WHISPER = Frame.of("WHISPER");
+    private static final Frame SHOUT   = Frame.of("SHOUT");
+    private static final Frame LEAVE   = Frame.of("LEAVE");
+    private static final Frame EXIT    = Frame.of("EXIT");
+    private static final Frame EVASIVE = Frame.of("EVASIVE");
+    private static final Frame BACKPRESSURE = Frame.of("BACKPRESSURE");
+
+    private final int index;
+    private final String outboxEndpoint;
+    private final ZrePeerDirectory.Publisher directory;
+    private final ZreMetrics metrics;
+    private final ZreHistogram loopTime;
+    private final ZreLogger logger;
+    private final Command[] commands = new Command[256];
+
+    private Context context;
+    private Socket pipe;
+    private Socket outbox;
+    private Reactor reactor;
+    private ZreCodec codec;
+    private Runnable changed;
+    private PingHandler pingHandler;
+    private FlushTimer flushTimer;
+    private SendQueueListener sendQueueListener;
+    private boolean started;
+    private boolean stopped;
+    private final AtomicBoolean closed = new AtomicBoolean();
+
+    /**
+     * Our identity, endpoint, name, change counter, groups and headers, as
+     * sent to each new peer. The agent owns these and forwards changes.
+     */
+    private String identity;
+    private String endpoint;
+    private String name;
+    private int status;
+    private Set<String> ownGroups = new LinkedHashSet<>();
+    private Map<String, String> headers = new HashMap<>();
+
+    /**
+     * Settings the agent changes while we run, without a command each time.
+     */
+    private volatile boolean verbose;
+    private volatile boolean ignoreActiveBeacons;
+    private volatile int evasiveTimeout = PEER_EVASIVE;
+    private volatile int expiredTimeout = PEER_EXPIRED;
+    private volatile int beaconInterval = PING_INTERVAL;
+
+    /**
+     * Interval between liveness checks on peers, in milliseconds.
+     */
+    private int interval = PING_INTERVAL;
+
+    /**
+     * Limit and overflow policy of each peer's send queue.
+     */
+    private int sendQueueLimit = PEER_QUEUE;
+    private ZreSendPolicy sendPolicy = ZreSendPolicy.DISCONNECT;
+
+    /**
+     * Peers with queued messages, retried on a short timer while any are left.
+     */
+    private Set<ZrePeer> backlog = new LinkedHashSet<>();
+    private boolean flushing;
+
+    /**
+     * Peers their send policy disconnected, removed on the same timer.
+     */
+    private List<ZrePeer> disconnected = new ArrayList<>();
+
+    /**
+     * Our peers, by identity.
+     */
+    private Map<String, ZrePeer> peers = new HashMap<>();
+
+    /**
+     * Our peers, by the UUID behind their identity.
+     */
+    private UuidMap<ZrePeer> peersByUuid = new UuidMap<>();
+
+    /**
+     * Our peers, by when they next need to be woken.
+     */
+    private PriorityQueue<ZrePeer> deadlines = new PriorityQueue<>(
+        (a, b) -> Long.signum(a.getWakeAt() - b.getWakeAt()));
+
+    /**
+     * Groups that our peers are in, by group name.
+     */
+    private Map<String, ZreGroup> peerGroups = new HashMap<>();
+
+    /**
+     * Time at the start of the current handler, from System.nanoTime().
+     */
+    private long now;
+
+    /**
+     * When a malformed message was last reported, and how many have been
+     * dropped without a report since.
+     */
+    private long malformedReportedAt = System.nanoTime() - TimeUnit.MILLISECONDS.toNanos(ZreConstants.MALFORMED_LOG);
+    private int malformedSuppressed;
+
+    /**
+     * Create a shard.
+     *
+     * @param index Our position among the agent's shards
+     * @param outboxEndpoint The inproc endpoint the interface receives events on
+     * @param directory Publisher our part of the peer directory goes to
+     * @param metrics Metrics we count our traffic in
+     * @param loopTime Histogram of our reactor wakeups
+     * @param logger The agent's logger
+     */
+    public ZreShard(int index, String outboxEndpoint, ZrePeerDirectory.Publisher directory, ZreMetrics metrics, ZreHistogram loopTime, ZreLogger logger) {
+        this.index = index;
+        this.outboxEndpoint = outboxEndpoint;
+        this.directory = directory;
+        this.metrics = metrics;
+        this.loopTime = loopTime;
+        this.logger = logger;
+
+        commands[INBOX]                               = this::onInbox;
+        commands[BEACON]                              = this::onBeacon;
+        commands[ZreCommand.SET_NAME.ordinal()]       = this::onSetName;
+        commands[ZreCommand.SET_HEADER.ordinal()]     = this::onSetHeader;
+        commands[ZreCommand.SET_ENDPOINT.ordinal()]   = this::onSetEndpoint;
+        commands[ZreCommand.SET_INTERVAL.ordinal()]   = this::onSetInterval;
+        commands[ZreCommand.SET_SEND_QUEUE.ordinal()] = this::onSetSendQueue;
+        commands[ZreCommand.STOP.ordinal()]           = message -> onStop();
+        commands[ZreCommand.JOIN.ordinal()]           = this::onJoin;
+        commands[ZreCommand.LEAVE.ordinal()]          = this::onLeave;
+        commands[ZreCommand.WHISPER.ordinal()]        = this::onWhisper;
+        commands[ZreCommand.SHOUT.ordinal()]          = this::onShout;
+        commands[ZreCommand.WHISPER_BATCH.ordinal()]  = this::onWhisperBatch;
+        commands[ZreCommand.SHOUT_BATCH.ordinal()]    = this::onShoutBatch;
+    }
+
+    /**
+     * Get the shard a peer belongs to.
+     *
+     * @param identity The peer identity, as raw ROUTER identity bytes or as a string
+     * @param shards The number of shards
+     * @return The shard
+     */
+    public static int getShard(byte[] identity, int shards) {
+        if (ZreIdentity.isUuid(identity)) {
+            return getShard(ZreIdentity.getMostSignificantBits(identity), ZreIdentity.getLeastSignificantBits(identity), shards);
+        }
+
+        return Math.floorMod(ZreIdentity.toString(identity).hashCode(), shards);
+    }
+
+    /**
+     * Get the shard a peer belongs to, from the UUID behind its identity.
+     *
+     * @param msb The most significant bits of the UUID
+     * @param lsb The least significant bits of the UUID
+     * @param shards The number of shards
+     * @return The shard
+     */
+    public static int getShard(long msb, long lsb, int shards) {
+        // Only the low half picks the shard, so the peers of one shard still
+        // spread over every slot of its UuidMap, which hashes both halves
+        return (int) Long.remainderUnsigned(lsb, shards);
+    }
+
+    /**
+     * Copy our own details from the agent, before we start.
+     *
+     * @param identity Our identity
+     * @param endpoint Our endpoint
+     * @param name Our name
+     * @param status Our change counter
+     * @param ownGroups Groups that we are in
+     * @param headers Our header values
+     */
+    public void setSelf(String identity, String endpoint, String name, int status, Collection<String> ownGroups, Map<String, String> headers) {
+        this.identity = identity;
+        this.endpoint = endpoint;
+        this.name = name;
+        this.status = status;
+        this.ownGroups.addAll(ownGroups);
+        this.headers.putAll(headers);
+    }
+
+    public void setVerbose(boolean verbose) {
+        this.verbose = verbose;
+    }
+
+    public void setIgnoreActiveBeacons(boolean ignore) {
+        this.ignoreActiveBeacons = ignore;
+    }
+
+    /**
+     * Set how long peers may stay silent, extended by up to the agent's
+     * current beacon interval, see {@link ZreInterfaceAgent}.
+     *
+     * @param evasiveTimeout Silence before a peer is evasive, in milliseconds
+     * @param expiredTimeout Silence before a peer is expired, in milliseconds
+     * @param beaconInterval The current beacon interval, in milliseconds
+     */
+    public void setTimeouts(int evasiveTimeout, int expiredTimeout, int beaconInterval) {
+        this.evasiveTimeout = evasiveTimeout;
+        this.expiredTimeout = expiredTimeout;
+        this.beaconInterval = beaconInterval;
+    }
+
+    /**
+     * Set the interval between liveness checks. Once we start, this only
+     * changes by a forwarded SET_INTERVAL.
+     *
+     * @param interval The interval, in milliseconds
+     */
+    public void setInterval(int interval) {
+        this.interval = interval;
+    }
+
+    public void setSendQueue(int limit, ZreSendPolicy policy) {
+        this.sendQueueLimit = limit;
+        this.sendPolicy = policy;
+    }
+
+    @Override
+    public void run(Context context, Socket socket) {
+        this.pipe = socket;
+        Reactor reactor = context.buildReactor()
+            .withInPollable(pipe, new PipeHandler())
+            .build();
+
+        start(context, reactor, context.buildSocket(SocketType.PUSH).connect(outboxEndpoint), null);
+        reactor.start();
+    }
+
+    /**
+     * Stop our reactor and close our sockets, once we run on our own
+     * thread. Called by the agent once we have replied to its STOP, or by
+     * the context as it closes.
+     */
+    @Override
+    public void onClose() {
+        if (pipe == null || !closed.compareAndSet(false, true)) {
+            return;
+        }
+
+        // Only another thread can stop our reactor, and only once it next
+        // wakes up, so this waits for the tick left behind by STOP
+        reactor.stop();
+        stop();
+        outbox.close();
+        pipe.close();
+    }
+
+    /**
+     * Start looking after peers.
+     *
+     * @param context The context to create peer sockets in
+     * @param reactor The reactor to run our timers on
+     * @param outbox The socket to send events to the interface on
+     * @param changed Called when peers come or go, or null to tell the agent over our pipe
+     */
+    public void start(Context context, Reactor reactor, Socket outbox, Runnable changed) {
+        this.context = context;
+        this.reactor = reactor;
+        this.outbox = outbox;
+        this.changed = changed;
+
+        //  Handlers copy out what they keep before the next message, so the
+        //  codec can refill one message of each type instead of allocating
+        this.codec = new ZreCodec();
+        this.codec.setReuse(true);
+        this.pingHandler = new PingHandler();
+        this.flushTimer = new FlushTimer();
+        this.sendQueueListener = new SendQueueListener();
+
+        reactor.addTimer(interval, -1, pingHandler);
+        started = true;
+    }
+
+    /**
+     * Disconnect from every peer and stop our timers.
+     */
+    public void stop() {
+        if (stopped) {
+            return;
+        }
+        stopped = true;
+
+        for (ZrePeer peer : peers.values()) {
+            peer.disconnect();
+        }
+
+        if (started) {
+            reactor.cancel(pingHandler);
+            reactor.cancel(flushTimer);
+        }
+    }
+
+    /**
+     * Stop, when we run on our own thread. The agent waits for our reply,
+     * then stops our reactor, see {@link #onClose()}.
+     */
+    private void onStop() {
+        stop();
+        reactor.addTimer(STOP_TICK, -1, (r, pollable) -> { });
+        pipe.send(new Message(ZreCommand.STOP.getFrame()));
+    }
+
+    /**
+     * Handle a command forwarded by the agent, starting with its opcode.
+     *
+     * @param message The command
+     */
+    public void execute(Message message) {
+        // Dispatch on the opcode, ignoring anything we don't know
+        int opcode = ZreCommand.getOpcode(message.popFrame());
+        Command command = opcode >= 0 ? commands[opcode] : null;
+        if (command != null) {
+            command.execute(message);
+        } else if (verbose) {
+            System.err.printf("E: Shard %d discarding unknown command %d\n", index, opcode);
+        }
+    }
+
+    /**
+     * Handle a message from one of our peers, as received by the inbox.
+     *
+     * @param frames The peer's address, then the encoded message
+     */
+    public void onInbox(Message frames) {
+        now = System.nanoTime();
+        ZrePeer peer = receive(frames);
+
+        // Charge the time to the peer whose message it was
+        if (peer != null) {
+            peer.getTraffic().getTime().record(System.nanoTime() - now);
+        }
+    }
+
+    /**
+     * Handle a beacon from one of our peers, or from a peer that belongs to
+     * us and is not known yet. The agent has already checked it is valid
+     * and not our own.
+     *
+     * @param message The beacon
+     * @param from The address the beacon came from
+     */
+    public void onBeacon(UdpBeaconView message, String from) {
+        now = System.nanoTime();
+
+        // Known peers are found without building any strings
+        ZrePeer peer = peersByUuid.get(message.getMostSignificantBits(), message.getLeastSignificantBits());
+        if (peer != null && peer.isReady() && message.getPort() != 0) {
+            // A connected peer's beacon only refreshes liveness,
+            // which recent TCP traffic may already have done
+            if (!ignoreActiveBeacons || now - peer.getReceivedAt() > TimeUnit.MILLISECONDS.toNanos(beaconInterval)) {
+                peer.onPing(now, getEvasiveTimeout(), getExpiredTimeout());
+            }
+            return;
+        }
+
+        if (peer == null) {
+            // Nothing to do for a peer we never knew that is leaving
+            if (message.getPort() == 0) {
+                return;
+            }
+            peer = getZrePeer(message.getIdentity(), String.format("tcp://%s:%d", from, message.getPort()));
+        }
+
+        if (message.getPort() == 0) {
+            removeZrePeer(peer);
+        } else if (peer.isReady()) {
+            peer.onPing(now, getEvasiveTimeout(), getExpiredTimeout());
+        } else if (verbose) {
+            System.err.printf("E: Ignoring beacon from %s in state %s\n", peer.getName(), peer.getState());
+        }
+    }
+
+    private void onBeacon(Message message) {
+        byte[] data = message.popFrame().getData();
+        onBeacon(new UdpBeaconView().wrap(ByteBuffer.wrap(data), data.length), message.popString());
+    }
+
+    /**
+     * Peers beacon less often while the peer set is stable, so silence is
+     * only evasive relative to the current beacon interval. The evasive
+     * timeout scales with it, but by at most one beacon interval, and
+     * expiry still follows evasive by the usual margin, since an evasive
+     * peer is pinged and answers whatever its beacon interval.
+     *
+     * @return The extra silence allowed, in milliseconds
+     */
+    private int getBackoffSlack() {
+        if (beaconInterval <= interval) {
+            return 0;
+        }
+
+        long scaled = (long) evasiveTimeout * beaconInterval / interval;
+        return (int) Math.min(scaled - evasiveTimeout, beaconInterval);
+    }
+
+    private int getEvasiveTimeout() {
+        return evasiveTimeout + getBackoffSlack();
+    }
+
+    private int getExpiredTimeout() {
+        return expiredTimeout + getBackoffSlack();
+    }
+
+    /**
+     * A peer came or went, so the agent should beacon more often again.
+     */
+    private void onPeersChanged() {
+        if (changed != null) {
+            changed.run();
+        } else {
+            pipe.send(new Message(CHANGED_FRAME));
+        }
+    }
+
+    private ZrePeer getZrePeer(String identity, String endpoint) {
+        ZrePeer peer = getPeer(identity);
+        if (peer == null) {
+            peer = new ZrePeer(context, identity);
+            peer.setSendQueue(sendQueueLimit, sendPolicy);
+            peer.setListener(sendQueueListener);
+            peer.setMetrics(metrics);
+
+            // Check for other peers on this endpoint
+            for (ZrePeer other : new ArrayList<>(peers.values())) {
+                if (other.getEndpoint().equals(endpoint)) {
+                    removeZrePeer(other);
+                }
+            }
+
+            putPeer(identity, peer);
+            peer.connect(this.identity, endpoint);
+
+            // Not evasive before it has had time to answer our HELLO, at
+            // least one liveness check, however short the timeouts
+            peer.onPing(now, Math.max(interval, getEvasiveTimeout()), Math.max(interval, getExpiredTimeout()));
+            schedule(peer);
+            publishDirectory();
+            onPeersChanged();
+
+            // Handshake discovery by sending HELLO as first message
+            HelloMessage hello = new HelloMessage()
+                .withEndpoint(this.endpoint)
+                .withName(this.name)
+                .withGroups(new ArrayList<>(ownGroups))
+                .withStatus(this.status)
+                .withHeaders(headers);
+            peer.send(hello);
+
+            logger.info(ZreLogger.Event.ENTER, peer.getIdentity(), "Peer %s connected to %s", peer.getIdentity(), this.identity);
+        }
+
+        return peer;
+    }
+
+    private void schedule(ZrePeer peer) {
+        peer.setWakeAt(peer.getNextWakeAt(now));
+        deadlines.add(peer);
+    }
+
+    private ZrePeer putPeer(String identity, ZrePeer peer) {
+        if (ZreIdentity.isUuid(identity)) {
+            peersByUuid.put(ZreIdentity.getMostSignificantBits(identity), ZreIdentity.getLeastSignificantBits(identity), peer);
+        }
+
+        return peers.put(identity, peer);
+    }
+
+    private ZrePeer removePeer(String identity) {
+        if (ZreIdentity.isUuid(identity)) {
+            peersByUuid.remove(ZreIdentity.getMostSignificantBits(identity), ZreIdentity.getLeastSignificantBits(identity));
+        }
+
+        return peers.remove(identity);
+    }
+
+    private ZrePeer getPeer(String identity) {
+        return peers.get(identity);
+    }
+
+    private ZrePeer getPeer(byte[] identity) {
+        // Look up by UUID when we can, so the identity is never decoded
+        if (ZreIdentity.isUuid(identity)) {
+            return peersByUuid.get(ZreIdentity.getMostSignificantBits(identity), ZreIdentity.getLeastSignificantBits(identity));
+        }
+
+        return peers.get(ZreIdentity.toString(identity));
+    }
+
+    private void removeZrePeer(ZrePeer peer) {
+        peer.disconnect();
+
+        removePeer(peer.getIdentity());
+        metrics.removePeer(peer.getIdentity());
+        for (ZreGroup group : peerGroups.values()) {
+            peer.leave(group);
+        }
+
+        publishDirectory();
+        onPeersChanged();
+
+        logger.info(ZreLogger.Event.EXIT, peer.getIdentity(), "Peer %s disconnected from %s", peer.getIdentity(), this.identity);
+        outbox.send(new Message(EXIT).addFrame(peer.getIdentityFrame()).addFrame(peer.getNameFrame()));
+    }
+
+    /**
+     * Publish a new snapshot of our peers and groups, merged with those of
+     * the other shards, for the interface to query.
+     */
+    private void publishDirectory() {
+        directory.publish(index, new ZrePeerDirectory(peers.values(), peerGroups.values()));
+    }
+
+    private ZreGroup getZreGroup(String name) {
+        ZreGroup group = peerGroups.get(name);
+        if (group == null) {
+            group = new ZreGroup(name);
+            group.setTraffic(metrics.addGroup(name));
+            peerGroups.put(name, group);
+        }
+
+        return group;
+    }
+
+    private void onSetName(Message message) {
+        name = message.popString();
+    }
+
+    private void onSetHeader(Message message) {
+        headers.put(message.popString(), message.popString());
+    }
+
+    private void onSetEndpoint(Message message) {
+        endpoint = message.popString();
+    }
+
+    private void onSetInterval(Message message) {
+        interval = message.popInt();
+        if (started) {
+            reactor.cancel(pingHandler);
+            reactor.addTimer(interval, -1, pingHandler);
+        }
+    }
+
+    private void onSetSendQueue(Message message) {
+        sendQueueLimit = message.popInt();
+        sendPolicy = ZreSendPolicy.valueOf(message.popString());
+        for (ZrePeer peer : peers.values()) {
+            peer.setSendQueue(sendQueueLimit, sendPolicy);
+        }
+    }
+
+    private void onJoin(Message message) {
+        // The agent has already checked we weren't in the group
+        String name = message.popString();
+        status = message.popInt();
+        ownGroups.add(name);
+
+        JoinMessage join = new JoinMessage().withGroup(name).withStatus(status);
+        for (ZrePeer peer : peers.values()) {
+            peer.send(join);
+        }
+    }
+
+    private void onLeave(Message message) {
+        // The agent has already checked we were in the group
+        String name = message.popString();
+        status = message.popInt();
+        ownGroups.remove(name);
+
+        LeaveMessage leave = new LeaveMessage().withGroup(name).withStatus(status);
+        for (ZrePeer peer : peers.values()) {
+            peer.send(leave);
+        }
+    }
+
+    private void onWhisper(Message message) {
+        // Get peer to send message to
+        ZrePeer peer = getPeer(message.popFrame().getData());
+
+        // Send frame on out to peer's mailbox, drop message
+        // if peer doesn't exist (may have been destroyed)
+        if (peer != null) {
+            long start = System.nanoTime();
+            WhisperMessage whisper = new WhisperMessage().withContent(message.popFrame());
+            peer.send(whisper);
+            peer.getTraffic().getTime().record(System.nanoTime() - start);
+        }
+    }
+
+    private void onShout(Message message) {
+        // Get group to send message to
+        String name = message.popString();
+        ZreGroup group = peerGroups.get(name);
+
+        // Send frame on out to group's mailbox, drop message
+        // if group doesn't exist (may have been destroyed)
+        if (group != null) {
+            long start = System.nanoTime();
+            ShoutMessage shout = new ShoutMessage().withGroup(name).withContent(message.popFrame());
+            group.send(shout);
+            group.getTraffic().onSend(shout.getContent().getData().length);
+            group.getTraffic().getTime().record(System.nanoTime() - start);
+        }
+    }
+
+    private void onWhisperBatch(Message message) {
+        // Get peer to send messages to
+        ZrePeer peer = getPeer(message.popFrame().getData());
+
+        // Each remaining frame is one whisper to the same peer
+        if (peer != null) {
+            long start = System.nanoTime();
+            while (!message.isEmpty()) {
+                WhisperMessage whisper = new WhisperMessage().withContent(message.popFrame());
+                peer.send(whisper);
+            }
+            peer.getTraffic().getTime().record(System.nanoTime() - start);
+        }
+    }
+
+    private void onShoutBatch(Message message) {
+        // Get group to send messages to
+        String name = message.popString();
+        ZreGroup group = peerGroups.get(name);
+
+        // Each remaining frame is one shout to the same group
+        if (group != null) {
+            long start = System.nanoTime();
+            while (!message.isEmpty()) {
+                ShoutMessage shout = new ShoutMessage().withGroup(name).withContent(message.popFrame());
+                group.send(shout);
+                group.getTraffic().onSend(shout.getContent().getData().length);
+            }
+            group.getTraffic().getTime().record(System.nanoTime() - start);
+        }
+    }
+
+    /**
+     * Decode and handle one message.
+     *
+     * @return The peer the message was from, or null if it was dropped
+     */
+    private ZrePeer receive(Message frames) {
+        // Find the peer from its raw identity, strings are only
+        // built for a peer we have not seen yet
+        byte[] identity = frames.popFrame().getData();
+
+        ZreCodec.MessageType messageType = codec.deserialize(frames);
+        if (messageType == null) {
+            onMalformed(identity, codec.getRejection());
+            return null;
+        }
+
+        ZrePeer peer = getPeer(identity);
+        if (messageType == ZreCodec.MessageType.HELLO) {
+            // On HELLO we may create the peer if it's unknown
+            // On other commands the peer must already exist
+            if (peer == null) {
+                peer = getZrePeer(ZreIdentity.toString(identity), codec.getHello().getEndpoint());
+            }
+            peer.onReady();
+        } else if (messageType == ZreCodec.MessageType.PING_OK) {
+            // On PING-OK we may set the peer from EVASIVE back to READY
+            if (peer != null) {
+                peer.onReady();
+            }
+        }
+
+        // Ignore command if peer isn't ready
+        if (peer == null || !peer.isReady()) {
+            if (verbose) {
+                System.err.printf("E: Discarding %s from %s\n", messageType, peer == null ? ZreIdentity.toString(identity) : peer.getName());
+            }
+            return null;
+        }
+
+        // Activity from peer resets peer timers
+        peer.onPing(now, getEvasiveTimeout(), getExpiredTimeout());
+        peer.onMessage(now);
+        metrics.onReceive(peer.getTraffic(), getContentSize(messageType));
+
+        // Now process each command
+        switch (messageType) {
+            case HELLO:
+                onHello(peer);
+                break;
+            case WHISPER:
+                onWhisper(peer);
+                break;
+            case SHOUT:
+                onShout(peer);
+                break;
+            case PING:
+                onPing(peer);
+                break;
+            case PING_OK:
+                onPingOk(peer);
+                break;
+            case JOIN:
+                onJoin(peer);
+                break;
+            case LEAVE:
+                onLeave(peer);
+                break;
+        }
+
+        return peer;
+    }
+
+    private int getContentSize(ZreCodec.MessageType messageType) {
+        switch (messageType) {
+            case WHISPER:
+                return codec.getWhisper().getContent().getData().length;
+            case SHOUT:
+                return codec.getShout().getContent().getData().length;
+            default:
+                return 0;
+        }
+    }
+
+    private void onHello(ZrePeer peer) {
+        HelloMessage hello = codec.getHello();
+        if (!checkSequence(peer, hello.getSequence())) {
+            return;
+        }
+
+        peer.setName(hello.getName());
+        peer.setGroups(hello.getGroups());
+
+        // Store peer headers for future reference
+        peer.setHeaders(hello.getHeaders());
+
+        // Publish our log to any collector the peer announces
+        String collector = peer.getHeader(ZreLogCollector.HEADER, null);
+        if (collector != null) {
+            logger.connect(collector);
+        }
+
+        // Join peer to listed groups
+        List<ZreGroup> groups = new ArrayList<>();
+        for (String name : hello.getGroups()) {
+            ZreGroup group = getZreGroup(name);
+            peer.join(group);
+            groups.add(group);
+        }
+
+        // Hello command holds latest status of peer
+        peer.setStatus(hello.getStatus());
+
+        // Publish before the events, so the caller can look the peer up
+        publishDirectory();
+
+        // Tell the caller about the new peer
+        outbox.send(new Message(ENTER).addFrame(peer.getIdentityFrame()).addFrame(peer.getNameFrame()));
+
+        // Now tell the caller about the peers groups
+        for (ZreGroup group : groups) {
+            outbox.send(new Message(JOIN).addFrame(peer.getIdentityFrame()).addFrame(peer.getNameFrame()).addFrame(group.getNameFrame()));
+        }
+    }
+
+    private void onWhisper(ZrePeer peer) {
+        WhisperMessage whisper = codec.getWhisper();
+        if (!checkSequence(peer, whisper.getSequence())) {
+            return;
+        }
+
+        outbox.send(new Message(WHISPER).addFrame(peer.getIdentityFrame()).addFrame(peer.getNameFrame()).addFrame(whisper.getContent()));
+    }
+
+    private void onShout(ZrePeer peer) {
+        ShoutMessage shout = codec.getShout();
+        if (!checkSequence(peer, shout.getSequence())) {
+            return;
+        }
+
+        ZreGroup group = peerGroups.get(shout.getGroup());
+        if (group != null) {
+            group.getTraffic().onReceive(shout.getContent().getData().length);
+        }
+
+        outbox.send(new Message(SHOUT).addFrame(peer.getIdentityFrame()).addFrame(peer.getNameFrame()).addString(shout.getGroup()).addFrame(shout.getContent()));
+        if (group != null) {
+            group.getTraffic().getTime().record(System.nanoTime() - now);
+        }
+    }
+
+    private void onPing(ZrePeer peer) {
+        PingMessage ping = codec.getPing();
+        checkSequence(peer, ping.getSequence());
+
+        peer.send(new PingOkMessage());
+    }
+
+    private void onPingOk(ZrePeer peer) {
+        PingOkMessage pingOk = codec.getPingOk();
+        checkSequence(peer, pingOk.getSequence());
+    }
+
+    private void onJoin(ZrePeer peer) {
+        JoinMessage join = codec.getJoin();
+        if (!checkSequence(peer, join.getSequence())) {
+            return;
+        }
+
+        String name = join.getGroup();
+        ZreGroup group = getZreGroup(name);
+        peer.join(group);
+        assert (join.getStatus() == peer.getStatus());
+        publishDirectory();
+
+        // Now tell the caller about the peer joined a group
+        outbox.send(new Message(JOIN).addFrame(peer.getIdentityFrame()).addFrame(peer.getNameFrame()).addFrame(group.getNameFrame()));
+    }
+
+    private void onLeave(ZrePeer peer) {
+        LeaveMessage leave = codec.getLeave();
+        if (!checkSequence(peer, leave.getSequence())) {
+            return;
+        }
+
+        String name = leave.getGroup();
+        ZreGroup group = getZreGroup(name);
+        peer.leave(group);
+        assert (leave.getStatus() == peer.getStatus());
+        publishDirectory();
+
+        // Now tell the caller about the peer joined a group
+        outbox.send(new Message(LEAVE).addFrame(peer.getIdentityFrame()).addFrame(peer.getNameFrame()).addFrame(group.getNameFrame()));
+    }
+
+    /**
+     * Drop a malformed message. Reports are rate limited so a flood of
+     * garbage can't flood the log as well, and a peer that keeps
+     * sending garbage is disconnected.
+     */
+    private void onMalformed(byte[] address, ZreCodec.Rejection rejection) {
+        metrics.add(ZreMetrics.Counter.MALFORMED, 1);
+        ZrePeer peer = getPeer(address);
+        if (now - malformedReportedAt >= TimeUnit.MILLISECONDS.toNanos(ZreConstants.MALFORMED_LOG)) {
+            String sender = peer != null ? peer.getIdentity() : ZreIdentity.toString(address);
+            logger.warn(ZreLogger.Event.OTHER, sender, "Peer %s dropped malformed message (%s) from %s, %d more since last report",
+                identity, rejection, sender, malformedSuppressed);
+            malformedReportedAt = now;
+            malformedSuppressed = 0;
+        } else {
+            malformedSuppressed++;
+        }
+
+        if (peer != null && peer.onMalformed() >= ZreConstants.MALFORMED_MAX) {
+            logger.error(ZreLogger.Event.OTHER, peer.getIdentity(), "Peer %s sent too many malformed messages to %s", peer.getIdentity(), identity);
+            removeZrePeer(peer);
+        }
+    }
+
+    private boolean checkSequence(ZrePeer peer, int sequence) {
+        boolean isValid = peer.isValidSequence(sequence);
+        if (!isValid) {
+            metrics.add(ZreMetrics.Counter.SEQUENCE_GAPS, 1);
+            logger.error(ZreLogger.Event.OTHER, peer.getIdentity(), "Peer %s lost messages from %s", identity, peer.getIdentity());
+            removeZrePeer(peer);
+        }
+
+        return isValid;
+    }
+
+    /**
+     * Handler for one forwarded command.
+     */
+    private interface Command {
+        void execute(Message message);
+    }
+
+    /**
+     * Handles commands from the agent, when we run on our own thread.
+     */
+    private class PipeHandler extends LoopAdapter {
+        @Override
+        protected void execute(Reactor reactor, Socket socket) {
+            long start = System.nanoTime();
+            Message message = pipe.receiveMessage();
+
+            // Drain whatever else is already queued, up to our budget, so a
+            // burst of peer traffic costs one wakeup rather than one each
+            int handled = 0;
+            while (message != null) {
+                handled++;
+                ZreShard.this.execute(message);
+
+                // Pipe is closed once we stop
+                if (stopped || handled >= PIPE_BUDGET) {
+                    break;
+                }
+
+                message = pipe.receiveMessage(MessageFlag.DONT_WAIT);
+            }
+
+            loopTime.record(System.nanoTime() - start);
+        }
+    }
+
+    private class SendQueueListener implements ZrePeer.Listener {
+        @Override
+        public void onQueued(ZrePeer peer) {
+            backlog.add(peer);
+            if (!flushing) {
+                flushing = true;
+                reactor.addTimer(PEER_FLUSH, 1, flushTimer);
+            }
+        }
+
+        @Override
+        public void onOverflow(ZrePeer peer, int depth) {
+            metrics.add(ZreMetrics.Counter.SEND_OVERFLOWS, 1);
+            logger.warn(ZreLogger.Event.OTHER, peer.getIdentity(), "Peer %s send queue from %s overflowed, applying %s", peer.getIdentity(), identity, sendPolicy);
+            outbox.send(new Message(BACKPRESSURE).addFrame(peer.getIdentityFrame()).addFrame(peer.getNameFrame()).addInt(depth));
+        }
+
+        @Override
+        public void onDisconnected(ZrePeer peer) {
+            // Not removed here, we may be part way through sending to its groups
+            disconnected.add(peer);
+            if (!flushing) {
+                flushing = true;
+                reactor.addTimer(PEER_FLUSH, 1, flushTimer);
+            }
+        }
+    }
+
+    private class FlushTimer extends LoopAdapter {
+        @Override
+        public void execute(Reactor reactor, Pollable pollable) {
+            long start = System.nanoTime();
+
+            // Drop peers that have drained or gone away
+            backlog.removeIf(peer -> peer.getState() == ZrePeer.State.DISCONNECTED || peer.flush());
+
+            // Peers that couldn't keep up exit, unless already replaced
+            for (ZrePeer peer : disconnected) {
+                if (getPeer(peer.getIdentity()) == peer) {
+                    removeZrePeer(peer);
+                }
+            }
+            disconnected.clear();
+
+            flushing = !backlog.isEmpty();
+            if (flushing) {
+                reactor.addTimer(PEER_FLUSH, 1, this);
+            }
+            loopTime.record(System.nanoTime() - start);
+        }
+    }
+
+    private class PingHandler extends LoopAdapter {
+        @Override
+        public void execute(Reactor reactor, Pollable pollable) {
+            now = System.nanoTime();
+            pingPeers();
+            loopTime.record(System.nanoTime() - now);
+        }
+
+        private void pingPeers() {
+            // Only visit peers whose deadline has passed. Deadlines pushed
+            // back by traffic since they were scheduled are simply requeued.
+            while (!deadlines.isEmpty() && deadlines.peek().getWakeAt() - now <= 0) {
+                ZrePeer peer = deadlines.poll();
+
+                // Removed or failed peers are dropped from the queue
+                if (peer.getState() == ZrePeer.State.DISCONNECTED) {
+                    continue;
+                }
+
+                String identity = peer.getIdentity();
+                peer.onWake(now);
+
+                if (peer.isExpired()) {
+                    removeZrePeer(peer);
+                } else if (peer.isEvasive()) {
+                    peer.send(new PingMessage());
+
+                    if (logger.isEnabled(ZreLogger.Level.INFO)) {
+                        logger.info(ZreLogger.Event.OTHER, identity, "Peer %s is being evasive", identity);
+                    }
+                    outbox.send(new Message(EVASIVE).addFrame(peer.getIdentityFrame()).addFrame(peer.getNameFrame()));
+                }
+
+                // Expired peers are disconnected by now
+                if (peer.getState() != ZrePeer.State.DISCONNECTED) {
+                    schedule(peer);
+                }
+            }
+        }
+    }
+}
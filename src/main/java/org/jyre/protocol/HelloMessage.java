@@ -31,11 +31,13 @@ package org.jyre.protocol;
 public class HelloMessage {
     public static final ZreCodec.MessageType MESSAGE_TYPE = ZreCodec.MessageType.HELLO;
 
-    protected Integer version;
-    protected Integer sequence;
+    protected int version;
+    protected int sequence;
+    protected boolean sequenceSet;
     protected String endpoint;
     protected java.util.List<String> groups;
-    protected Integer status;
+    protected int status;
+    protected boolean statusSet;
     protected String name;
     protected java.util.Map<String, String> headers;
 
@@ -44,17 +46,27 @@ public class HelloMessage {
      * 
      * @return The sequence field
      */
-    public Integer getSequence() {
+    public int getSequence() {
         return sequence;
     }
 
+    /**
+     * Check whether the sequence field has been set.
+     *
+     * @return true if the sequence field has been set, false otherwise
+     */
+    public boolean hasSequence() {
+        return sequenceSet;
+    }
+
     /**
      * Set the sequence field.
      * 
      * @param sequence The sequence field
      */
-    public void setSequence(Integer sequence) {
+    public void setSequence(int sequence) {
         this.sequence = sequence;
+        this.sequenceSet = true;
     }
 
     /**
@@ -63,8 +75,9 @@ public class HelloMessage {
      * @param sequence The sequence field
      * @return The HelloMessage, for method chaining
      */
-    public HelloMessage withSequence(Integer sequence) {
+    public HelloMessage withSequence(int sequence) {
         this.sequence = sequence;
+        this.sequenceSet = true;
         return this;
     }
 
@@ -154,17 +167,27 @@ public class HelloMessage {
      * 
      * @return The status field
      */
-    public Integer getStatus() {
+    public int getStatus() {
         return status;
     }
 
+    /**
+     * Check whether the status field has been set.
+     *
+     * @return true if the status field has been set, false otherwise
+     */
+    public boolean hasStatus() {
+        return statusSet;
+    }
+
     /**
      * Set the status field.
      * 
      * @param status The status field
      */
-    public void setStatus(Integer status) {
+    public void setStatus(int status) {
         this.status = status;
+        this.statusSet = true;
     }
 
     /**
@@ -173,8 +196,9 @@ public class HelloMessage {
      * @param status The status field
      * @return The HelloMessage, for method chaining
      */
-    public HelloMessage withStatus(Integer status) {
+    public HelloMessage withStatus(int status) {
         this.status = status;
+        this.statusSet = true;
         return this;
     }
 
@@ -31,27 +31,39 @@ package org.jyre.protocol;
 public class JoinMessage {
     public static final ZreCodec.MessageType MESSAGE_TYPE = ZreCodec.MessageType.JOIN;
 
-    protected Integer version;
-    protected Integer sequence;
+    protected int version;
+    protected int sequence;
+    protected boolean sequenceSet;
     protected String group;
-    protected Integer status;
+    protected int status;
+    protected boolean statusSet;
 
     /**
      * Get the sequence field.
      * 
      * @return The sequence field
      */
-    public Integer getSequence() {
+    public int getSequence() {
         return sequence;
     }
 
+    /**
+     * Check whether the sequence field has been set.
+     *
+     * @return true if the sequence field has been set, false otherwise
+     */
+    public boolean hasSequence() {
+        return sequenceSet;
+    }
+
     /**
      * Set the sequence field.
      * 
      * @param sequence The sequence field
      */
-    public void setSequence(Integer sequence) {
+    public void setSequence(int sequence) {
         this.sequence = sequence;
+        this.sequenceSet = true;
     }
 
     /**
@@ -60,8 +72,9 @@ public class JoinMessage {
      * @param sequence The sequence field
      * @return The JoinMessage, for method chaining
      */
-    public JoinMessage withSequence(Integer sequence) {
+    public JoinMessage withSequence(int sequence) {
         this.sequence = sequence;
+        this.sequenceSet = true;
         return this;
     }
 
@@ -99,17 +112,27 @@ public class JoinMessage {
      * 
      * @return The status field
      */
-    public Integer getStatus() {
+    public int getStatus() {
         return status;
     }
 
+    /**
+     * Check whether the status field has been set.
+     *
+     * @return true if the status field has been set, false otherwise
+     */
+    public boolean hasStatus() {
+        return statusSet;
+    }
+
     /**
      * Set the status field.
      * 
      * @param status The status field
      */
-    public void setStatus(Integer status) {
+    public void setStatus(int status) {
         this.status = status;
+        this.statusSet = true;
     }
 
     /**
@@ -118,8 +141,9 @@ public class JoinMessage {
      * @param status The status field
      * @return The JoinMessage, for method chaining
      */
-    public JoinMessage withStatus(Integer status) {
+    public JoinMessage withStatus(int status) {
         this.status = status;
+        this.statusSet = true;
         return this;
     }
 }
@@ -31,11 +31,16 @@ package org.jyre.protocol;
 public class LogMessage {
     public static final ZreLogCodec.MessageType MESSAGE_TYPE = ZreLogCodec.MessageType.LOG;
 
-    protected Integer level;
-    protected Integer event;
-    protected Integer node;
-    protected Integer peer;
-    protected Long time;
+    protected int level;
+    protected boolean levelSet;
+    protected int event;
+    protected boolean eventSet;
+    protected int node;
+    protected boolean nodeSet;
+    protected int peer;
+    protected boolean peerSet;
+    protected long time;
+    protected boolean timeSet;
     protected String data;
 
     /**
@@ -43,17 +48,27 @@ public class LogMessage {
      * 
      * @return The level field
      */
-    public Integer getLevel() {
+    public int getLevel() {
         return level;
     }
 
+    /**
+     * Check whether the level field has been set.
+     *
+     * @return true if the level field has been set, false otherwise
+     */
+    public boolean hasLevel() {
+        return levelSet;
+    }
+
     /**
      * Set the level field.
      * 
      * @param level The level field
      */
-    public void setLevel(Integer level) {
+    public void setLevel(int level) {
         this.level = level;
+        this.levelSet = true;
     }
 
     /**
@@ -62,8 +77,9 @@ public class LogMessage {
      * @param level The level field
      * @return The LogMessage, for method chaining
      */
-    public LogMessage withLevel(Integer level) {
+    public LogMessage withLevel(int level) {
         this.level = level;
+        this.levelSet = true;
         return this;
     }
 
@@ -72,17 +88,27 @@ public class LogMessage {
      * 
      * @return The event field
      */
-    public Integer getEvent() {
+    public int getEvent() {
         return event;
     }
 
+    /**
+     * Check whether the event field has been set.
+     *
+     * @return true if the event field has been set, false otherwise
+     */
+    public boolean hasEvent() {
+        return eventSet;
+    }
+
     /**
      * Set the event field.
      * 
      * @param event The event field
      */
-    public void setEvent(Integer event) {
+    public void setEvent(int event) {
         this.event = event;
+        this.eventSet = true;
     }
 
     /**
@@ -91,8 +117,9 @@ public class LogMessage {
      * @param event The event field
      * @return The LogMessage, for method chaining
      */
-    public LogMessage withEvent(Integer event) {
+    public LogMessage withEvent(int event) {
         this.event = event;
+        this.eventSet = true;
         return this;
     }
 
@@ -101,17 +128,27 @@ public class LogMessage {
      * 
      * @return The node field
      */
-    public Integer getNode() {
+    public int getNode() {
         return node;
     }
 
+    /**
+     * Check whether the node field has been set.
+     *
+     * @return true if the node field has been set, false otherwise
+     */
+    public boolean hasNode() {
+        return nodeSet;
+    }
+
     /**
      * Set the node field.
      * 
      * @param node The node field
      */
-    public void setNode(Integer node) {
+    public void setNode(int node) {
         this.node = node;
+        this.nodeSet = true;
     }
 
     /**
@@ -120,8 +157,9 @@ public class LogMessage {
      * @param node The node field
      * @return The LogMessage, for method chaining
      */
-    public LogMessage withNode(Integer node) {
+    public LogMessage withNode(int node) {
         this.node = node;
+        this.nodeSet = true;
         return this;
     }
 
@@ -130,17 +168,27 @@ public class LogMessage {
      * 
      * @return The peer field
      */
-    public Integer getPeer() {
+    public int getPeer() {
         return peer;
     }
 
+    /**
+     * Check whether the peer field has been set.
+     *
+     * @return true if the peer field has been set, false otherwise
+     */
+    public boolean hasPeer() {
+        return peerSet;
+    }
+
     /**
      * Set the peer field.
      * 
      * @param peer The peer field
      */
-    public void setPeer(Integer peer) {
+    public void setPeer(int peer) {
         this.peer = peer;
+        this.peerSet = true;
     }
 
     /**
@@ -149,8 +197,9 @@ public class LogMessage {
      * @param peer The peer field
      * @return The LogMessage, for method chaining
      */
-    public LogMessage withPeer(Integer peer) {
+    public LogMessage withPeer(int peer) {
         this.peer = peer;
+        this.peerSet = true;
         return this;
     }
 
@@ -159,17 +208,27 @@ public class LogMessage {
      * 
      * @return The time field
      */
-    public Long getTime() {
+    public long getTime() {
         return time;
     }
 
+    /**
+     * Check whether the time field has been set.
+     *
+     * @return true if the time field has been set, false otherwise
+     */
+    public boolean hasTime() {
+        return timeSet;
+    }
+
     /**
      * Set the time field.
      * 
      * @param time The time field
      */
-    public void setTime(Long time) {
+    public void setTime(long time) {
         this.time = time;
+        this.timeSet = true;
     }
 
     /**
@@ -178,8 +237,9 @@ public class LogMessage {
      * @param time The time field
      * @return The LogMessage, for method chaining
      */
-    public LogMessage withTime(Long time) {
+    public LogMessage withTime(long time) {
         this.time = time;
+        this.timeSet = true;
         return this;
     }
 
@@ -31,25 +31,36 @@ package org.jyre.protocol;
 public class PingMessage {
     public static final ZreCodec.MessageType MESSAGE_TYPE = ZreCodec.MessageType.PING;
 
-    protected Integer version;
-    protected Integer sequence;
+    protected int version;
+    protected int sequence;
+    protected boolean sequenceSet;
 
     /**
      * Get the sequence field.
      * 
      * @return The sequence field
      */
-    public Integer getSequence() {
+    public int getSequence() {
         return sequence;
     }
 
+    /**
+     * Check whether the sequence field has been set.
+     *
+     * @return true if the sequence field has been set, false otherwise
+     */
+    public boolean hasSequence() {
+        return sequenceSet;
+    }
+
     /**
      * Set the sequence field.
      * 
      * @param sequence The sequence field
      */
-    public void setSequence(Integer sequence) {
+    public void setSequence(int sequence) {
         this.sequence = sequence;
+        this.sequenceSet = true;
     }
 
     /**
@@ -58,8 +69,9 @@ public class PingMessage {
      * @param sequence The sequence field
      * @return The PingMessage, for method chaining
      */
-    public PingMessage withSequence(Integer sequence) {
+    public PingMessage withSequence(int sequence) {
         this.sequence = sequence;
+        this.sequenceSet = true;
         return this;
     }
 }
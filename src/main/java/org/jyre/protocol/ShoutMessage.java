@@ -31,8 +31,9 @@ package org.jyre.protocol;
 public class ShoutMessage {
     public static final ZreCodec.MessageType MESSAGE_TYPE = ZreCodec.MessageType.SHOUT;
 
-    protected Integer version;
-    protected Integer sequence;
+    protected int version;
+    protected int sequence;
+    protected boolean sequenceSet;
     protected String group;
     protected org.zeromq.api.Message.Frame content = org.zeromq.api.Message.EMPTY_FRAME;
 
@@ -41,17 +42,27 @@ public class ShoutMessage {
      * 
      * @return The sequence field
      */
-    public Integer getSequence() {
+    public int getSequence() {
         return sequence;
     }
 
+    /**
+     * Check whether the sequence field has been set.
+     *
+     * @return true if the sequence field has been set, false otherwise
+     */
+    public boolean hasSequence() {
+        return sequenceSet;
+    }
+
     /**
      * Set the sequence field.
      * 
      * @param sequence The sequence field
      */
-    public void setSequence(Integer sequence) {
+    public void setSequence(int sequence) {
         this.sequence = sequence;
+        this.sequenceSet = true;
     }
 
     /**
@@ -60,8 +71,9 @@ public class ShoutMessage {
      * @param sequence The sequence field
      * @return The ShoutMessage, for method chaining
      */
-    public ShoutMessage withSequence(Integer sequence) {
+    public ShoutMessage withSequence(int sequence) {
         this.sequence = sequence;
+        this.sequenceSet = true;
         return this;
     }
 
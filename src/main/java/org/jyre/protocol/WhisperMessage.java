@@ -31,8 +31,9 @@ package org.jyre.protocol;
 public class WhisperMessage {
     public static final ZreCodec.MessageType MESSAGE_TYPE = ZreCodec.MessageType.WHISPER;
 
-    protected Integer version;
-    protected Integer sequence;
+    protected int version;
+    protected int sequence;
+    protected boolean sequenceSet;
     protected org.zeromq.api.Message.Frame content = org.zeromq.api.Message.EMPTY_FRAME;
 
     /**
@@ -40,17 +41,27 @@ public class WhisperMessage {
      * 
      * @return The sequence field
      */
-    public Integer getSequence() {
+    public int getSequence() {
         return sequence;
     }
 
+    /**
+     * Check whether the sequence field has been set.
+     *
+     * @return true if the sequence field has been set, false otherwise
+     */
+    public boolean hasSequence() {
+        return sequenceSet;
+    }
+
     /**
      * Set the sequence field.
      * 
      * @param sequence The sequence field
      */
-    public void setSequence(Integer sequence) {
+    public void setSequence(int sequence) {
         this.sequence = sequence;
+        this.sequenceSet = true;
     }
 
     /**
@@ -59,8 +70,9 @@ public class WhisperMessage {
      * @param sequence The sequence field
      * @return The WhisperMessage, for method chaining
      */
-    public WhisperMessage withSequence(Integer sequence) {
+    public WhisperMessage withSequence(int sequence) {
         this.sequence = sequence;
+        this.sequenceSet = true;
         return this;
     }
 
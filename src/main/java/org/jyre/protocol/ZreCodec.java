@@ -87,6 +87,85 @@ public class ZreCodec {
         PING_OK
     }
 
+    //  Reasons for rejecting a malformed message
+    public enum Rejection {
+        INVALID_SIGNATURE,
+        INVALID_ID,
+        INVALID_VALUE,
+        MISSING_FRAME,
+        TRUNCATED
+    }
+
+    //  Cached, values() returns a new array on every call
+    private static final MessageType[] MESSAGE_TYPES = MessageType.values();
+
+    //  Offset of the sequence field, after signature, message ID and version
+    public static final int SEQUENCE_OFFSET = 4;
+
+    /**
+     * A message serialized once for fan-out to many peers. Only the
+     * sequence field differs between peers, so each send copies the
+     * encoded header, patches the sequence in place and shares the
+     * content frame.
+     */
+    public static class PreparedMessage {
+        private final MessageType type;
+        private final byte[] header;
+        private final Frame content;
+
+        PreparedMessage(MessageType type, Frame header, Frame content) {
+            this.type = type;
+            this.header = header.getData();
+            this.content = content;
+        }
+
+        /**
+         * Get the message type.
+         *
+         * @return The MessageType of the prepared message
+         */
+        public MessageType getType() {
+            return type;
+        }
+
+        /**
+         * Get the size of the content frame, for messages with a frame field.
+         *
+         * @return The content size in bytes, or 0 if there is no content
+         */
+        public int getContentSize() {
+            return content != null ? content.getData().length : 0;
+        }
+
+        /**
+         * Create the frames for one peer.
+         *
+         * @param sequence The peer's sequence number
+         * @return The multi-frame message, ready to send
+         */
+        public Message withSequence(int sequence) {
+            //  The socket may hold on to the array until it is written,
+            //  so every send needs its own copy of the header
+            byte[] data = header.clone();
+            data[SEQUENCE_OFFSET] = (byte) (sequence >> 8);
+            data[SEQUENCE_OFFSET + 1] = (byte) sequence;
+
+            Message frames = new Message(new Frame(data));
+            if (content != null) {
+                frames.addFrame(content);
+            }
+
+            return frames;
+        }
+    }
+
+    //  Reuse decoded messages instead of allocating one per receive
+    protected boolean reuse;
+
+    //  Why the last message was rejected, and how many were for each reason
+    protected Rejection rejection;
+    protected final long[] rejected = new long[Rejection.values().length];
+
     protected HelloMessage hello;
     protected WhisperMessage whisper;
     protected ShoutMessage shout;
@@ -95,13 +174,64 @@ public class ZreCodec {
     protected PingMessage ping;
     protected PingOkMessage pingOk;
 
+    /**
+     * Enable or disable reuse of decoded messages.
+     * <p>
+     * When enabled, each message type has a single instance that is
+     * overwritten by every deserialize of that type. A decoded message, and
+     * any message returned by a getter, is then only valid until the next
+     * deserialize on this codec, so callers must copy out anything they keep
+     * before receiving again. Only enable this when one thread owns the
+     * codec and handles each message before reading the next.
+     *
+     * @param reuse true to reuse decoded messages, false to allocate new ones
+     */
+    public void setReuse(boolean reuse) {
+        this.reuse = reuse;
+    }
+
+    /**
+     * @return true if decoded messages are reused, false otherwise
+     */
+    public boolean isReuse() {
+        return reuse;
+    }
+
+    /**
+     * Get the reason the last message was rejected.
+     *
+     * @return The Rejection, or null if the last message was accepted
+     */
+    public Rejection getRejection() {
+        return rejection;
+    }
+
+    /**
+     * Get the number of messages rejected for a reason.
+     *
+     * @param reason The Rejection
+     * @return The number of messages rejected for that reason by this codec
+     */
+    public long getRejected(Rejection reason) {
+        return rejected[reason.ordinal()];
+    }
+
     /**
      * Deserialize a message.
+     * <p>
+     * Malformed messages are rejected with a reason code rather than an
+     * exception, so a peer sending garbage costs little more than a peer
+     * sending valid messages.
      *
-     * @return The MessageType of the deserialized message, or null
+     * @return The MessageType of the deserialized message, or null if it was rejected
      */
     public MessageType deserialize(Message frames) {
-        MessageType type = null;
+        MessageType type;
+        rejection = null;
+        if (frames.isEmpty()) {
+            return reject(Rejection.MISSING_FRAME);
+        }
+
         try {
             //  Read and parse command in frame
             Frame needle = frames.popFrame();
@@ -109,118 +239,141 @@ public class ZreCodec {
             //  Get and check protocol signature
             int signature = (0xffff) & needle.getShort();
             if (signature != (0xaaa0 | 1)) {
-                return null;             //  Invalid signature
+                return reject(Rejection.INVALID_SIGNATURE);
             }
 
             //  Get message id, which is first byte in frame
             int id = (0xff) & needle.getByte();
-            type = MessageType.values()[id-1];
+            if (id < 1 || id > MESSAGE_TYPES.length) {
+                return reject(Rejection.INVALID_ID);
+            }
+            type = MESSAGE_TYPES[id-1];
             switch (type) {
                 case HELLO: {
-                    HelloMessage message = this.hello = new HelloMessage();
+                    HelloMessage message = this.hello = reuse && hello != null ? hello : new HelloMessage();
                     message.version = (0xff) & needle.getByte();
                     if (message.version != 2) {
-                        throw new IllegalArgumentException();
+                        return reject(Rejection.INVALID_VALUE);
                     }
                     message.sequence = (0xffff) & needle.getShort();
+                    message.sequenceSet = true;
                     message.endpoint = needle.getString();
                     message.groups = needle.getClobs();
                     message.status = (0xff) & needle.getByte();
+                    message.statusSet = true;
                     message.name = needle.getString();
                     message.headers = needle.getMap();
                     break;
                 }
                 case WHISPER: {
-                    WhisperMessage message = this.whisper = new WhisperMessage();
+                    WhisperMessage message = this.whisper = reuse && whisper != null ? whisper : new WhisperMessage();
                     message.version = (0xff) & needle.getByte();
                     if (message.version != 2) {
-                        throw new IllegalArgumentException();
+                        return reject(Rejection.INVALID_VALUE);
                     }
                     message.sequence = (0xffff) & needle.getShort();
+                    message.sequenceSet = true;
                     //  Get next frame, leave current untouched
                     if (!frames.isEmpty()) {
                         message.content = frames.popFrame();
                     } else {
-                        throw new IllegalArgumentException("Invalid message: missing frame: content");
+                        return reject(Rejection.MISSING_FRAME);
                     }
                     break;
                 }
                 case SHOUT: {
-                    ShoutMessage message = this.shout = new ShoutMessage();
+                    ShoutMessage message = this.shout = reuse && shout != null ? shout : new ShoutMessage();
                     message.version = (0xff) & needle.getByte();
                     if (message.version != 2) {
-                        throw new IllegalArgumentException();
+                        return reject(Rejection.INVALID_VALUE);
                     }
                     message.sequence = (0xffff) & needle.getShort();
+                    message.sequenceSet = true;
                     message.group = needle.getString();
                     //  Get next frame, leave current untouched
                     if (!frames.isEmpty()) {
                         message.content = frames.popFrame();
                     } else {
-                        throw new IllegalArgumentException("Invalid message: missing frame: content");
+                        return reject(Rejection.MISSING_FRAME);
                     }
                     break;
                 }
                 case JOIN: {
-                    JoinMessage message = this.join = new JoinMessage();
+                    JoinMessage message = this.join = reuse && join != null ? join : new JoinMessage();
                     message.version = (0xff) & needle.getByte();
                     if (message.version != 2) {
-                        throw new IllegalArgumentException();
+                        return reject(Rejection.INVALID_VALUE);
                     }
                     message.sequence = (0xffff) & needle.getShort();
+                    message.sequenceSet = true;
                     message.group = needle.getString();
                     message.status = (0xff) & needle.getByte();
+                    message.statusSet = true;
                     break;
                 }
                 case LEAVE: {
-                    LeaveMessage message = this.leave = new LeaveMessage();
+                    LeaveMessage message = this.leave = reuse && leave != null ? leave : new LeaveMessage();
                     message.version = (0xff) & needle.getByte();
                     if (message.version != 2) {
-                        throw new IllegalArgumentException();
+                        return reject(Rejection.INVALID_VALUE);
                     }
                     message.sequence = (0xffff) & needle.getShort();
+                    message.sequenceSet = true;
                     message.group = needle.getString();
                     message.status = (0xff) & needle.getByte();
+                    message.statusSet = true;
                     break;
                 }
                 case PING: {
-                    PingMessage message = this.ping = new PingMessage();
+                    PingMessage message = this.ping = reuse && ping != null ? ping : new PingMessage();
                     message.version = (0xff) & needle.getByte();
                     if (message.version != 2) {
-                        throw new IllegalArgumentException();
+                        return reject(Rejection.INVALID_VALUE);
                     }
                     message.sequence = (0xffff) & needle.getShort();
+                    message.sequenceSet = true;
                     break;
                 }
                 case PING_OK: {
-                    PingOkMessage message = this.pingOk = new PingOkMessage();
+                    PingOkMessage message = this.pingOk = reuse && pingOk != null ? pingOk : new PingOkMessage();
                     message.version = (0xff) & needle.getByte();
                     if (message.version != 2) {
-                        throw new IllegalArgumentException();
+                        return reject(Rejection.INVALID_VALUE);
                     }
                     message.sequence = (0xffff) & needle.getShort();
+                    message.sequenceSet = true;
                     break;
                 }
                 default:
-                    throw new IllegalArgumentException("Invalid message: unrecognized type: " + type);
+                    return reject(Rejection.INVALID_ID);
             }
 
             return type;
-        } catch (Exception ex) {
-            //  Error returns
-            System.err.printf("E: Malformed message: %s\n", type);
-            ex.printStackTrace();
-            return null;
+        } catch (RuntimeException ex) {
+            //  Frame ended part way through a field
+            return reject(Rejection.TRUNCATED);
         }
     }
 
+    /**
+     * Count a rejected message.
+     *
+     * @param reason The Rejection
+     * @return null, so callers can return it as the message type
+     */
+    private MessageType reject(Rejection reason) {
+        rejection = reason;
+        rejected[reason.ordinal()]++;
+        return null;
+    }
+
     /**
      * Get a HELLO message from the socket.
      *
      * @return The HelloMessage last received on this socket
      */
     public HelloMessage getHello() {
-        if (hello != null) {
+        if (hello == null) {
             hello = new HelloMessage();
         }
 
@@ -242,7 +395,7 @@ public class ZreCodec {
      * @return The WhisperMessage last received on this socket
      */
     public WhisperMessage getWhisper() {
-        if (whisper != null) {
+        if (whisper == null) {
             whisper = new WhisperMessage();
         }
 
@@ -264,7 +417,7 @@ public class ZreCodec {
      * @return The ShoutMessage last received on this socket
      */
     public ShoutMessage getShout() {
-        if (shout != null) {
+        if (shout == null) {
             shout = new ShoutMessage();
         }
 
@@ -286,7 +439,7 @@ public class ZreCodec {
      * @return The JoinMessage last received on this socket
      */
     public JoinMessage getJoin() {
-        if (join != null) {
+        if (join == null) {
             join = new JoinMessage();
         }
 
@@ -308,7 +461,7 @@ public class ZreCodec {
      * @return The LeaveMessage last received on this socket
      */
     public LeaveMessage getLeave() {
-        if (leave != null) {
+        if (leave == null) {
             leave = new LeaveMessage();
         }
 
@@ -330,7 +483,7 @@ public class ZreCodec {
      * @return The PingMessage last received on this socket
      */
     public PingMessage getPing() {
-        if (ping != null) {
+        if (ping == null) {
             ping = new PingMessage();
         }
 
@@ -352,7 +505,7 @@ public class ZreCodec {
      * @return The PingOkMessage last received on this socket
      */
     public PingOkMessage getPingOk() {
-        if (pingOk != null) {
+        if (pingOk == null) {
             pingOk = new PingOkMessage();
         }
 
@@ -381,7 +534,7 @@ public class ZreCodec {
         builder.putByte((byte) 1);       //  Message ID
 
         builder.putByte((byte) 2);
-        builder.putShort((short) (int) message.sequence);
+        builder.putShort((short) message.sequence);
         if (message.endpoint != null) {
             builder.putString(message.endpoint);
         } else {
@@ -392,7 +545,7 @@ public class ZreCodec {
         } else {
             builder.putInt(0);           //  Empty string array
         }
-        builder.putByte((byte) (int) message.status);
+        builder.putByte((byte) message.status);
         if (message.name != null) {
             builder.putString(message.name);
         } else {
@@ -426,7 +579,7 @@ public class ZreCodec {
         builder.putByte((byte) 2);       //  Message ID
 
         builder.putByte((byte) 2);
-        builder.putShort((short) (int) message.sequence);
+        builder.putShort((short) message.sequence);
 
         //  Create multi-frame message
         Message frames = new Message();
@@ -440,6 +593,24 @@ public class ZreCodec {
         return frames;
     }
 
+    /**
+     * Serialize the WHISPER once, for sending to many peers.
+     *
+     * @param message The message to prepare, sequence is ignored
+     * @return The prepared message
+     */
+    public PreparedMessage prepare(WhisperMessage message) {
+        //  Now serialize message into the frame
+        FrameBuilder builder = new FrameBuilder();
+        builder.putShort((short) (0xaaa0 | 1));
+        builder.putByte((byte) 2);       //  Message ID
+
+        builder.putByte((byte) 2);
+        builder.putShort((short) 0);     //  Patched per peer
+
+        return new PreparedMessage(MessageType.WHISPER, builder.build(), message.content);
+    }
+
     /**
      * Send the SHOUT to the socket in one step.
      *
@@ -453,7 +624,7 @@ public class ZreCodec {
         builder.putByte((byte) 3);       //  Message ID
 
         builder.putByte((byte) 2);
-        builder.putShort((short) (int) message.sequence);
+        builder.putShort((short) message.sequence);
         if (message.group != null) {
             builder.putString(message.group);
         } else {
@@ -472,6 +643,29 @@ public class ZreCodec {
         return frames;
     }
 
+    /**
+     * Serialize the SHOUT once, for sending to many peers.
+     *
+     * @param message The message to prepare, sequence is ignored
+     * @return The prepared message
+     */
+    public PreparedMessage prepare(ShoutMessage message) {
+        //  Now serialize message into the frame
+        FrameBuilder builder = new FrameBuilder();
+        builder.putShort((short) (0xaaa0 | 1));
+        builder.putByte((byte) 3);       //  Message ID
+
+        builder.putByte((byte) 2);
+        builder.putShort((short) 0);     //  Patched per peer
+        if (message.group != null) {
+            builder.putString(message.group);
+        } else {
+            builder.putString("");       //  Empty string
+        }
+
+        return new PreparedMessage(MessageType.SHOUT, builder.build(), message.content);
+    }
+
     /**
      * Send the JOIN to the socket in one step.
      *
@@ -485,13 +679,13 @@ public class ZreCodec {
         builder.putByte((byte) 4);       //  Message ID
 
         builder.putByte((byte) 2);
-        builder.putShort((short) (int) message.sequence);
+        builder.putShort((short) message.sequence);
         if (message.group != null) {
             builder.putString(message.group);
         } else {
             builder.putString("");       //  Empty string
         }
-        builder.putByte((byte) (int) message.status);
+        builder.putByte((byte) message.status);
 
         //  Create multi-frame message
         Message frames = new Message();
@@ -515,13 +709,13 @@ public class ZreCodec {
         builder.putByte((byte) 5);       //  Message ID
 
         builder.putByte((byte) 2);
-        builder.putShort((short) (int) message.sequence);
+        builder.putShort((short) message.sequence);
         if (message.group != null) {
             builder.putString(message.group);
         } else {
             builder.putString("");       //  Empty string
         }
-        builder.putByte((byte) (int) message.status);
+        builder.putByte((byte) message.status);
 
         //  Create multi-frame message
         Message frames = new Message();
@@ -545,7 +739,7 @@ public class ZreCodec {
         builder.putByte((byte) 6);       //  Message ID
 
         builder.putByte((byte) 2);
-        builder.putShort((short) (int) message.sequence);
+        builder.putShort((short) message.sequence);
 
         //  Create multi-frame message
         Message frames = new Message();
@@ -569,7 +763,7 @@ public class ZreCodec {
         builder.putByte((byte) 7);       //  Message ID
 
         builder.putByte((byte) 2);
-        builder.putShort((short) (int) message.sequence);
+        builder.putShort((short) message.sequence);
 
         //  Create multi-frame message
         Message frames = new Message();
@@ -579,5 +773,18 @@ public class ZreCodec {
 
         return frames;
     }
+
+    /**
+     * Wrap a serialized message so its sequence can be patched when it is
+     * finally sent, e.g. after waiting in a queue.
+     *
+     * @param type The MessageType of the message
+     * @param frames The serialized message, a header and at most one frame field
+     * @return The prepared message
+     */
+    public static PreparedMessage prepare(MessageType type, Message frames) {
+        Frame header = frames.popFrame();
+        return new PreparedMessage(type, header, frames.isEmpty() ? null : frames.popFrame());
+    }
 }
 
@@ -64,15 +64,85 @@ public class ZreLogCodec {
         LOG
     }
 
+    //  Reasons for rejecting a malformed message
+    public enum Rejection {
+        INVALID_SIGNATURE,
+        INVALID_ID,
+        INVALID_VALUE,
+        MISSING_FRAME,
+        TRUNCATED
+    }
+
+    //  Cached, values() returns a new array on every call
+    private static final MessageType[] MESSAGE_TYPES = MessageType.values();
+
+    //  Reuse decoded messages instead of allocating one per receive
+    protected boolean reuse;
+
+    //  Why the last message was rejected, and how many were for each reason
+    protected Rejection rejection;
+    protected final long[] rejected = new long[Rejection.values().length];
+
     protected LogMessage log;
 
+    /**
+     * Enable or disable reuse of decoded messages.
+     * <p>
+     * When enabled, each message type has a single instance that is
+     * overwritten by every deserialize of that type. A decoded message, and
+     * any message returned by a getter, is then only valid until the next
+     * deserialize on this codec, so callers must copy out anything they keep
+     * before receiving again. Only enable this when one thread owns the
+     * codec and handles each message before reading the next.
+     *
+     * @param reuse true to reuse decoded messages, false to allocate new ones
+     */
+    public void setReuse(boolean reuse) {
+        this.reuse = reuse;
+    }
+
+    /**
+     * @return true if decoded messages are reused, false otherwise
+     */
+    public boolean isReuse() {
+        return reuse;
+    }
+
+    /**
+     * Get the reason the last message was rejected.
+     *
+     * @return The Rejection, or null if the last message was accepted
+     */
+    public Rejection getRejection() {
+        return rejection;
+    }
+
+    /**
+     * Get the number of messages rejected for a reason.
+     *
+     * @param reason The Rejection
+     * @return The number of messages rejected for that reason by this codec
+     */
+    public long getRejected(Rejection reason) {
+        return rejected[reason.ordinal()];
+    }
+
     /**
      * Deserialize a message.
+     * <p>
+     * Malformed messages are rejected with a reason code rather than an
+     * exception, so a peer sending garbage costs little more than a peer
+     * sending valid messages.
      *
-     * @return The MessageType of the deserialized message, or null
+     * @return The MessageType of the deserialized message, or null if it was rejected
      */
     public MessageType deserialize(Message frames) {
-        MessageType type = null;
+        MessageType type;
+        rejection = null;
+        if (frames.isEmpty()) {
+            return reject(Rejection.MISSING_FRAME);
+        }
+
         try {
             //  Read and parse command in frame
             Frame needle = frames.popFrame();
@@ -80,43 +150,61 @@ public class ZreLogCodec {
             //  Get and check protocol signature
             int signature = (0xffff) & needle.getShort();
             if (signature != (0xaaa0 | 2)) {
-                return null;             //  Invalid signature
+                return reject(Rejection.INVALID_SIGNATURE);
             }
 
             //  Get message id, which is first byte in frame
             int id = (0xff) & needle.getByte();
-            type = MessageType.values()[id-1];
+            if (id < 1 || id > MESSAGE_TYPES.length) {
+                return reject(Rejection.INVALID_ID);
+            }
+            type = MESSAGE_TYPES[id-1];
             switch (type) {
                 case LOG: {
-                    LogMessage message = this.log = new LogMessage();
+                    LogMessage message = this.log = reuse && log != null ? log : new LogMessage();
                     message.level = (0xff) & needle.getByte();
+                    message.levelSet = true;
                     message.event = (0xff) & needle.getByte();
+                    message.eventSet = true;
                     message.node = (0xffff) & needle.getShort();
+                    message.nodeSet = true;
                     message.peer = (0xffff) & needle.getShort();
+                    message.peerSet = true;
                     message.time = needle.getLong();
+                    message.timeSet = true;
                     message.data = needle.getString();
                     break;
                 }
                 default:
-                    throw new IllegalArgumentException("Invalid message: unrecognized type: " + type);
+                    return reject(Rejection.INVALID_ID);
             }
 
             return type;
-        } catch (Exception ex) {
-            //  Error returns
-            System.err.printf("E: Malformed message: %s\n", type);
-            ex.printStackTrace();
-            return null;
+        } catch (RuntimeException ex) {
+            //  Frame ended part way through a field
+            return reject(Rejection.TRUNCATED);
         }
     }
 
+    /**
+     * Count a rejected message.
+     *
+     * @param reason The Rejection
+     * @return null, so callers can return it as the message type
+     */
+    private MessageType reject(Rejection reason) {
+        rejection = reason;
+        rejected[reason.ordinal()]++;
+        return null;
+    }
+
     /**
      * Get a LOG message from the socket.
      *
      * @return The LogMessage last received on this socket
      */
     public LogMessage getLog() {
-        if (log != null) {
+        if (log == null) {
             log = new LogMessage();
         }
 
@@ -144,10 +232,10 @@ public class ZreLogCodec {
         builder.putShort((short) (0xaaa0 | 2));
         builder.putByte((byte) 1);       //  Message ID
 
-        builder.putByte((byte) (int) message.level);
-        builder.putByte((byte) (int) message.event);
-        builder.putShort((short) (int) message.node);
-        builder.putShort((short) (int) message.peer);
+        builder.putByte((byte) message.level);
+        builder.putByte((byte) message.event);
+        builder.putShort((short) message.node);
+        builder.putShort((short) message.peer);
         builder.putLong(message.time);
         if (message.data != null) {
             builder.putString(message.data);
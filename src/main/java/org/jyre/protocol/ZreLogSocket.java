@@ -52,6 +52,7 @@ public class ZreLogSocket implements ZreLogCodec.Constants, java.io.Closeable {
     private Socket socket;               //  Internal socket handle
     private ZreLogCodec codec;           //  Serialization codec
     private Frame address;               //  Address of peer if any
+    private final boolean router;        //  Whether frames carry an address
 
     /**
      * Create a new ZreLogSocket.
@@ -62,6 +63,9 @@ public class ZreLogSocket implements ZreLogCodec.Constants, java.io.Closeable {
         assert socket != null;
         this.socket = socket;
         this.codec = new ZreLogCodec();
+
+        //  Socket type is fixed, so look it up once rather than per message
+        this.router = socket.getZMQSocket().getType() == ZMQ.ROUTER;
     }
 
     /**
@@ -111,7 +115,7 @@ public class ZreLogSocket implements ZreLogCodec.Constants, java.io.Closeable {
     /**
      * Receive a message on the socket.
      *
-     * @return The MessageType of the received message
+     * @return The MessageType of the received message, or null if it was malformed
      */
     public ZreLogCodec.MessageType receive() {
         return receive(MessageFlag.NONE);
@@ -119,28 +123,29 @@ public class ZreLogSocket implements ZreLogCodec.Constants, java.io.Closeable {
 
     /**
      * Receive a message on the socket.
+     * <p>
+     * A malformed message is dropped and null returned straight away, so a
+     * peer sending garbage cannot hold a blocking receive. The reason is
+     * available from {@link ZreLogCodec#getRejection()}, and the sender
+     * from {@link #getAddress()}.
      *
      * @param flag Flag controlling behavior of the receive operation
-     * @return The MessageType of the received message, or null if no message received
+     * @return The MessageType of the received message, or null if no message received or it was malformed
      */
     public ZreLogCodec.MessageType receive(MessageFlag flag) {
-        //  Read valid message frame from socket; we loop over any
-        //  garbage data we might receive from badly-connected peers
-        ZreLogCodec.MessageType type;
-        Message frames;
-        do {
-            frames = socket.receiveMessage(flag);
-
-            //  If we're reading from a ROUTER socket, get address
-            if (socket.getZMQSocket().getType() == ZMQ.ROUTER) {
-                this.address = frames.popFrame();
-            }
-
-            //  Get and check protocol signature
-            type = codec.deserialize(frames);
-        } while (type == null && flag == MessageFlag.NONE);          //  Protocol assertion, drop message if malformed or invalid
-
-        return type;
+        codec.rejection = null;
+        Message frames = socket.receiveMessage(flag);
+        if (frames == null) {
+            return null;
+        }
+
+        //  If we're reading from a ROUTER socket, get address
+        if (router) {
+            this.address = frames.popFrame();
+        }
+
+        //  Get and check protocol signature, drop message if malformed or invalid
+        return codec.deserialize(frames);
     }
 
     /**
@@ -162,7 +167,7 @@ public class ZreLogSocket implements ZreLogCodec.Constants, java.io.Closeable {
         Message frames = codec.serialize(message);
 
         //  If we're sending to a ROUTER, we add the address first
-        if (socket.getZMQSocket().getType() == ZMQ.ROUTER) {
+        if (router) {
             assert address != null;
             frames.pushFrame(address);
         }
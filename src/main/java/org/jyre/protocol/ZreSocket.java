@@ -78,6 +78,7 @@ public class ZreSocket implements ZreCodec.Constants, java.io.Closeable {
     private Socket socket;               //  Internal socket handle
     private ZreCodec codec;              //  Serialization codec
     private Frame address;               //  Address of peer if any
+    private final boolean router;        //  Whether frames carry an address
 
     /**
      * Create a new ZreSocket.
@@ -88,6 +89,9 @@ public class ZreSocket implements ZreCodec.Constants, java.io.Closeable {
         assert socket != null;
         this.socket = socket;
         this.codec = new ZreCodec();
+
+        //  Socket type is fixed, so look it up once rather than per message
+        this.router = socket.getZMQSocket().getType() == ZMQ.ROUTER;
     }
 
     /**
@@ -137,7 +141,7 @@ public class ZreSocket implements ZreCodec.Constants, java.io.Closeable {
     /**
      * Receive a message on the socket.
      *
-     * @return The MessageType of the received message
+     * @return The MessageType of the received message, or null if it was malformed
      */
     public ZreCodec.MessageType receive() {
         return receive(MessageFlag.NONE);
@@ -145,28 +149,29 @@ public class ZreSocket implements ZreCodec.Constants, java.io.Closeable {
 
     /**
      * Receive a message on the socket.
+     * <p>
+     * A malformed message is dropped and null returned straight away, so a
+     * peer sending garbage cannot hold a blocking receive. The reason is
+     * available from {@link ZreCodec#getRejection()}, and the sender
+     * from {@link #getAddress()}.
      *
      * @param flag Flag controlling behavior of the receive operation
-     * @return The MessageType of the received message, or null if no message received
+     * @return The MessageType of the received message, or null if no message received or it was malformed
      */
     public ZreCodec.MessageType receive(MessageFlag flag) {
-        //  Read valid message frame from socket; we loop over any
-        //  garbage data we might receive from badly-connected peers
-        ZreCodec.MessageType type;
-        Message frames;
-        do {
-            frames = socket.receiveMessage(flag);
-
-            //  If we're reading from a ROUTER socket, get address
-            if (socket.getZMQSocket().getType() == ZMQ.ROUTER) {
-                this.address = frames.popFrame();
-            }
-
-            //  Get and check protocol signature
-            type = codec.deserialize(frames);
-        } while (type == null && flag == MessageFlag.NONE);          //  Protocol assertion, drop message if malformed or invalid
-
-        return type;
+        codec.rejection = null;
+        Message frames = socket.receiveMessage(flag);
+        if (frames == null) {
+            return null;
+        }
+
+        //  If we're reading from a ROUTER socket, get address
+        if (router) {
+            this.address = frames.popFrame();
+        }
+
+        //  Get and check protocol signature, drop message if malformed or invalid
+        return codec.deserialize(frames);
     }
 
     /**
@@ -242,7 +247,7 @@ public class ZreSocket implements ZreCodec.Constants, java.io.Closeable {
         Message frames = codec.serialize(message);
 
         //  If we're sending to a ROUTER, we add the address first
-        if (socket.getZMQSocket().getType() == ZMQ.ROUTER) {
+        if (router) {
             assert address != null;
             frames.pushFrame(address);
         }
@@ -260,7 +265,7 @@ public class ZreSocket implements ZreCodec.Constants, java.io.Closeable {
         Message frames = codec.serialize(message);
 
         //  If we're sending to a ROUTER, we add the address first
-        if (socket.getZMQSocket().getType() == ZMQ.ROUTER) {
+        if (router) {
             assert address != null;
             frames.pushFrame(address);
         }
@@ -278,7 +283,7 @@ public class ZreSocket implements ZreCodec.Constants, java.io.Closeable {
         Message frames = codec.serialize(message);
 
         //  If we're sending to a ROUTER, we add the address first
-        if (socket.getZMQSocket().getType() == ZMQ.ROUTER) {
+        if (router) {
             assert address != null;
             frames.pushFrame(address);
         }
@@ -296,7 +301,7 @@ public class ZreSocket implements ZreCodec.Constants, java.io.Closeable {
         Message frames = codec.serialize(message);
 
         //  If we're sending to a ROUTER, we add the address first
-        if (socket.getZMQSocket().getType() == ZMQ.ROUTER) {
+        if (router) {
             assert address != null;
             frames.pushFrame(address);
         }
@@ -314,7 +319,7 @@ public class ZreSocket implements ZreCodec.Constants, java.io.Closeable {
         Message frames = codec.serialize(message);
 
         //  If we're sending to a ROUTER, we add the address first
-        if (socket.getZMQSocket().getType() == ZMQ.ROUTER) {
+        if (router) {
             assert address != null;
             frames.pushFrame(address);
         }
@@ -332,7 +337,7 @@ public class ZreSocket implements ZreCodec.Constants, java.io.Closeable {
         Message frames = codec.serialize(message);
 
         //  If we're sending to a ROUTER, we add the address first
-        if (socket.getZMQSocket().getType() == ZMQ.ROUTER) {
+        if (router) {
             assert address != null;
             frames.pushFrame(address);
         }
@@ -350,7 +355,26 @@ public class ZreSocket implements ZreCodec.Constants, java.io.Closeable {
         Message frames = codec.serialize(message);
 
         //  If we're sending to a ROUTER, we add the address first
-        if (socket.getZMQSocket().getType() == ZMQ.ROUTER) {
+        if (router) {
+            assert address != null;
+            frames.pushFrame(address);
+        }
+
+        return socket.send(frames);
+    }
+
+    /**
+     * Send a prepared message to the socket with the given sequence.
+     *
+     * @param message The message to send
+     * @param sequence The sequence number for this socket's peer
+     * @return true if the message was sent, false otherwise
+     */
+    public boolean send(ZreCodec.PreparedMessage message, int sequence) {
+        Message frames = message.withSequence(sequence);
+
+        //  If we're sending to a ROUTER, we add the address first
+        if (router) {
             assert address != null;
             frames.pushFrame(address);
         }
@@ -0,0 +1,67 @@
+package org.jyre;
+
+import org.junit.Test;
+
+import java.util.UUID;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class UuidMapTest {
+    @Test
+    public void testPutGetRemove() {
+        UuidMap<String> map = new UuidMap<>(2);
+        UUID[] uuids = new UUID[1000];
+        for (int i = 0; i < uuids.length; i++) {
+            uuids[i] = UUID.randomUUID();
+            assertNull(map.put(uuids[i].getMostSignificantBits(), uuids[i].getLeastSignificantBits(), uuids[i].toString()));
+        }
+        assertEquals(uuids.length, map.size());
+
+        // Remove every other entry, the rest must still be found
+        for (int i = 0; i < uuids.length; i += 2) {
+            assertEquals(uuids[i].toString(), map.remove(uuids[i].getMostSignificantBits(), uuids[i].getLeastSignificantBits()));
+        }
+        for (int i = 0; i < uuids.length; i++) {
+            String expected = i % 2 == 0 ? null : uuids[i].toString();
+            assertEquals(expected, map.get(uuids[i].getMostSignificantBits(), uuids[i].getLeastSignificantBits()));
+        }
+        assertEquals(uuids.length / 2, map.size());
+    }
+
+    @Test
+    public void testCollidingKeys() {
+        // Keys with equal msb ^ lsb share a home slot
+        UuidMap<String> map = new UuidMap<>();
+        for (long i = 0; i < 8; i++) {
+            map.put(i, i, "v" + i);
+        }
+        map.remove(3, 3);
+        for (long i = 0; i < 8; i++) {
+            assertEquals(i == 3 ? null : "v" + i, map.get(i, i));
+        }
+    }
+
+    @Test
+    public void testIdentity() {
+        UUID uuid = UUID.randomUUID();
+        String identity = ZreIdentity.toString(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits());
+        assertEquals(uuid.toString().replace("-", "").toUpperCase(), identity);
+        assertEquals(uuid.getMostSignificantBits(), ZreIdentity.getMostSignificantBits(identity));
+        assertEquals(uuid.getLeastSignificantBits(), ZreIdentity.getLeastSignificantBits(identity));
+
+        byte[] hex = identity.getBytes();
+        assertTrue(ZreIdentity.isUuid(hex));
+        assertEquals(uuid.getMostSignificantBits(), ZreIdentity.getMostSignificantBits(hex));
+        assertEquals(uuid.getLeastSignificantBits(), ZreIdentity.getLeastSignificantBits(hex));
+
+        byte[] raw = new byte[17];
+        for (int i = 0; i < 8; i++) {
+            raw[1 + i] = (byte) (uuid.getMostSignificantBits() >>> (56 - 8 * i));
+            raw[9 + i] = (byte) (uuid.getLeastSignificantBits() >>> (56 - 8 * i));
+        }
+        assertTrue(ZreIdentity.isUuid(raw));
+        assertEquals(identity, ZreIdentity.toString(raw));
+    }
+}
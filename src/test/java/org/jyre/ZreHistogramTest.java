@@ -0,0 +1,41 @@
+package org.jyre;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ZreHistogramTest {
+    @Test
+    public void testBuckets() {
+        // Exact below 16, then every bucket holds the values it reports
+        long previous = -1;
+        for (long value = 0; value < 1 << 20; value++) {
+            int index = ZreHistogram.getIndex(value);
+            long highest = ZreHistogram.getHighestValue(index);
+            assertTrue(highest >= value);
+            assertTrue(highest - value <= value / 16);
+            assertTrue(highest >= previous);
+            previous = highest;
+        }
+        assertEquals(Long.MAX_VALUE, ZreHistogram.getHighestValue(ZreHistogram.getIndex(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void testPercentiles() {
+        ZreHistogram histogram = new ZreHistogram();
+        assertEquals(0, histogram.getValueAtPercentile(99));
+
+        for (int i = 1; i <= 1000; i++) {
+            histogram.record(i * 1000);
+        }
+        assertEquals(1000, histogram.getCount());
+        assertEquals(1000000, histogram.getMax());
+        assertEquals(500500.0, histogram.getMean(), 0.0);
+        assertEquals(1000000, histogram.getValueAtPercentile(100));
+
+        // Within one bucket, about 6%, of the true value
+        long median = histogram.getValueAtPercentile(50);
+        assertTrue(median >= 500000 && median <= 500000 * 17 / 16);
+    }
+}
@@ -1,23 +1,41 @@
 package org.jyre;
 
 import org.junit.Test;
+import org.zeromq.ContextFactory;
+import org.zeromq.api.Context;
 import org.zeromq.api.Message;
 
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Flow;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
 import static org.hamcrest.CoreMatchers.is;
 import static org.hamcrest.MatcherAssert.assertThat;
 
 public class ZreInterfaceTest {
+    // Longest wait for an event, or for a ping to finish
+    private static final int TIMEOUT = 20000;
+
     private static class ZrePing extends Thread {
         @Override
         public void run() {
             ZreInterface inf = new ZreInterface();
+            inf.getSocket().getZMQSocket().setReceiveTimeOut(TIMEOUT);
             inf.start();
 
             while (true) {
                 ZreEvent event = inf.receive();
 
-                if (event == null)       // Interrupted
+                if (event == null) {     // Interrupted, or left behind by a failed test
+                    inf.close();
                     break;
+                }
 
                 //  If new peer, say hello to it and wait for it to answer us
                 switch (event.getEventType()) {
@@ -65,6 +83,18 @@ public class ZreInterfaceTest {
         }
     }
 
+    private static ZreEvent receive(ZreInterface inf) {
+        inf.getSocket().getZMQSocket().setReceiveTimeOut(TIMEOUT);
+        ZreEvent event = inf.receive();
+        assertThat("No event within " + TIMEOUT + " ms", event != null, is(true));
+        return event;
+    }
+
+    private static void join(Thread ping) throws InterruptedException {
+        ping.join(TIMEOUT);
+        assertThat("Ping still running after " + TIMEOUT + " ms", ping.isAlive(), is(false));
+    }
+
     @Test
     public void testInterfaceWhisper() throws Exception {
         ZrePing ping = new ZrePing();
@@ -73,23 +103,214 @@ public class ZreInterfaceTest {
         ZreInterface inf = new ZreInterface();
         inf.start();
 
-        ZreEvent event = inf.receive();
+        ZreEvent event = receive(inf);
+        String peer = event.getPeer();
+
+        assertThat(event.getEventType(), is(ZreEventType.ENTER));
+
+        // Directory is published before the event is delivered
+        assertThat(inf.getPeers().contains(peer), is(true));
+        assertThat(inf.getPeerName(peer), is(event.getName()));
+        assertThat(inf.getPeerHeaders(peer).isEmpty(), is(true));
+
+        Message outgoing = new Message("HELLO");
+        inf.whisper(event.getPeer(), outgoing);
+
+        event = receive(inf);
+        assertThat(event.getEventType(), is(ZreEventType.WHISPER));
+        assertThat(event.getPeer(), is(peer));
+        assertThat(event.getContent().popString(), is("WORLD"));
+
+        // Counted before the event was delivered: HELLO and WHISPER each way
+        ZreMetrics metrics = inf.getMetrics();
+        assertThat(metrics.getPeer(peer).getMessagesIn() >= 2, is(true));
+        assertThat(metrics.getPeer(peer).getMessagesOut() >= 2, is(true));
+        assertThat(metrics.getPeer(peer).getBytesIn(), is(5L));
+        assertThat(metrics.getPeer(peer).getBytesOut(), is(5L));
+        assertThat(metrics.get(ZreMetrics.Counter.BEACONS_RECEIVED) >= 1, is(true));
+        assertThat(metrics.get(ZreMetrics.Counter.SEQUENCE_GAPS), is(0L));
+        assertThat(metrics.getPipeBatch().getCount() >= 2, is(true));
+        assertThat(metrics.getLoopTime().getCount() >= 2, is(true));
+
+        outgoing = new Message("QUIT");
+        inf.whisper(peer, outgoing);
+
+        join(ping);
+        inf.close();
+    }
+
+    @Test
+    public void testShardedWhisper() throws Exception {
+        ZrePing ping = new ZrePing();
+        ping.start();
+
+        ZreInterface inf = new ZreInterface();
+        inf.setShards(4);
+        inf.start();
+
+        ZreEvent event = receive(inf);
         String peer = event.getPeer();
 
         assertThat(event.getEventType(), is(ZreEventType.ENTER));
 
+        // Directory is merged from every shard before the event is delivered
+        assertThat(inf.getPeers().contains(peer), is(true));
+        assertThat(inf.getPeerName(peer), is(event.getName()));
+
         Message outgoing = new Message("HELLO");
         inf.whisper(event.getPeer(), outgoing);
 
-        event = inf.receive();
+        event = receive(inf);
         assertThat(event.getEventType(), is(ZreEventType.WHISPER));
         assertThat(event.getPeer(), is(peer));
         assertThat(event.getContent().popString(), is("WORLD"));
 
+        ZreMetrics metrics = inf.getMetrics();
+        assertThat(metrics.getPeer(peer).getBytesIn(), is(5L));
+        assertThat(metrics.getShardLoopTimes().size(), is(4));
+
         outgoing = new Message("QUIT");
         inf.whisper(peer, outgoing);
 
-        ping.join();
+        join(ping);
+        inf.close();
+    }
+
+    @Test
+    public void testDispatcher() throws Exception {
+        ZrePing ping = new ZrePing();
+        ping.start();
+
+        ZreDispatcher zre = new ZreDispatcher(new ZreInterface());
+        zre.start();
+
+        // Queries from many threads at once are run one at a time
+        List<CompletableFuture<String>> uuids = new ArrayList<>();
+        for (int i = 0; i < 8; i++) {
+            uuids.add(CompletableFuture.supplyAsync(() -> zre.getUuid().join()));
+        }
+        String uuid = zre.getUuid().get(5, TimeUnit.SECONDS);
+        for (CompletableFuture<String> other : uuids) {
+            assertThat(other.get(5, TimeUnit.SECONDS), is(uuid));
+        }
+
+        ZreEvent event = zre.receiveAsync().get(TIMEOUT, TimeUnit.MILLISECONDS);
+        String peer = event.getPeer();
+        assertThat(event.getEventType(), is(ZreEventType.ENTER));
+
+        CompletableFuture<ZreEvent> reply = zre.receiveAsync();
+        zre.whisper(peer, new Message("HELLO"));
+
+        event = reply.get(5, TimeUnit.SECONDS);
+        assertThat(event.getEventType(), is(ZreEventType.WHISPER));
+        assertThat(event.getPeer(), is(peer));
+        assertThat(event.getContent().popString(), is("WORLD"));
+
+        zre.whisper(peer, new Message("QUIT"));
+        join(ping);
+
+        // Waiting receivers are released on close
+        CompletableFuture<ZreEvent> pending = zre.receiveAsync();
+        zre.close();
+        pending.get(5, TimeUnit.SECONDS);
+        assertThat(pending.isDone(), is(true));
+    }
+
+    private static class EventQueue implements Flow.Subscriber<ZreEvent> {
+        private final BlockingQueue<ZreEvent> events = new LinkedBlockingQueue<>();
+        private final CompletableFuture<Void> completed = new CompletableFuture<>();
+        private Flow.Subscription subscription;
+
+        @Override
+        public void onSubscribe(Flow.Subscription subscription) {
+            this.subscription = subscription;
+        }
+
+        @Override
+        public void onNext(ZreEvent event) {
+            events.add(event);
+        }
+
+        @Override
+        public void onError(Throwable throwable) {
+            completed.completeExceptionally(throwable);
+        }
+
+        @Override
+        public void onComplete() {
+            completed.complete(null);
+        }
+
+        ZreEvent take(long n) throws InterruptedException {
+            subscription.request(n);
+            return events.poll(5, TimeUnit.SECONDS);
+        }
+    }
+
+    @Test
+    public void testEventPublisher() throws Exception {
+        ZrePing ping = new ZrePing();
+        ping.start();
+
+        ZreInterface inf = new ZreInterface();
+        inf.start();
+
+        EventQueue enters = new EventQueue();
+        EventQueue whispers = new EventQueue();
+        inf.events().ofType(ZreEventType.ENTER).subscribe(enters);
+        inf.events().ofType(ZreEventType.WHISPER).subscribe(whispers);
+
+        // Events a subscriber doesn't match don't wait for its demand
+        ZreEvent event = enters.take(1);
+        String peer = event.getPeer();
+        assertThat(event.getEventType(), is(ZreEventType.ENTER));
+
+        // Nothing is delivered until it is asked for
+        inf.whisper(peer, new Message("HELLO"));
+        assertThat(whispers.events.poll(200, TimeUnit.MILLISECONDS) == null, is(true));
+
+        event = whispers.take(1);
+        assertThat(event.getEventType(), is(ZreEventType.WHISPER));
+        assertThat(event.getPeer(), is(peer));
+        assertThat(event.getContent().popString(), is("WORLD"));
+
+        inf.whisper(peer, new Message("QUIT"));
+        join(ping);
+
+        // Closing completes every subscriber
+        inf.close();
+        enters.completed.get(5, TimeUnit.SECONDS);
+        whispers.completed.get(5, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void testInterfaceWhisperBatch() throws Exception {
+        ZrePing ping = new ZrePing();
+        ping.start();
+
+        ZreInterface inf = new ZreInterface();
+        inf.start();
+
+        ZreEvent event = receive(inf);
+        String peer = event.getPeer();
+
+        assertThat(event.getEventType(), is(ZreEventType.ENTER));
+
+        List<Message> batch = new ArrayList<>();
+        batch.add(new Message("HELLO"));
+        batch.add(new Message("HELLO"));
+        batch.add(new Message("HELLO"));
+        inf.whisperBatch(peer, batch);
+
+        for (int i = 0; i < batch.size(); i++) {
+            event = receive(inf);
+            assertThat(event.getEventType(), is(ZreEventType.WHISPER));
+            assertThat(event.getContent().popString(), is("WORLD"));
+        }
+
+        inf.whisper(peer, new Message("QUIT"));
+
+        join(ping);
         inf.close();
     }
 
@@ -104,31 +325,31 @@ public class ZreInterfaceTest {
         inf.start();
         inf.join(group);
 
-        ZreEvent event = inf.receive();
+        ZreEvent event = receive(inf);
 
         assertThat(event.getEventType(), is(ZreEventType.ENTER));
         String peer = event.getPeer();
 
-        event = inf.receive();
+        event = receive(inf);
         assertThat(event.getEventType(), is(ZreEventType.JOIN));
 
         Message outgoing = new Message("HELLO");
         inf.shout(group, outgoing);
 
-        event = inf.receive();
+        event = receive(inf);
         assertThat(event.getEventType(), is(ZreEventType.WHISPER));
         assertThat(event.getPeer(), is(peer));
         assertThat(event.getContent().popString(), is("WORLD"));
 
         inf.leave(group);
 
-        event = inf.receive();
+        event = receive(inf);
         assertThat(event.getEventType(), is(ZreEventType.LEAVE));
 
         outgoing = new Message("QUIT");
         inf.whisper(peer, outgoing);
 
-        ping.join();
+        join(ping);
         inf.close();
     }
 
@@ -145,25 +366,25 @@ public class ZreInterfaceTest {
         ZreInterface inf = new ZreInterface();
         inf.start();
 
-        assertThat(inf.receive().getEventType(), is(ZreEventType.ENTER));
-        assertThat(inf.receive().getEventType(), is(ZreEventType.ENTER));
+        assertThat(receive(inf).getEventType(), is(ZreEventType.ENTER));
+        assertThat(receive(inf).getEventType(), is(ZreEventType.ENTER));
 
         inf.join(group);
 
-        assertThat(inf.receive().getEventType(), is(ZreEventType.JOIN));
-        assertThat(inf.receive().getEventType(), is(ZreEventType.JOIN));
+        assertThat(receive(inf).getEventType(), is(ZreEventType.JOIN));
+        assertThat(receive(inf).getEventType(), is(ZreEventType.JOIN));
 
         Message outgoing = new Message("HELLO");
         inf.shout(group, outgoing);
 
-        assertThat(inf.receive().getEventType(), is(ZreEventType.WHISPER));
-        assertThat(inf.receive().getEventType(), is(ZreEventType.WHISPER));
+        assertThat(receive(inf).getEventType(), is(ZreEventType.WHISPER));
+        assertThat(receive(inf).getEventType(), is(ZreEventType.WHISPER));
 
         outgoing = new Message("QUIT");
         inf.shout(group, outgoing);
 
-        ping.join();
-        ping2.join();
+        join(ping);
+        join(ping2);
         inf.close();
     }
 
@@ -177,7 +398,7 @@ public class ZreInterfaceTest {
         inf.setExpiredTimeout(1);
         inf.start();
 
-        ZreEvent event = inf.receive();
+        ZreEvent event = receive(inf);
 
         assertThat(event.getEventType(), is(ZreEventType.ENTER));
         String peer = event.getPeer();
@@ -188,20 +409,119 @@ public class ZreInterfaceTest {
         outgoing = new Message("QUIT");
         inf.whisper(peer, outgoing);
 
-        ping.join();
+        join(ping);
 
         // will take PEER_EVASIVE milliseconds
-        event = inf.receive();
+        event = receive(inf);
 
         assertThat(event.getEventType(), is(ZreEventType.EVASIVE));
         assertThat(event.getPeer(), is(peer));
 
         // will take PEER_EXPIRED milliseconds
-        event = inf.receive();
+        event = receive(inf);
 
         assertThat(event.getEventType(), is(ZreEventType.EXIT));
         assertThat(event.getPeer(), is(peer));
 
         inf.close();
     }
+
+    @Test
+    public void testSharedContext() throws Exception {
+        int count = 50;
+        Context context = ContextFactory.createContext(1);
+
+        // Only the observer beacons, so nodes connect to it rather than to each other
+        ZreInterface observer = new ZreInterface(context);
+        String observerUuid = observer.getUuid();
+
+        List<ZreInterface> nodes = new ArrayList<>();
+        Set<String> uuids = new HashSet<>();
+        for (int i = 0; i < count; i++) {
+            ZreInterface node = new ZreInterface(context);
+            node.setBeaconsEnabled(false);
+            node.start();
+            uuids.add(node.getUuid());
+            nodes.add(node);
+        }
+        assertThat(uuids.size(), is(count));
+
+        observer.start();
+
+        // Every node sees the observer enter on its own inbox
+        for (ZreInterface node : nodes) {
+            ZreEvent event = receive(node);
+            assertThat(event.getEventType(), is(ZreEventType.ENTER));
+            assertThat(event.getPeer(), is(observerUuid));
+        }
+
+        // And the observer sees every node
+        while (!uuids.isEmpty()) {
+            ZreEvent event = receive(observer);
+            if (event.getEventType() == ZreEventType.ENTER) {
+                uuids.remove(event.getPeer());
+            }
+        }
+
+        for (ZreInterface node : nodes) {
+            node.close();
+        }
+        observer.close();
+        context.close();
+    }
+
+    @Test
+    public void testLoopbackDiscovery() throws Exception {
+        // A port of our own keeps other tests' beacons out
+        int port = 45670;
+
+        ZreInterface first = new ZreInterface();
+        first.setPort(port);
+        first.setLoopbackDiscovery();
+        first.start();
+
+        ZreInterface second = new ZreInterface();
+        second.setPort(port);
+        second.setLoopbackDiscovery();
+        second.start();
+
+        ZreEvent event = receive(first);
+        assertThat(event.getEventType(), is(ZreEventType.ENTER));
+        assertThat(event.getPeer(), is(second.getUuid()));
+
+        event = receive(second);
+        assertThat(event.getEventType(), is(ZreEventType.ENTER));
+        assertThat(event.getPeer(), is(first.getUuid()));
+
+        first.close();
+        second.close();
+    }
+
+    @Test
+    public void testLoopbackEndpoint() throws Exception {
+        int port = 45671;
+
+        ZreInterface first = new ZreInterface();
+        first.setPort(port);
+        first.setLoopbackDiscovery();
+        first.start();
+
+        // Silent, so first only learns of it from its HELLO
+        ZreInterface second = new ZreInterface();
+        second.setPort(port);
+        second.setLoopbackDiscovery();
+        second.setBeaconsEnabled(false);
+        second.start();
+
+        ZreEvent event = receive(first);
+        assertThat(event.getEventType(), is(ZreEventType.ENTER));
+        assertThat(event.getPeer(), is(second.getUuid()));
+
+        // The HELLO advertises the address of the discovery interface
+        String endpoint = first.getPeerEndpoint(second.getUuid());
+        assertThat(endpoint, endpoint.startsWith("tcp://127.0.0.1:"), is(true));
+
+        first.close();
+        second.close();
+    }
 }
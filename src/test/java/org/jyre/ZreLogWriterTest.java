@@ -0,0 +1,85 @@
+package org.jyre;
+
+import org.jyre.protocol.LogMessage;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class ZreLogWriterTest {
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void testAppendAndRead() throws Exception {
+        Path directory = folder.newFolder("zrelog").toPath();
+        int node = ZreLogReader.hash("node");
+
+        // Small segments, so the log rolls over several times
+        ZreLogWriter writer = new ZreLogWriter(directory, 1 << 17);
+        for (int i = 0; i < 10000; i++) {
+            writer.append(new LogMessage()
+                .withLevel(ZreLogger.Level.INFO.value())
+                .withEvent(i % 2 == 0 ? ZreLogger.Event.ENTER.value() : ZreLogger.Event.EXIT.value())
+                .withNode(i % 4 == 0 ? node : 0)
+                .withPeer(i)
+                .withTime(1000 + i)
+                .withData("Peer " + i));
+        }
+        writer.close();
+        assertThat(ZreLogWriter.getSegments(directory).size() > 1, is(true));
+
+        // Reopening continues after the last record
+        writer = new ZreLogWriter(directory, 1 << 17);
+        writer.append(new LogMessage()
+            .withLevel(ZreLogger.Level.ERROR.value())
+            .withEvent(ZreLogger.Event.OTHER.value())
+            .withTime(20000)
+            .withData("Last"));
+        writer.close();
+
+        List<LogMessage> messages = new ZreLogReader(directory).read();
+        assertThat(messages.size(), is(10001));
+        assertThat(messages.get(42).getPeer(), is(42));
+        assertThat(messages.get(42).getData(), is("Peer 42"));
+        assertThat(messages.get(10000).getData(), is("Last"));
+
+        messages = new ZreLogReader(directory).withNode(node).withEvent(ZreLogger.Event.ENTER).read();
+        assertThat(messages.size(), is(2500));
+
+        messages = new ZreLogReader(directory).withTimeRange(1100, 1110).read();
+        assertThat(messages.size(), is(10));
+        assertThat(messages.get(0).getTime(), is(1100L));
+    }
+
+    @Test
+    public void testTruncateOnCharacter() throws Exception {
+        Path directory = folder.newFolder("zrelog").toPath();
+
+        // Three-byte characters after one ASCII byte, so the limit falls
+        // part way through one
+        char[] chars = new char[30000];
+        Arrays.fill(chars, '\u20ac');
+        String data = "a" + new String(chars);
+
+        ZreLogWriter writer = new ZreLogWriter(directory, 1 << 17);
+        writer.append(new LogMessage()
+            .withLevel(ZreLogger.Level.INFO.value())
+            .withEvent(ZreLogger.Event.OTHER.value())
+            .withTime(1000)
+            .withData(data));
+        writer.close();
+
+        List<LogMessage> messages = new ZreLogReader(directory).read();
+        assertThat(messages.size(), is(1));
+        assertThat(messages.get(0).getData(), is(data.substring(0, 1 + (0xffff - 1) / 3)));
+        assertThat(messages.get(0).getData().getBytes(StandardCharsets.UTF_8).length <= 0xffff, is(true));
+    }
+}
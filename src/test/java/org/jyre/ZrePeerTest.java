@@ -0,0 +1,225 @@
+package org.jyre;
+
+import org.jyre.protocol.PingMessage;
+import org.jyre.protocol.ZreCodec;
+import org.jyre.protocol.ZreSocket;
+import org.junit.Test;
+import org.zeromq.ContextFactory;
+import org.zeromq.api.Context;
+import org.zeromq.api.MessageFlag;
+import org.zeromq.api.SocketType;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.hamcrest.CoreMatchers.is;
+import static org.hamcrest.MatcherAssert.assertThat;
+
+public class ZrePeerTest {
+    private static class Listener implements ZrePeer.Listener {
+        private int queued;
+        private int overflows;
+        private int depth;
+        private int disconnected;
+
+        @Override
+        public void onQueued(ZrePeer peer) {
+            queued++;
+        }
+
+        @Override
+        public void onOverflow(ZrePeer peer, int depth) {
+            this.overflows++;
+            this.depth = depth;
+        }
+
+        @Override
+        public void onDisconnected(ZrePeer peer) {
+            disconnected++;
+        }
+    }
+
+    // Holds few messages, so a peer that isn't read from backs up quickly
+    private static ZreSocket bind(Context context) {
+        return new ZreSocket(context.buildSocket(SocketType.ROUTER)
+            .withReceiveHighWatermark(10)
+            .bind("inproc://peer-test"));
+    }
+
+    @Test
+    public void testSendQueueDropNewest() throws Exception {
+        int count = 5000;
+        int limit = 100;
+
+        Context context = ContextFactory.createContext(1);
+        ZreSocket in = bind(context);
+
+        Listener listener = new Listener();
+        ZrePeer peer = new ZrePeer(context, "peer");
+        peer.setSendQueue(limit, ZreSendPolicy.DROP_NEWEST);
+        peer.setListener(listener);
+        peer.connect("self", "inproc://peer-test");
+
+        // Nothing is read, so the socket fills, then the queue
+        for (int i = 0; i < count; i++) {
+            peer.send(new PingMessage());
+        }
+        assertThat(peer.getQueueDepth(), is(limit));
+        assertThat(peer.getQueueDepthCounter().get(), is(limit));
+        assertThat(listener.queued, is(1));
+        assertThat(listener.overflows, is(1));
+        assertThat(listener.depth, is(limit));
+
+        // Dropped messages never took a sequence number, so there are no gaps
+        int received = 0;
+        while (true) {
+            peer.flush();
+            ZreCodec.MessageType type = in.receive(MessageFlag.DONT_WAIT);
+            if (type == null) {
+                if (peer.getQueueDepth() == 0) {
+                    break;
+                }
+                continue;
+            }
+
+            assertThat(type, is(ZreCodec.MessageType.PING));
+            assertThat(in.getPing().getSequence(), is(++received));
+        }
+        assertThat(received < count, is(true));
+        assertThat(peer.getState(), is(ZrePeer.State.CONNECTED));
+
+        peer.disconnect();
+        in.close();
+        context.close();
+    }
+
+    @Test
+    public void testSendQueueDisconnect() throws Exception {
+        Context context = ContextFactory.createContext(1);
+        ZreSocket in = bind(context);
+
+        Listener listener = new Listener();
+        ZrePeer peer = new ZrePeer(context, "peer");
+        peer.setSendQueue(10, ZreSendPolicy.DISCONNECT);
+        peer.setListener(listener);
+        peer.connect("self", "inproc://peer-test");
+
+        for (int i = 0; i < 5000 && peer.getState() != ZrePeer.State.DISCONNECTED; i++) {
+            peer.send(new PingMessage());
+        }
+        assertThat(peer.getState(), is(ZrePeer.State.DISCONNECTED));
+        assertThat(peer.getQueueDepth(), is(0));
+        assertThat(listener.overflows, is(1));
+        assertThat(listener.depth, is(10));
+        assertThat(listener.disconnected, is(1));
+
+        in.close();
+        context.close();
+    }
+
+    @Test
+    public void testSendQueueDropOldest() throws Exception {
+        Context context = ContextFactory.createContext(1);
+        ZreSocket in = bind(context);
+
+        Listener listener = new Listener();
+        ZrePeer peer = new ZrePeer(context, "peer");
+        peer.setSendQueue(10, ZreSendPolicy.DROP_OLDEST);
+        peer.setListener(listener);
+        peer.connect("self", "inproc://peer-test");
+
+        for (int i = 0; i < 5000; i++) {
+            peer.send(new PingMessage());
+        }
+        assertThat(peer.getQueueDepth(), is(10));
+        assertThat(listener.overflows, is(1));
+
+        // Dropped messages never took a sequence number, so there are no gaps
+        int received = 0;
+        while (true) {
+            peer.flush();
+            ZreCodec.MessageType type = in.receive(MessageFlag.DONT_WAIT);
+            if (type == null) {
+                if (peer.getQueueDepth() == 0) {
+                    break;
+                }
+                continue;
+            }
+
+            assertThat(in.getPing().getSequence(), is(++received));
+        }
+        assertThat(received < 5000, is(true));
+        assertThat(peer.getState(), is(ZrePeer.State.CONNECTED));
+
+        peer.disconnect();
+        in.close();
+        context.close();
+    }
+
+    @Test
+    public void testSendQueueBlockCatchesUp() throws Exception {
+        Context context = ContextFactory.createContext(1);
+        ZreSocket in = bind(context);
+
+        ZrePeer peer = new ZrePeer(context, "peer");
+        peer.setSendQueue(10, ZreSendPolicy.BLOCK);
+        peer.setListener(new Listener());
+        peer.connect("self", "inproc://peer-test");
+
+        // Past the limit, sends queue rather than wait
+        long started = System.nanoTime();
+        for (int i = 0; i < 5000; i++) {
+            peer.send(new PingMessage());
+        }
+        assertThat(System.nanoTime() - started < TimeUnit.MILLISECONDS.toNanos(ZreConstants.PEER_BLOCK), is(true));
+        assertThat(peer.getQueueDepth() > 10, is(true));
+
+        // Read before the deadline, so nothing is lost
+        int received = 0;
+        while (true) {
+            peer.flush();
+            ZreCodec.MessageType type = in.receive(MessageFlag.DONT_WAIT);
+            if (type == null) {
+                if (peer.getQueueDepth() == 0) {
+                    break;
+                }
+                continue;
+            }
+
+            assertThat(in.getPing().getSequence(), is(++received));
+        }
+        assertThat(received, is(5000));
+        assertThat(peer.getState(), is(ZrePeer.State.CONNECTED));
+
+        peer.disconnect();
+        in.close();
+        context.close();
+    }
+
+    @Test
+    public void testSendQueueBlockDisconnect() throws Exception {
+        Context context = ContextFactory.createContext(1);
+        ZreSocket in = bind(context);
+
+        Listener listener = new Listener();
+        ZrePeer peer = new ZrePeer(context, "peer");
+        peer.setSendQueue(10, ZreSendPolicy.BLOCK);
+        peer.setListener(listener);
+        peer.connect("self", "inproc://peer-test");
+
+        for (int i = 0; i < 5000; i++) {
+            peer.send(new PingMessage());
+        }
+        assertThat(peer.getState(), is(ZrePeer.State.CONNECTED));
+        assertThat(listener.disconnected, is(0));
+
+        // Still over the limit once the deadline passes
+        Thread.sleep(ZreConstants.PEER_BLOCK + 100);
+        peer.flush();
+        assertThat(peer.getState(), is(ZrePeer.State.DISCONNECTED));
+        assertThat(peer.getQueueDepth(), is(0));
+        assertThat(listener.disconnected, is(1));
+
+        in.close();
+        context.close();
+    }
+}
@@ -0,0 +1,113 @@
+package org.jyre;
+
+import org.jyre.protocol.HelloMessage;
+import org.jyre.protocol.ZreCodec;
+import org.junit.Test;
+import org.zeromq.ContextFactory;
+import org.zeromq.api.Context;
+import org.zeromq.api.Message;
+import org.zeromq.api.Message.Frame;
+import org.zeromq.api.Socket;
+import org.zeromq.api.SocketType;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.UUID;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ZreShardTest {
+    @Test
+    public void testIdentityFormsShareShard() {
+        // Beacons, whispers and inbox addresses must all reach the same shard
+        for (int i = 0; i < 1000; i++) {
+            UUID uuid = UUID.randomUUID();
+            long msb = uuid.getMostSignificantBits();
+            long lsb = uuid.getLeastSignificantBits();
+            byte[] hex = ZreIdentity.toString(msb, lsb).getBytes(StandardCharsets.UTF_8);
+            byte[] raw = ByteBuffer.allocate(17).put((byte) 1).putLong(msb).putLong(lsb).array();
+
+            int shard = ZreShard.getShard(msb, lsb, 7);
+            assertEquals(shard, ZreShard.getShard(hex, 7));
+            assertEquals(shard, ZreShard.getShard(raw, 7));
+        }
+    }
+
+    @Test
+    public void testShardsAreBalanced() {
+        int[] counts = new int[4];
+        for (int i = 0; i < 4000; i++) {
+            UUID uuid = UUID.randomUUID();
+            counts[ZreShard.getShard(uuid.getMostSignificantBits(), uuid.getLeastSignificantBits(), counts.length)]++;
+        }
+
+        for (int count : counts) {
+            assertTrue(count > 800 && count < 1200);
+        }
+    }
+
+    @Test
+    public void testOtherIdentities() {
+        byte[] identity = "not-a-uuid".getBytes(StandardCharsets.UTF_8);
+        int shard = ZreShard.getShard(identity, 3);
+        assertTrue(shard >= 0 && shard < 3);
+        assertEquals(shard, ZreShard.getShard(identity, 3));
+    }
+
+    @Test
+    public void testSlowPeerExits() {
+        Context context = ContextFactory.createContext(1);
+        Socket outbox = context.buildSocket(SocketType.PULL).bind("inproc://shard-test-outbox");
+        outbox.getZMQSocket().setReceiveTimeOut(5000);
+
+        // A peer that never reads, and holds few messages
+        Socket slow = context.buildSocket(SocketType.ROUTER)
+            .withReceiveHighWatermark(10)
+            .bind("inproc://shard-test-peer");
+
+        AtomicReference<ZrePeerDirectory> directory = new AtomicReference<>(ZrePeerDirectory.EMPTY);
+        ZreMetrics metrics = new ZreMetrics();
+        ZreLogger logger = new ZreLogger(context, "self");
+        ZreShard shard = new ZreShard(0, "inproc://shard-test-outbox", new ZrePeerDirectory.Publisher(directory, 1), metrics, metrics.getLoopTime(), logger);
+        shard.setSelf("self", "inproc://shard-test-self", "self", 0, Collections.<String>emptyList(), new HashMap<String, String>());
+        shard.setSendQueue(10, ZreSendPolicy.DISCONNECT);
+        Socket pipe = context.fork(shard);
+
+        // The peer says HELLO, so the shard connects back to its endpoint
+        UUID uuid = UUID.randomUUID();
+        byte[] identity = ByteBuffer.allocate(17).put((byte) 1)
+            .putLong(uuid.getMostSignificantBits()).putLong(uuid.getLeastSignificantBits()).array();
+        Message hello = new ZreCodec().serialize(new HelloMessage()
+            .withSequence(1)
+            .withEndpoint("inproc://shard-test-peer")
+            .withName("slow")
+            .withStatus(0));
+        pipe.send(new Message(ZreShard.INBOX_FRAME).addFrame(Frame.of(identity)).addFrames(hello.getFrames()));
+        assertEquals("ENTER", outbox.receiveMessage().popString());
+        assertEquals(1, directory.get().getPeers().size());
+
+        // More whispers than the socket and the queue hold
+        Message batch = new Message(ZreCommand.WHISPER_BATCH.getFrame()).addFrame(Frame.of(identity));
+        for (int i = 0; i < 5000; i++) {
+            batch.addFrame(Frame.of("Hello"));
+        }
+        pipe.send(batch);
+
+        // Disconnecting the peer is an exit, not a silent drop
+        assertEquals("BACKPRESSURE", outbox.receiveMessage().popString());
+        assertEquals("EXIT", outbox.receiveMessage().popString());
+        assertTrue(directory.get().getPeers().isEmpty());
+
+        // The shard tells its agent about changes on the same pipe
+        pipe.send(new Message(ZreCommand.STOP.getFrame()));
+        while (!pipe.receiveMessage().getFirstFrame().equals(ZreCommand.STOP.getFrame())) {
+            continue;
+        }
+        logger.close();
+        context.close();
+    }
+}
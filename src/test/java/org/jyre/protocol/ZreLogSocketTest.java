@@ -42,11 +42,11 @@ public class ZreLogSocketTest {
         assertTrue(out.send(message));
         assertEquals(ZreLogCodec.MessageType.LOG, in.receive());
         message = in.getLog();
-        assertEquals(message.getLevel(), Integer.valueOf(123));
-        assertEquals(message.getEvent(), Integer.valueOf(123));
-        assertEquals(message.getNode(), Integer.valueOf(123));
-        assertEquals(message.getPeer(), Integer.valueOf(123));
-        assertEquals(message.getTime(), Long.valueOf(456));
+        assertEquals(123, message.getLevel());
+        assertEquals(123, message.getEvent());
+        assertEquals(123, message.getNode());
+        assertEquals(123, message.getPeer());
+        assertEquals(456L, message.getTime());
         assertEquals(message.getData(), "Life is short but Now lasts for ever");
         
         out.close();
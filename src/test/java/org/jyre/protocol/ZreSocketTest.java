@@ -41,12 +41,12 @@ public class ZreSocketTest {
         assertTrue(out.send(message));
         assertEquals(ZreCodec.MessageType.HELLO, in.receive());
         message = in.getHello();
-        assertEquals(message.getSequence(), Integer.valueOf(123));
+        assertEquals(123, message.getSequence());
         assertEquals(message.getEndpoint(), "Life is short but Now lasts for ever");
         assertEquals(message.getGroups().size(), 2);
         assertEquals(message.getGroups().get(0), "Name: Brutus");
         assertEquals(message.getGroups().get(1), "Age: 43");
-        assertEquals(message.getStatus(), Integer.valueOf(123));
+        assertEquals(123, message.getStatus());
         assertEquals(message.getName(), "Life is short but Now lasts for ever");
         assertEquals(message.getHeaders().size(), 2);
         assertEquals(message.getHeader("Name", "?"), "Brutus");
@@ -68,13 +68,101 @@ public class ZreSocketTest {
         assertTrue(out.send(message));
         assertEquals(ZreCodec.MessageType.WHISPER, in.receive());
         message = in.getWhisper();
-        assertEquals(message.getSequence(), Integer.valueOf(123));
+        assertEquals(123, message.getSequence());
         assertEquals("Captcha Diem", message.getContent().toString());
         
         out.close();
         in.close();
     }
 
+    @Test
+    public void testPreparedWhisper() {
+        ZreSocket out = new ZreSocket(dealer);
+        ZreSocket in = new ZreSocket(router);
+        
+        WhisperMessage message = new WhisperMessage();
+        message.setContent(Frame.of("Captcha Diem"));
+        ZreCodec.PreparedMessage prepared = out.getCodec().prepare(message);
+        
+        //  One encoding, sent with each peer's sequence
+        for (int sequence : new int[] { 123, 0xfffe }) {
+            assertTrue(out.send(prepared, sequence));
+            assertEquals(ZreCodec.MessageType.WHISPER, in.receive());
+            message = in.getWhisper();
+            assertEquals(sequence, message.getSequence());
+            assertEquals("Captcha Diem", message.getContent().toString());
+        }
+        
+        out.close();
+        in.close();
+    }
+
+    @Test
+    public void testReuse() {
+        ZreSocket out = new ZreSocket(dealer);
+        ZreSocket in = new ZreSocket(router);
+        in.getCodec().setReuse(true);
+        
+        WhisperMessage message = new WhisperMessage();
+        message.setSequence(123);
+        message.setContent(Frame.of("Captcha Diem"));
+        assertTrue(out.send(message));
+        assertEquals(ZreCodec.MessageType.WHISPER, in.receive());
+        WhisperMessage first = in.getWhisper();
+        assertEquals(123, first.getSequence());
+        
+        message = new WhisperMessage();
+        message.setSequence(124);
+        message.setContent(Frame.of("Carpe Diem"));
+        assertTrue(out.send(message));
+        assertEquals(ZreCodec.MessageType.WHISPER, in.receive());
+        WhisperMessage second = in.getWhisper();
+        assertSame(first, second);
+        assertEquals(124, second.getSequence());
+        assertEquals("Carpe Diem", second.getContent().toString());
+        
+        out.close();
+        in.close();
+    }
+
+    @Test
+    public void testMalformed() {
+        ZreSocket in = new ZreSocket(router);
+        ZreCodec codec = in.getCodec();
+        
+        assertTrue(dealer.send(new Message(Frame.of(new byte[] { 'Z', 'R', 'E', 2 }))));
+        assertNull(in.receive());
+        assertEquals(ZreCodec.Rejection.INVALID_SIGNATURE, codec.getRejection());
+        
+        assertTrue(dealer.send(new Message(Frame.of(new byte[] { (byte) 0xaa, (byte) 0xa1, 99 }))));
+        assertNull(in.receive());
+        assertEquals(ZreCodec.Rejection.INVALID_ID, codec.getRejection());
+        
+        assertTrue(dealer.send(new Message(Frame.of(new byte[] { (byte) 0xaa, (byte) 0xa1, 2, 9, 0, 1 }))));
+        assertNull(in.receive());
+        assertEquals(ZreCodec.Rejection.INVALID_VALUE, codec.getRejection());
+        
+        assertTrue(dealer.send(new Message(Frame.of(new byte[] { (byte) 0xaa, (byte) 0xa1, 2, 2, 0, 1 }))));
+        assertNull(in.receive());
+        assertEquals(ZreCodec.Rejection.MISSING_FRAME, codec.getRejection());
+        
+        assertTrue(dealer.send(new Message(Frame.of(new byte[] { (byte) 0xaa, (byte) 0xa1, 2, 2 }))));
+        assertNull(in.receive());
+        assertEquals(ZreCodec.Rejection.TRUNCATED, codec.getRejection());
+        
+        //  A valid message still gets through afterwards
+        ZreSocket out = new ZreSocket(dealer);
+        PingMessage message = new PingMessage();
+        message.setSequence(123);
+        assertTrue(out.send(message));
+        assertEquals(ZreCodec.MessageType.PING, in.receive());
+        assertNull(codec.getRejection());
+        assertEquals(1, codec.getRejected(ZreCodec.Rejection.INVALID_VALUE));
+        
+        out.close();
+        in.close();
+    }
+
     @Test
     public void testShout() {
         ZreSocket out = new ZreSocket(dealer);
@@ -88,7 +176,7 @@ public class ZreSocketTest {
         assertTrue(out.send(message));
         assertEquals(ZreCodec.MessageType.SHOUT, in.receive());
         message = in.getShout();
-        assertEquals(message.getSequence(), Integer.valueOf(123));
+        assertEquals(123, message.getSequence());
         assertEquals(message.getGroup(), "Life is short but Now lasts for ever");
         assertEquals("Captcha Diem", message.getContent().toString());
         
@@ -96,6 +184,30 @@ public class ZreSocketTest {
         in.close();
     }
 
+    @Test
+    public void testPreparedShout() {
+        ZreSocket out = new ZreSocket(dealer);
+        ZreSocket in = new ZreSocket(router);
+        
+        ShoutMessage message = new ShoutMessage();
+        message.setGroup("Life is short but Now lasts for ever");
+        message.setContent(Frame.of("Captcha Diem"));
+        ZreCodec.PreparedMessage prepared = out.getCodec().prepare(message);
+        
+        //  One encoding, sent with each peer's sequence
+        for (int sequence : new int[] { 123, 0xfffe }) {
+            assertTrue(out.send(prepared, sequence));
+            assertEquals(ZreCodec.MessageType.SHOUT, in.receive());
+            message = in.getShout();
+            assertEquals(sequence, message.getSequence());
+            assertEquals(message.getGroup(), "Life is short but Now lasts for ever");
+            assertEquals("Captcha Diem", message.getContent().toString());
+        }
+        
+        out.close();
+        in.close();
+    }
+
     @Test
     public void testJoin() {
         ZreSocket out = new ZreSocket(dealer);
@@ -109,9 +221,9 @@ public class ZreSocketTest {
         assertTrue(out.send(message));
         assertEquals(ZreCodec.MessageType.JOIN, in.receive());
         message = in.getJoin();
-        assertEquals(message.getSequence(), Integer.valueOf(123));
+        assertEquals(123, message.getSequence());
         assertEquals(message.getGroup(), "Life is short but Now lasts for ever");
-        assertEquals(message.getStatus(), Integer.valueOf(123));
+        assertEquals(123, message.getStatus());
         
         out.close();
         in.close();
@@ -130,9 +242,9 @@ public class ZreSocketTest {
         assertTrue(out.send(message));
         assertEquals(ZreCodec.MessageType.LEAVE, in.receive());
         message = in.getLeave();
-        assertEquals(message.getSequence(), Integer.valueOf(123));
+        assertEquals(123, message.getSequence());
         assertEquals(message.getGroup(), "Life is short but Now lasts for ever");
-        assertEquals(message.getStatus(), Integer.valueOf(123));
+        assertEquals(123, message.getStatus());
         
         out.close();
         in.close();
@@ -149,7 +261,7 @@ public class ZreSocketTest {
         assertTrue(out.send(message));
         assertEquals(ZreCodec.MessageType.PING, in.receive());
         message = in.getPing();
-        assertEquals(message.getSequence(), Integer.valueOf(123));
+        assertEquals(123, message.getSequence());
         
         out.close();
         in.close();
@@ -166,7 +278,7 @@ public class ZreSocketTest {
         assertTrue(out.send(message));
         assertEquals(ZreCodec.MessageType.PING_OK, in.receive());
         message = in.getPingOk();
-        assertEquals(message.getSequence(), Integer.valueOf(123));
+        assertEquals(123, message.getSequence());
         
         out.close();
         in.close();